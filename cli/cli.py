@@ -84,6 +84,8 @@ def do_run(args):
     wp = Path(args.workdir).resolve()
     env = runtime_env.load(wp/'env.json')
     patches = glob_patches.glob_patches(env, args.patches, args.continue_from)
+    if not args.no_coalesce:
+        patches = glob_patches.coalesce_patches(env, patches)
 
     assert env.interface_name in interface.interface_mapping, f'interface not supported: {env.interface_name}'
     env.interface = interface.interface_mapping[env.interface_name](env)
@@ -121,7 +123,7 @@ parser_init.add_argument('-i', '--interface', type=str, default='defects4j', hel
 parser_init.add_argument('-b', '--bug', type=str, required=True, help='the bug under validation (e.g., "Chart-1" for defects4j)')
 parser_init.add_argument('-w', '--workdir', type=str, required=True, help='directory to store temporary runtime files, should be empty or nonexistent')
 parser_init.add_argument('-j', '--jobs', type=int, metavar='N', default=1, help='number of threads during validation')
-parser_init.add_argument('-d', '--dedup', type=str, help='side-effect data file path ("trivial"; "sidefx_db=/path/to/db.txt"; omit this to disable patch deduplication at all)')
+parser_init.add_argument('-d', '--dedup', type=str, help='side-effect data file path ("trivial"; "sidefx_db=/path/to/db.txt"; "sidefx_auto" to build the db from compiled classes; omit this to disable patch deduplication at all)')
 parser_init.add_argument('--interface-config', type=str, default='{}', help='interface-specific configuration as JSON dict (default is {})')
 parser_init.add_argument('--reuse-workdir', action='store_true', help='reuse the working directory, deleting everything inside (otherwise ExpressAPR will report an error and exit)')
 parser_init.set_defaults(_do_func=do_init)
@@ -133,6 +135,8 @@ parser_run.add_argument('-t', '--technique', dest='technique', default='expapr,f
 parser_run.add_argument('--continue', dest='continue_from', type=glob_patches.ContinueArgs, default='ONLYSUCC', help='whether to skip finished clusters (YES, ONLYSUCC, NO; default is ONLYSUCC)')
 parser_run.add_argument('--no-dedup', action='store_true', help='disable patch deduplication (even if `-d` is set in init)')
 parser_run.add_argument('--no-prio', action='store_true', help='disable test case prioritization')
+parser_run.add_argument('--multi-hunk', action='store_true', help='validate clusters whose patches change several hunks (manifest v4) with ExpressAPR, by merging the hunks into one location; they should be in the same method')
+parser_run.add_argument('--no-coalesce', action='store_true', help='validate each patch cluster file separately, even if several of them patch the same location')
 parser_run.set_defaults(_do_func=do_run)
 
 def main(cmdline: Optional[List[str]] = None):
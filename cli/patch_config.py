@@ -30,6 +30,29 @@ def load(data: Dict[str, Any]) -> PatchConfig:
         data['manifest_version'] = 3
         mv = 3
 
+    if mv==4:
+        logging.debug('merging hunks of manifest v4 into v3')
+
+        # hunks are merged into one location spanning all of them, which patches the file the same as the igniter
+        unpatched = data['unpatched']
+        between = data.pop('context_between')
+        if not unpatched or len(between)!=len(unpatched)-1:
+            raise RuntimeError('manifest v4: context_between should separate unpatched hunks')
+
+        def join_hunks(hunks: List[str]) -> str:
+            return hunks[0] + ''.join(ctx+hunk for ctx, hunk in zip(between, hunks[1:]))
+
+        patches = []
+        for patch in data['patches']:
+            if len(patch)!=len(unpatched):
+                raise RuntimeError('manifest v4: hunk count mismatch')
+            patches.append(join_hunks([orig if hunk is None else hunk for hunk, orig in zip(patch, unpatched)]))
+
+        data['unpatched'] = join_hunks(unpatched)
+        data['patches'] = patches
+        data['manifest_version'] = 3
+        mv = 3
+
     if mv!=3:
         raise RuntimeError(f'invalid manifest version: {mv}')
 
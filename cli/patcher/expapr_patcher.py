@@ -2,7 +2,7 @@ import pathlib
 import logging
 import time
 from shlex import quote
-from typing import Tuple, List
+from typing import Tuple, List, Optional
 
 from ..runtime_env import RuntimeEnv
 from ..utils import run_cmd, randn
@@ -16,6 +16,16 @@ class ExpAprPatcher(BasePatcher):
     DUMP_RUNTIME_OUTPUT = False
     TEST_SEL_WHEN_NODEDUP = False
     WRITE_COMPILER_MSG = False
+    IN_PROCESS_COMPILE = True
+    IN_MEMORY_CLASS_OUTPUT = False # compiled classes go to a blob in /dev/shm, instead of `tp_src`
+    COMPILE_CACHE = True # skip patches known not to compile from previous clusters, cached in the workdir (outside the project)
+    COMPILER_BACKEND = 'javac' # or 'ecj', which always compiles in-process
+    ECJ_JAR_PATH: Optional[str] = None # required for the 'ecj' backend, e.g. ecj-3.26.0.jar
+    BYTECODE_ASSEMBLY = False # compile only the patched method for each cluster, other methods are copied from bytecode
+    EXPRESSION_INSTRUMENT_POINT = True # if patches only change an expression of known type, instrument that expression instead of statements
+    PATCH_FAMILIES = True # patches that differ only in literals or comparison operators share one generated method
+    INSTRUMENT_POINT_RECOVERY = True # on unknown compile errors outside patches, try conservative instrument point variants before falling back
+    MULTI_HUNK_PATCHES = False # validate manifest v4 clusters changing several hunks, merged into one location (also set by `run --multi-hunk`)
 
     IGNITER_PATH = pathlib.Path('../expapr-jar')
 
@@ -29,10 +39,11 @@ class ExpAprPatcher(BasePatcher):
     RUN_TEST_TIMEOUT_SEC_EACH = 300
     RUN_TEST_TIMEOUT_SEC_MAX = 7200
 
-    def __init__(self, jsonpath, env: RuntimeEnv, eidx: int, noprio=False):
+    def __init__(self, jsonpath, env: RuntimeEnv, eidx: int, noprio=False, multi_hunk=False):
         super().__init__(jsonpath, env, eidx)
 
         self.noprio = noprio
+        self.multi_hunk = multi_hunk or self.MULTI_HUNK_PATCHES
 
         if self.ENABLE_ASSERTION:
             logging.warning('!! ASSERTION ENABLED: speed is not optimal')
@@ -57,6 +68,8 @@ class ExpAprPatcher(BasePatcher):
             "" if self.noprio else patched_class_name,
         )
 
+        self.class_blob_path: Optional[pathlib.Path] = None
+
         self.vmvm_jar_path = (self.IGNITER_PATH/"data/runtime-vendor/vmvm-2.0.0-EXPAPR.jar").resolve()
         self.cp_prepend = (
             str((self.IGNITER_PATH/"data/runtime-vendor/junit-4.12.jar").resolve())
@@ -75,6 +88,7 @@ class ExpAprPatcher(BasePatcher):
             f':{quote(str((self.workpath/self.sp_test).resolve()))}'
             f' -source {self.mk_lang_arg(lang_level)} -target {self.mk_lang_arg(lang_level)}'
             f' {quote(str((self.workpath/self.sp_test/"expressapr/testkit/Main.java").resolve()))}'
+            f' {quote(str((self.workpath/self.sp_test/"expressapr/testkit/MemoryClassLoader.java").resolve()))}'
         )
 
         timeout = self.COMPILE_MAIN_TIMEOUT_SEC
@@ -175,11 +189,21 @@ class ExpAprPatcher(BasePatcher):
             'project_test_path': self.sp_test,
             'javac_cmdline': self._build_compile_target_cmdline(),
             'all_tests': [f'{clz}::{mtd}::{timeout}' for t in self.prioritized_applicable_tests for clz, mtd, timeout in [t]],
+            'class_blob_path': None if self.class_blob_path is None else str(self.class_blob_path),
+            'compile_cache_path': str(self.env.workpath/'compile-cache.tsv') if self.COMPILE_CACHE else None,
 
             'flags': {
                 'runtime_debug': self.RUNTIME_DEBUG,
                 'test_sel_when_nodedup': self.TEST_SEL_WHEN_NODEDUP,
                 'write_compiler_msg': self.WRITE_COMPILER_MSG,
+                'in_process_compile': self.IN_PROCESS_COMPILE,
+                'compiler_backend': self.COMPILER_BACKEND,
+                'ecj_jar_path': self.ECJ_JAR_PATH,
+                'bytecode_assembly': self.BYTECODE_ASSEMBLY,
+                'expression_instrument_point': self.EXPRESSION_INSTRUMENT_POINT,
+                'patch_families': self.PATCH_FAMILIES,
+                'instrument_point_recovery': self.INSTRUMENT_POINT_RECOVERY,
+                'multi_hunk_patches': self.multi_hunk,
             }
         }
 
@@ -215,6 +239,11 @@ class ExpAprPatcher(BasePatcher):
             f':{self.cp_test}'
             f' -Xbootclasspath/p:{self.vmvm_jar_path}'
             f' -javaagent:{self.vmvm_jar_path}'
+            + (
+                f' -Djava.system.class.loader=expressapr.testkit.MemoryClassLoader'
+                f' -Dexpressapr.class_blob={quote(str(self.class_blob_path))}'
+                if self.class_blob_path is not None else ''
+            ) +
             f' expressapr.testkit.Main'
         )
 
@@ -296,17 +325,25 @@ class ExpAprPatcher(BasePatcher):
         # cached by init process
         #self.precompile_code()
 
-        t1 = time.time()
-        patchcnt, succlist, inst_telemetry_cnts = self.install_instrumentation_servant('run', servant)
-        t2 = time.time()
+        if self.IN_MEMORY_CLASS_OUTPUT:
+            shm = pathlib.Path('/dev/shm')
+            self.class_blob_path = (shm if shm.is_dir() else self.workpath) / f'expapr-classes-{randn(8)}.bin'
+
+        try:
+            t1 = time.time()
+            patchcnt, succlist, inst_telemetry_cnts = self.install_instrumentation_servant('run', servant)
+            t2 = time.time()
 
-        runtime_succlist = ''
-        run_telemetry_cnts = None
+            runtime_succlist = ''
+            run_telemetry_cnts = None
 
-        if patchcnt!=0:
-            runtime_succlist, run_telemetry_cnts = self.run_instrumented(patchcnt)
+            if patchcnt!=0:
+                runtime_succlist, run_telemetry_cnts = self.run_instrumented(patchcnt)
 
-        t3 = time.time()
+            t3 = time.time()
+        finally:
+            if self.class_blob_path is not None and self.class_blob_path.exists():
+                self.class_blob_path.unlink()
 
         succlist = self.fuse_succlist(succlist, runtime_succlist)
 
@@ -31,5 +31,13 @@ def setup_dedup(dedup_arg: Optional[str], env: RuntimeEnv):
             'sidefx_db_path': str(env.workpath/'sidefx_db.txt'),
         }
 
+    elif dedup_arg == 'sidefx_auto':
+        # the db is built from compiled classes in `copy_runtime_files`, and the type becomes `sidefx_db` then
+        logging.info('dedup set to sidefx_auto mode')
+        env.deduplication = {
+            'type': 'sidefx_auto',
+            'sidefx_db_path': str(env.workpath/'sidefx_db.txt'),
+        }
+
     else:
         raise ValueError(f'unknown dedup arg: {dedup_arg}')
\ No newline at end of file
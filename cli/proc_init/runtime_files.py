@@ -52,6 +52,59 @@ def _can_be_related(s: str, c: Any) -> bool:
 
     raise RuntimeError(f'unknown type: {type(c)}')
 
+def build_sidefx_db(env: RuntimeEnv, p: ExpAprPatcher, con: servant_connector.ServantConnector):
+    logging.info('== build_sidefx_db')
+
+    class_paths = [str((p.workpath/p.tp_src).resolve())]
+    class_paths += [str((p.workpath/x).resolve()) for x in p.cp_compile.split(':') if x]
+
+    status, rpc_res = con.request({
+        'action': 'build_sidefx_db',
+        'class_paths': class_paths,
+        'sidefx_db_path': env.deduplication['sidefx_db_path'],
+    }, 1800)
+
+    if status!='succ':
+        logging.critical('build sidefx db failed: %s', rpc_res)
+        raise RuntimeError('build sidefx db failed')
+
+    logging.info('sidefx db built with %d impure methods', rpc_res['impure_method_count'])
+
+    env.deduplication = {
+        'type': 'sidefx_db',
+        'sidefx_db_path': env.deduplication['sidefx_db_path'],
+        'source_analysis': False, # project classes are in the db already
+    }
+
+def compact_sidefx_db(env: RuntimeEnv, con: servant_connector.ServantConnector):
+    logging.info('== compact_sidefx_db')
+
+    # servants map the compact db read-only, so all workers share one copy in memory
+    compact_path = env.workpath/'sidefx_db.bin'
+    status, rpc_res = con.request({
+        'action': 'compact_sidefx_db',
+        'sidefx_db_path': env.deduplication['sidefx_db_path'],
+        'compact_db_path': str(compact_path),
+    }, 300)
+
+    if status!='succ':
+        logging.critical('compact sidefx db failed: %s', rpc_res)
+        raise RuntimeError('compact sidefx db failed')
+
+    env.deduplication = {
+        **env.deduplication,
+        'sidefx_db_path': str(compact_path),
+    }
+
+    status, rpc_res = con.request_on_startup({
+        'action': 'setup',
+        'purity_source': env.deduplication,
+    }, 30)
+
+    if status!='succ':
+        logging.critical('purity source setup failed: %s', rpc_res)
+        raise RuntimeError('purity source setup failed')
+
 def copy_runtime_files(env: RuntimeEnv, eidx: int):
     logging.info('== copy_runtime_files')
 
@@ -82,6 +135,11 @@ def copy_runtime_files(env: RuntimeEnv, eidx: int):
     p = ExpAprPatcher(env.workpath/'pseudo.json', env, eidx)
     p.precompile_code()
 
+    if env.deduplication['type']=='sidefx_auto':
+        build_sidefx_db(env, p, con)
+    if env.deduplication['type']=='sidefx_db':
+        compact_sidefx_db(env, con)
+
     check_output('git add .', 30, cwd=str(src_proj['root']))
     check_output('git commit --allow-empty -m "EXPAPR: interface original"', 30, cwd=str(src_proj['root']))
     check_output('git tag EXPAPR_INTERFACE_ORIGINAL', 15, cwd=str(src_proj['root']))
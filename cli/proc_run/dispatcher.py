@@ -1,4 +1,4 @@
-from typing import List
+from typing import List, Union
 from queue import Queue
 import threading
 import json
@@ -8,6 +8,7 @@ import time
 from typing import Callable, Any
 
 from .techniques import TECHNIQUES
+from .glob_patches import CoalescedCluster
 from ..runtime_env import RuntimeEnv
 
 MAX_N_JOBS = None
@@ -21,52 +22,95 @@ def thread(env: RuntimeEnv, q: Queue, idx0: int, notify: Callable[[Any], None],
     techs = [(t_name, TECHNIQUES[t_name](env, idx0, args)) for t_name in args.technique]
 
     while True:
-        jsonpath = q.get()
+        item = q.get()
 
-        if jsonpath is quit_symbol:
+        if item is quit_symbol:
             logger.info('worker quit')
             for _, tech in techs:
                 tech.shutdown()
             return
 
+        if isinstance(item, CoalescedCluster):
+            jsonpath = item.jsonpath
+            members = item.members
+        else:
+            jsonpath = item
+            members = [(item, None)]
+
         extras = {
             'timestamp_begin': time.time(),
         }
 
-        try:
-            logger.info('== (%d left) %s', q.qsize(), jsonpath)
+        def report(technique, succlist):
+            # split the result of a coalesced cluster back to its member files
+            if succlist is not None and len(members)>1:
+                assert len(succlist)==sum(cnt for _, cnt in members), f'succlist length mismatch for {jsonpath}'
+
+            offset = 0
+            for member_path, cnt in members:
+                member_extras = extras
+                if len(members)>1:
+                    member_extras = dict(extras, coalesced_path=jsonpath, coalesced_offset=offset)
+                notify({
+                    'patches_path': member_path,
+                    'technique': technique,
+                    'succlist': succlist if (succlist is None or cnt is None) else succlist[offset:offset+cnt],
+                    'extra': member_extras,
+                })
+                if cnt is not None:
+                    offset += cnt
 
-            for t_name, tech in techs:
-                succlist, new_extras = tech.run(jsonpath)
+        def run_techniques(path, techs, extras):
+            # returns (technique, succlist) of the first technique that succeeds, or (None, None)
+            for t_idx, (t_name, tech) in enumerate(techs):
+                succlist, new_extras = tech.run(path)
                 extras.update(new_extras)
 
                 if succlist is not None:
-                    logger.info(' -> (%s) [%s] for %s', t_name, succlist, jsonpath)
-                    extras.update({
-                        'timestamp_end': time.time(),
-                    })
-                    notify({
-                        'patches_path': jsonpath,
-                        'technique': t_name,
-                        'succlist': succlist,
-                        'extra': extras,
-                    })
-                    break
+                    logger.info(' -> (%s) [%s] for %s', t_name, succlist, path)
+                    if 'U' in succlist and t_idx+1<len(techs):
+                        succlist = revalidate(path, succlist, techs[t_idx+1:], extras)
+                    return t_name, succlist
                 else: # succlist is None
-                    logger.info(' -> (%s) !FAIL for %s', t_name, jsonpath)
+                    logger.info(' -> (%s) !FAIL for %s', t_name, path)
                     logger.debug('    %s', new_extras)
 
-            else: # all techniques failed
+            return None, None
+
+        def revalidate(path, succlist, techs, extras):
+            # patches not validated (e.g., dropped by an ip recovery rule in the igniter) go to the next techniques
+            idxs = [idx for idx, c in enumerate(succlist) if c=='U']
+            with open(path) as f:
+                data = json.load(f)
+            data['patches'] = [data['patches'][idx] for idx in idxs]
+
+            subpath = env.workpath/'unvalidated'/f'{idx0}.json'
+            subpath.parent.mkdir(exist_ok=True)
+            with subpath.open('w') as f:
+                json.dump(data, f)
+
+            logger.info(' -> revalidating %d patches of %s', len(idxs), path)
+            sub_extras = {}
+            t_name, sub_succlist = run_techniques(str(subpath), techs, sub_extras)
+            extras['revalidation'] = dict(sub_extras, technique=t_name, count=len(idxs))
+            if sub_succlist is None:
+                return succlist
+
+            merged = list(succlist)
+            for idx, c in zip(idxs, sub_succlist):
+                merged[idx] = c
+            return ''.join(merged)
+
+        try:
+            logger.info('== (%d left) %s', q.qsize(), jsonpath)
+
+            t_name, succlist = run_techniques(jsonpath, techs, extras)
+            if succlist is None:
                 logger.warning(' -> all tech failed for %s', jsonpath)
-                extras.update({
-                    'timestamp_end': time.time(),
-                })
-                notify({
-                    'patches_path': jsonpath,
-                    'technique': None,
-                    'succlist': None,
-                    'extra': extras,
-                })
+            extras.update({
+                'timestamp_end': time.time(),
+            })
+            report(t_name, succlist)
 
         except Exception as e:
             logger.exception(e)
@@ -76,17 +120,12 @@ def thread(env: RuntimeEnv, q: Queue, idx0: int, notify: Callable[[Any], None],
                 'worker_error_repr': repr(e),
                 'worker_error_trace': traceback.format_exc(),
             })
-            notify({
-                'patches_path': jsonpath,
-                'technique': None,
-                'succlist': None,
-                'extra': extras,
-            })
+            report(None, None)
 
         finally:
             q.task_done()
 
-def dispatch(env: RuntimeEnv, patches: List[str], args: Any):
+def dispatch(env: RuntimeEnv, patches: List[Union[str, CoalescedCluster]], args: Any):
     if not patches:
         logging.info('nothing to do')
         return
@@ -1,16 +1,25 @@
-from typing import List
+from typing import List, Tuple, Union, Dict
+from dataclasses import dataclass
 from pathlib import Path
 import logging
 import json
 import enum
 
 from ..runtime_env import RuntimeEnv
+from .. import patch_config
+
+MAX_COALESCED_PATCHES = 1000
 
 class ContinueArgs(enum.Enum):
     ALL = 'ALL'
     ONLYSUCC = 'ONLYSUCC'
     NO = 'NO'
 
+@dataclass()
+class CoalescedCluster:
+    jsonpath: str # the virtual cluster written into the workdir
+    members: List[Tuple[str, int]] # (patches_path, patch count) in the order of patches in the virtual cluster
+
 def remove_duplicate(li: list) -> list:
     # remove duplicate while preserving order
     # it depends on the fact (spec after Python 3.7) that dict keys are ordered
@@ -54,4 +63,59 @@ def glob_patches(env: RuntimeEnv, patterns: List[str], continue_from: ContinueAr
     if continue_from!=ContinueArgs.NO:
         patches = remove_completed(patches, env, continue_from)
 
-    return patches
\ No newline at end of file
+    return patches
+
+def coalesce_patches(env: RuntimeEnv, patches: List[str]) -> List[Union[str, CoalescedCluster]]:
+    # clusters with the same location are merged, so they are compiled and tested once
+    groups: Dict[tuple, List[Tuple[str, patch_config.PatchConfig]]] = {}
+    ret: List[Union[str, List[Tuple[str, patch_config.PatchConfig]]]] = []
+
+    for p in patches:
+        try:
+            with open(p) as f:
+                config = patch_config.load(json.load(f))
+        except Exception as e:
+            logging.debug('not coalescing %s: %r', p, e)
+            ret.append(p) # the worker will report the error
+            continue
+
+        key = (config.interface, config.bug, config.filename, config.context_above, config.unpatched, config.context_below)
+        group = groups.get(key)
+        if group is None or sum(len(c.patches) for _, c in group)+len(config.patches)>MAX_COALESCED_PATCHES:
+            group = []
+            groups[key] = group
+            ret.append(group)
+        group.append((p, config))
+
+    outpath = env.workpath/'coalesced'
+    outpath.mkdir(exist_ok=True)
+
+    n_merged = 0
+    for idx, item in enumerate(ret):
+        if isinstance(item, str):
+            continue
+        if len(item)==1:
+            ret[idx] = item[0][0]
+            continue
+
+        config = item[0][1]
+        jsonpath = outpath/f'{idx}.json'
+        with jsonpath.open('w') as f:
+            json.dump({
+                'manifest_version': 3,
+                'interface': config.interface,
+                'bug': config.bug,
+                'filename': config.filename,
+                'context_above': config.context_above,
+                'unpatched': config.unpatched,
+                'context_below': config.context_below,
+                'patches': [patch for _, c in item for patch in c.patches],
+            }, f)
+
+        ret[idx] = CoalescedCluster(str(jsonpath), [(p, len(c.patches)) for p, c in item])
+        n_merged += len(item)
+
+    if n_merged:
+        logging.info('coalesced %d clusters into %d', len(patches), len(ret))
+
+    return ret
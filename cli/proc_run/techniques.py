@@ -29,16 +29,20 @@ class ExpAprTechnique(Technique):
         )
 
         dedup = {'type': 'disabled'} if args.no_dedup else env.deduplication
-        self.con.request_on_startup({
+        setup_req = {
             'action': 'setup',
             'purity_source': dedup,
-        }, 30)
+        }
+        sp_src = env.projects[idx0]['props'].get('sp_src')
+        if dedup['type']=='sidefx_db' and sp_src is not None: # so that the servant warms up the symbol solver
+            setup_req['project_src_path'] = str(Path(self.proj_path_s).resolve()/sp_src)
+        self.con.request_on_startup(setup_req, 30)
 
     def run(self, jsonpath: str) -> Tuple[Optional[str], dict]:
         try:
             check_output('git reset EXPAPR_RUNTIME_INJECTED --hard && git clean -d -f', 30, cwd=self.proj_path_s)
 
-            p = ExpAprPatcher(jsonpath, self.env, self.idx0, noprio=self.args.no_prio)
+            p = ExpAprPatcher(jsonpath, self.env, self.idx0, noprio=self.args.no_prio, multi_hunk=self.args.multi_hunk)
             patchcnt, t_install, t_run, succlist, inst_telemetry_cnts, run_telemetry_cnts = p.main(self.con)
 
         except Exception as e:
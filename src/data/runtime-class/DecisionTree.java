@@ -1,31 +1,43 @@
 package expressapr.testkit;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class DecisionTree {
     private TestResult result;
     private ArrayList<Integer> patches;
+    private int first_patch; // patches.get(0), without unboxing
     private DecisionTree parent;
     private int subtree_expanding_count;
 
     // below: only valid for non-leaf nodes (i.e. result is InvokeExpanded)
     private HashMap<InvokeDetails, DecisionTree> child;
+    private ArrayList<Map.Entry<InvokeDetails, DecisionTree>> edges; // same as `child`, in insertion order
+    private int expandable_edge_idx; // edges before it have nothing to expand, and never will
 
     DecisionTree(TestResult tr, DecisionTree par) {
         subtree_expanding_count = 0;
         parent = par;
         patches = new ArrayList<Integer>();
         child = new HashMap<InvokeDetails, DecisionTree>();
+        edges = new ArrayList<Map.Entry<InvokeDetails, DecisionTree>>();
+        expandable_edge_idx = 0;
         set_result(tr);
     }
 
     public ArrayList<Integer> get_patches() {
         return patches;
     }
+    public int get_first_patch() {
+        assert !patches.isEmpty();
+        return first_patch;
+    }
     public void add_into_patches(int pid) {
+        if(patches.isEmpty())
+            first_patch = pid;
         patches.add(pid);
     }
 
@@ -56,8 +68,23 @@ public class DecisionTree {
         assert result==TestResult.Expanding || result==TestResult.InvokeExpanded;
         return child.get(res);
     }
-    public Set<Map.Entry<InvokeDetails, DecisionTree>> get_childs() {
-        return child.entrySet();
+    public List<Map.Entry<InvokeDetails, DecisionTree>> get_childs() {
+        return edges;
+    }
+
+    /**
+     * Returns the first edge to a subtree that is still expanding, or null if there is none.
+     * A subtree stops expanding only when all its nodes are finished, which cannot be undone (children are only
+     * inserted under an expanding node), so repeated calls on a node only check each edge once.
+     */
+    public Map.Entry<InvokeDetails, DecisionTree> next_expandable_edge() {
+        while(expandable_edge_idx<edges.size()) {
+            Map.Entry<InvokeDetails, DecisionTree> edge = edges.get(expandable_edge_idx);
+            if(edge.getValue().subtree_expanding_count>0)
+                return edge;
+            expandable_edge_idx++;
+        }
+        return null;
     }
 
     private DecisionTree insert_child(InvokeDetails res, TestResult tr) {
@@ -66,6 +93,7 @@ public class DecisionTree {
 
         DecisionTree tree = new DecisionTree(tr, this);
         child.put(res, tree);
+        edges.add(new AbstractMap.SimpleImmutableEntry<InvokeDetails, DecisionTree>(res, tree));
         return tree;
     }
 
@@ -74,7 +102,7 @@ public class DecisionTree {
         if(tree==null)
             tree = insert_child(res, tr);
 
-        tree.patches.add(patchid);
+        tree.add_into_patches(patchid);
         return tree;
     }
 }
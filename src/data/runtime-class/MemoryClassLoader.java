@@ -0,0 +1,106 @@
+package expressapr.testkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * System class loader that defines the compiled schemata classes from a memory-mapped blob written by the igniter,
+ * so that they never touch the class output directory.
+ *
+ * Usage: `java -Djava.system.class.loader=expressapr.testkit.MemoryClassLoader -Dexpressapr.class_blob=path ...`
+ *
+ * Blob format (big endian): int class_count, then for each class: int name_length, byte[name_length] name in UTF-8,
+ * int length, byte[length] class file.
+ *
+ * Classes on the classpath are defined by this loader rather than delegated to the parent, otherwise a class loaded by
+ * the parent would resolve the patched class from the class output directory. Bootstrap classes (including vmvm, which
+ * is on the boot classpath) are always delegated.
+ */
+public class MemoryClassLoader extends URLClassLoader {
+    public static final String BLOB_PROPERTY = "expressapr.class_blob";
+
+    private HashMap<String, ByteBuffer> blob_classes = new HashMap<String, ByteBuffer>();
+    private ClassLoader bootstrap_delegate;
+
+    public MemoryClassLoader(ClassLoader parent) throws IOException {
+        super(classpathUrls(), parent);
+
+        bootstrap_delegate = parent.getParent(); // ext (platform) loader, which delegates to bootstrap
+
+        String blob_fn = System.getProperty(BLOB_PROPERTY);
+        if(blob_fn!=null)
+            loadBlob(blob_fn);
+    }
+
+    private static URL[] classpathUrls() throws MalformedURLException {
+        String cp = System.getProperty("java.class.path");
+        List<URL> urls = new ArrayList<URL>();
+        for(String item: cp.split(File.pathSeparator)) {
+            if(item.length()>0)
+                urls.add(new File(item).toURI().toURL());
+        }
+        return urls.toArray(new URL[0]);
+    }
+
+    private void loadBlob(String fn) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(fn, "r");
+        try {
+            FileChannel ch = f.getChannel();
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()); // stays valid after close
+
+            int cnt = buf.getInt();
+            for(int i=0; i<cnt; i++) {
+                byte[] name = new byte[buf.getInt()];
+                buf.get(name);
+                int len = buf.getInt();
+
+                ByteBuffer bytes = buf.slice();
+                bytes.limit(len);
+                buf.position(buf.position()+len);
+
+                blob_classes.put(new String(name, "UTF-8"), bytes);
+            }
+        } finally {
+            f.close();
+        }
+    }
+
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        Class<?> c = findLoadedClass(name);
+
+        if(c==null) {
+            try {
+                c = bootstrap_delegate.loadClass(name);
+            } catch(ClassNotFoundException ignored) {}
+        }
+
+        if(c==null) {
+            ByteBuffer bytes = blob_classes.remove(name);
+            if(bytes!=null)
+                c = defineClass(name, bytes, (ProtectionDomain)null);
+        }
+
+        if(c==null) {
+            try {
+                c = findClass(name);
+            } catch(ClassNotFoundException e) {
+                c = getParent().loadClass(name);
+            }
+        }
+
+        if(resolve)
+            resolveClass(c);
+        return c;
+    }
+}
@@ -9,7 +9,8 @@ enum ExecResultType {
 public class TestKitExecResult {
     private ExecResultType type;
     private Object retval;
-    private Object retval_for_comparison;
+    private Object retval_for_comparison; // see `get_retval_for_comparison`
+    private boolean retval_for_comparison_ready;
 
     public TestKitExecResult() {
         set_running();
@@ -19,35 +20,41 @@ public class TestKitExecResult {
         ret.type = type;
         ret.retval = retval;
         ret.retval_for_comparison = retval_for_comparison;
+        ret.retval_for_comparison_ready = retval_for_comparison_ready;
         return ret;
     }
 
     public void set_running() {
         type = ExecResultType.Running;
         retval_for_comparison = null;
+        retval_for_comparison_ready = true;
     }
 
     public void set_return(Object obj) {
         type = ExecResultType.Return;
         retval = obj;
         retval_for_comparison = obj;
+        retval_for_comparison_ready = true;
     }
     public void set_throw_unchecked(Throwable obj) {
         type = ExecResultType.ThrowUnchecked;
         retval = obj;
-        retval_for_comparison = obj.getClass().getTypeName()+": "+obj.toString();
+        retval_for_comparison_ready = false; // only needed in tree runs, so not for each exception in single runs
     }
     public void set_finish() {
         type = ExecResultType.Finish;
         retval_for_comparison = null;
+        retval_for_comparison_ready = true;
     }
     public void set_break() {
         type = ExecResultType.Break;
         retval_for_comparison = null;
+        retval_for_comparison_ready = true;
     }
     public void set_continue() {
         type = ExecResultType.Continue;
         retval_for_comparison = null;
+        retval_for_comparison_ready = true;
     }
 
     public boolean is_running() {
@@ -69,25 +76,33 @@ public class TestKitExecResult {
         return retval;
     }
 
+    private Object get_retval_for_comparison() {
+        if(!retval_for_comparison_ready) {
+            retval_for_comparison = retval.getClass().getTypeName()+": "+retval.toString();
+            retval_for_comparison_ready = true;
+        }
+        return retval_for_comparison;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         TestKitExecResult that = (TestKitExecResult) o;
-        return type == that.type && Objects.equals(retval_for_comparison, that.retval_for_comparison);
+        return type == that.type && Objects.equals(get_retval_for_comparison(), that.get_retval_for_comparison());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(type, retval_for_comparison);
+        return Objects.hash(type, get_retval_for_comparison());
     }
 
     @Override
     public String toString() {
         if(is_return())
-            return "ExecResult{"+ type + " " + retval_for_comparison + '}';
+            return "ExecResult{"+ type + " " + get_retval_for_comparison() + '}';
         else if(is_throw_unchecked())
-            return "ExecResult{"+ type + " " + retval_for_comparison + '}';
+            return "ExecResult{"+ type + " " + get_retval_for_comparison() + '}';
         else
             return "ExecResult{"+ type + '}';
     }
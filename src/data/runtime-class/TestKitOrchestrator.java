@@ -2,11 +2,14 @@ package expressapr.testkit;
 
 import java.util.ArrayList;
 import java.util.Map;
-import java.util.Set;
 import sun.misc.Unsafe;
 import java.lang.reflect.Field;
 
 public class TestKitOrchestrator {
+    // set by Main before this class is initialized, if no patch is tree-handleable
+    // so the tree-run path of `_testkit_stub` is dead code, which the JIT drops
+    public static final boolean SINGLE_RUN_ONLY = Boolean.getBoolean("expressapr.single_run_only");
+
     static TestKitOrchestrator singleton = null;
     public static TestKitOrchestrator v() {
         if(singleton==null)
@@ -22,7 +25,7 @@ public class TestKitOrchestrator {
     public long TELEMETRY_total_schemata_time_nano;
     public long TELEMETRY_total_user_time_nano;
 
-    private Long thread_id; // for sancheck
+    private long thread_id; // for sancheck, -1 if not set
     private String fatal_error;
 
     public TestKitOrchestrator() {}
@@ -49,6 +52,7 @@ public class TestKitOrchestrator {
     }
     public void mark_tree_run(DecisionTree dt) {
         assert dt!=null;
+        assert !SINGLE_RUN_ONLY;
         current_node = dt;
     }
 
@@ -56,7 +60,7 @@ public class TestKitOrchestrator {
         assert current_invoke==null;
         assert is_tree_run();
 
-        thread_id = null;
+        thread_id = -1;
         fatal_error = null;
         TELEMETRY_total_schemata_time_nano = 0;
         TELEMETRY_total_user_time_nano = 0;
@@ -162,16 +166,14 @@ public class TestKitOrchestrator {
 
     public Map.Entry<InvokeDetails, DecisionTree> move_to_expandable_edge() {
         assert current_node.get_subtree_expanding_count()>0;
-        Set<Map.Entry<InvokeDetails, DecisionTree>> edges = current_node.get_childs();
-        for(Map.Entry<InvokeDetails, DecisionTree> edge: edges) {
-            if(edge.getValue().get_subtree_expanding_count()>0) {
-                current_node = edge.getValue();
+        Map.Entry<InvokeDetails, DecisionTree> edge = current_node.next_expandable_edge();
+        if(edge!=null) {
+            current_node = edge.getValue();
 
-                assert current_node.get_patches().size()>0;
-                assert current_node.get_result()==TestResult.Expanding || current_node.get_result()!=TestResult.InvokeExpanded;
+            assert current_node.get_patches().size()>0;
+            assert current_node.get_result()==TestResult.Expanding || current_node.get_result()!=TestResult.InvokeExpanded;
 
-                return edge;
-            }
+            return edge;
         }
 
         // if run to here: no edge is expandable
@@ -184,7 +186,7 @@ public class TestKitOrchestrator {
             report_fatal("recursive call in patch");
 
         long cur_tid = Thread.currentThread().getId();
-        if(thread_id==null) {
+        if(thread_id==-1) {
             thread_id = cur_tid;
         } else if(thread_id!=cur_tid) {
             report_fatal("multithread detected");
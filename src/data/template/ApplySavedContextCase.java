@@ -1,2 +1,2 @@
 case [[[PATCH_ID]]]:
-    _testkit_apply_saved_context_[[[PATCH_ID]]](invoke); break;
\ No newline at end of file
+    _testkit_apply_saved_context_[[[WRAPPER_ID]]](invoke); break;
\ No newline at end of file
@@ -0,0 +1,3 @@
+case [[[HELPER_ID]]]:
+    if(_testkit_helper_[[[HELPER_ID]]]==null) _testkit_helper_[[[HELPER_ID]]] = new _testkit_patches_[[[HELPER_ID]]]();
+    _testkit_helper_[[[HELPER_ID]]]._testkit_apply_saved_context(patchid, invoke); break;
\ No newline at end of file
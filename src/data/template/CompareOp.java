@@ -0,0 +1,8 @@
+private [[[MAYBE_STATIC]]] boolean _testkit_cmp(int op, [[[TYPE]]] a, [[[TYPE]]] b) {
+    switch(op) {
+        case 0: return a<b;
+        case 1: return a<=b;
+        case 2: return a>b;
+        default: return a>=b;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,7 @@
+private [[[MAYBE_STATIC]]] [[[EXPR_TYPE]]] _testkit_expr([[[PARAMS]]]) [[[THROWS]]] {
+    [[[SAVE_LOCALS]]]
+    _testkit_stub();
+    if(_testkit_exec_result.is_throw_unchecked())
+        _testkit_orchestrator.unsafe.throwException((Throwable)_testkit_exec_result.get_retval());
+    return ([[[EXPR_OBJECT_TYPE]]])_testkit_exec_result.get_retval();
+}
\ No newline at end of file
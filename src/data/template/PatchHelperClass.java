@@ -0,0 +1,19 @@
+// created on first use; no initializer, which would reset it after a call from the super constructor
+private [[[MAYBE_STATIC]]] transient _testkit_patches_[[[HELPER_ID]]] _testkit_helper_[[[HELPER_ID]]];
+private [[[MAYBE_STATIC]]] class _testkit_patches_[[[HELPER_ID]]] {
+    void _testkit_run_modified_code(int patchid, boolean is_tree_run) {
+        switch(patchid) {
+            [[[RUN_MODIFIED_CODE_CASES]]]
+            default: _testkit_orchestrator.report_fatal("patch id out of bound (in helper [[[HELPER_ID]]] run_modified_code): "+patchid); assert false; break;
+        }
+    }
+
+    void _testkit_apply_saved_context(int patchid, expressapr.testkit.InvokeDetails invoke) {
+        switch(patchid) {
+            [[[APPLY_SAVED_CONTEXT_CASES]]]
+            default: _testkit_orchestrator.report_fatal("patch id out of bound (in helper [[[HELPER_ID]]] apply_saved_context): "+patchid); break;
+        }
+    }
+
+[[[PATCH_WRAPPERS]]]
+}
@@ -1,4 +1,4 @@
-private [[[MAYBE_STATIC]]] [[[RET_TYPE]]] _testkit_modified_code_[[[PATCH_ID]]]() {
+private [[[MAYBE_STATIC]]] [[[RET_TYPE]]] _testkit_modified_code_[[[PATCH_ID]]]([[[PARAMS]]]) {
     if(true) {
         for(;;expressapr.testkit.internal_exceptions.PatchContinue.do_throw()) {
             if(true) {
@@ -10,15 +10,15 @@ private [[[MAYBE_STATIC]]] [[[RET_TYPE]]] _testkit_modified_code_[[[PATCH_ID]]](
     throw new expressapr.testkit.internal_exceptions.PatchBreak();
 }
 
-private [[[MAYBE_STATIC]]] void _testkit_run_modified_code_[[[PATCH_ID]]](boolean is_tree_run) {
+private [[[MAYBE_STATIC]]] void _testkit_run_modified_code_[[[PATCH_ID]]]([[[LEADING_PARAMS]]]boolean is_tree_run) {
     if(is_tree_run) {
         [[[REPORT_CONTEXT_BEFORE]]]
     }
 
     [[[--]]] long begin_ts = java.lang.System.nanoTime();
     try {
-        [[[COMMENTOUT_IF_VOID]]] Object ret = _testkit_modified_code_[[[PATCH_ID]]]();
-        [[[COMMENTOUT_UNLESS_VOID]]] _testkit_modified_code_[[[PATCH_ID]]](); Object ret = null;
+        [[[COMMENTOUT_IF_VOID]]] Object ret = _testkit_modified_code_[[[PATCH_ID]]]([[[ARGS]]]);
+        [[[COMMENTOUT_UNLESS_VOID]]] _testkit_modified_code_[[[PATCH_ID]]]([[[ARGS]]]); Object ret = null;
         _testkit_exec_result.set_return(ret);
     } catch(expressapr.testkit.internal_exceptions.PatchFinish _t) {
         _testkit_exec_result.set_finish();
@@ -1,2 +1,2 @@
 case [[[PATCH_ID]]]:
-    _testkit_run_modified_code_[[[PATCH_ID]]](is_tree_run); break;
\ No newline at end of file
+    _testkit_run_modified_code_[[[WRAPPER_ID]]]([[[LEADING_ARGS]]]is_tree_run); break;
\ No newline at end of file
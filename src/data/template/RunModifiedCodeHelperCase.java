@@ -0,0 +1,3 @@
+case [[[HELPER_ID]]]:
+    if(_testkit_helper_[[[HELPER_ID]]]==null) _testkit_helper_[[[HELPER_ID]]] = new _testkit_patches_[[[HELPER_ID]]]();
+    _testkit_helper_[[[HELPER_ID]]]._testkit_run_modified_code(patchid, is_tree_run); break;
\ No newline at end of file
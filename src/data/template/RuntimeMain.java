@@ -16,7 +16,7 @@ import java.edu.columbia.cs.psl.vmvm.runtime.Reinitializer;
 
 public class Main {
     JUnitCore core = new JUnitCore();
-    TestKitOrchestrator orchestrator = TestKitOrchestrator.v();
+    TestKitOrchestrator orchestrator; // initialized after config is loaded, see `TestKitOrchestrator.SINGLE_RUN_ONLY`
 
     int PATCHES;
     TestResult[] test_results;
@@ -42,6 +42,12 @@ public class Main {
         tree_handleable = cfg.tree_handleable;
         use_test_sel = cfg.use_test_sel;
 
+        boolean some_tree_handleable = false;
+        for(int i=1; i<=PATCHES; i++)
+            some_tree_handleable |= tree_handleable[i];
+        System.setProperty("expressapr.single_run_only", String.valueOf(!some_tree_handleable));
+        orchestrator = TestKitOrchestrator.v();
+
         [[[--]]] System.out.printf("got %d tests\n", cfg.tests.length);
 
         test_results = new TestResult[PATCHES+1];
@@ -0,0 +1,56 @@
+package demo;
+
+public class Ctors {
+    static int count;
+    static int[] shared = new int[1];
+    int x;
+    int y = 5;
+    Counter c;
+
+    public Ctors() { this.x = 1; y++; }
+    public Ctors(int v) { this(); x = v; }
+    public Ctors(Counter c) { this.c = c; }
+    public Ctors(Counter c, int v) { this.c = c; this.c.n = v; }
+    public Ctors(boolean b) { count++; }
+
+    public static int pureNew(int v) { return new Ctors(v).x; }
+    public static int countingNew() { return new Ctors(true).x; }
+    public static int wrap(Counter c) { return new Ctors(c).x; }
+    public static int wrapAndSet(Counter c) { return new Ctors(c, 3).x; }
+    public static int viaInit() { return new Initialized().z; }
+    public static int viaSuper() { return new Sub().x; }
+    public static int viaPureSuper() { return new PureSub(2).x; }
+    public static int viaDefaultSuper() { return new Sub2().x; }
+    public static int viaDefault() { return new Plain().x; }
+    public static String viaLibrary() { return new StringBuilder("a").toString(); }
+}
+
+class Counter {
+    int n;
+}
+
+class Initialized {
+    int z = Ctors.count++;
+}
+
+class Base {
+    int x;
+    Base() { Ctors.shared[0] = 1; }
+    Base(int v) { x = v; }
+}
+
+class Sub extends Base {
+    Sub() { }
+}
+
+class PureSub extends Base {
+    PureSub(int v) { super(v); }
+}
+
+class Plain {
+    int x = 3;
+    { x++; }
+}
+
+class Sub2 extends Base {
+}
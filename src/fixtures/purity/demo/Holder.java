@@ -0,0 +1,20 @@
+package demo;
+
+public class Holder {
+    public int x;
+    public Holder other;
+
+    public static void viaHolder(Holder h) { Holder t = new Holder(); t.other = h; t.other.x = 1; }
+    public static int local() { Holder t = new Holder(); t.other = new Holder(); t.other.x = 1; return t.other.x; }
+    public static void viaArray(Holder h) { Holder[] a = new Holder[] {h}; a[0].x = 2; }
+    public static void viaMerge(Holder h, boolean b) { Holder t = b ? new Holder() : h; t.x = 3; }
+    public static void viaWrapper(Holder h) { new Wrapper(h).bump(); }
+    public static int freshWrapper() { Wrapper w = new Wrapper(new Holder()); w.bump(); return w.inner.x; }
+}
+
+class Wrapper {
+    Holder inner;
+
+    Wrapper(Holder h) { inner = h; }
+    void bump() { inner.x++; }
+}
@@ -9,6 +9,20 @@ public class Args {
     final public static long COMPILE_TIMEOUT_MS_MAX = 180000;
     final public static long COMPILE_TIMEOUT_MS_BASE = 30000;
     public static boolean WRITE_COMPILER_MSG = false;
+    public static boolean IN_PROCESS_COMPILE = true; // fall back to a javac subprocess if turned off or no system compiler
+    public static String COMPILER_BACKEND = "javac"; // "javac" or "ecj" (in-process only)
+    public static String ECJ_JAR_PATH = null; // if null, ecj should be on the classpath
+    public static boolean SYNTAX_PROBE = true; // parse patches separately before the first compile, requires the system compiler
+    public static int COMPILE_SHARD_THREADS = Runtime.getRuntime().availableProcessors();
+    public static int COMPILE_SHARD_MIN_PATCHES = 100; // smaller clusters are compiled in one shard
+    public static boolean BYTECODE_ASSEMBLY = false; // compile unrelated methods only once, see `BytecodeAssembler`, requires in-process compile
+    public static int BASE_CLASS_CACHE_SIZE = 8; // number of unpatched files kept compiled for bytecode assembly
+    public static int PATCHES_PER_HELPER_CLASS = 500; // larger clusters are spread over nested classes, see `PreTransformer.generateClassFieldsAndMethods`
+    public static int PARSED_SOURCE_CACHE_SIZE = 8; // number of target files kept parsed in servant, see `ParsedSourceCache`
+    public static boolean EXPRESSION_INSTRUMENT_POINT = true; // patch only the changed expression if possible, see `PreTransformer.findExpressionSlot`
+    public static boolean PATCH_FAMILIES = true; // patches differing only in literals or comparisons share a wrapper, see `PreTransformer.groupPatchFamilies`
+    public static boolean INSTRUMENT_POINT_RECOVERY = true; // try conservative ip variants on unknown errors outside patches, see `PatchVerifier.recoverInstrumentPoint`
+    public static boolean MULTI_HUNK_PATCHES = false; // let manifest v4 patches change several hunks, merged into one patch area that re-runs code between them, see `PreTransformer.mergeHunks`
 
     // StringTemplate
     public static boolean RUNTIME_DEBUG = false;
@@ -19,7 +33,11 @@ public class Args {
 
     // SideEffectAnalyzer
     final public static boolean ONLY_SAFE_TYPES_IN_TREE = true;
+    public static int SIDEFX_ANALYSIS_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors()); // each thread keeps its own symbol solver
+    public static int SIDEFX_PARALLEL_MIN_PATCHES = 50; // smaller clusters are analyzed in the calling thread
 
     // SidefxDbSource
     final public static boolean POPULATE_CACHE_FOR_SYMBOL_SOLVER = false;
+    public static int RESOLVED_CALL_CACHE_SIZE = 100000; // resolved calls in patches kept across clusters, see `SidefxDbSource.keyCallsInPatches`
+    public static int SOURCE_PURITY_MAX_DEPTH = 4; // project methods deeper in calls from a patch are impure, see `SourcePurityAnalyzer`
 }
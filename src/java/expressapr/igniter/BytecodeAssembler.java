@@ -0,0 +1,184 @@
+package expressapr.igniter;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * Assembles the instrumented classes from a stub compile (see `PreTransformer.setStubUnrelatedMethods`) and a compile
+ * of the unpatched file, which is done once and cached here. Methods stubbed with `throw null` are copied from the
+ * unpatched classes, so javac only has to compile the container method and the schemata for each cluster.
+ */
+public class BytecodeAssembler {
+    // unpatched classes by hash of javac cmdline and source
+    private static final Map<String, Map<String, byte[]>> base_cache = new LinkedHashMap<String, Map<String, byte[]>>(16, .75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, byte[]>> eldest) {
+            return size()>Args.BASE_CLASS_CACHE_SIZE;
+        }
+    };
+
+    public static synchronized Map<String, byte[]> getBaseClasses(String key) {
+        return base_cache.get(key);
+    }
+
+    public static synchronized void putBaseClasses(String key, Map<String, byte[]> classes) {
+        base_cache.put(key, Collections.unmodifiableMap(classes));
+    }
+
+    private static ClassNode readClass(byte[] bytes) {
+        ClassNode node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+        return node;
+    }
+
+    private static boolean isStubbed(MethodNode method) {
+        List<Integer> opcodes = new ArrayList<>();
+        for(AbstractInsnNode insn: method.instructions)
+            if(insn.getOpcode()!=-1) // not a label, line number or frame
+                opcodes.add(insn.getOpcode());
+
+        return opcodes.equals(Arrays.asList(Opcodes.ACONST_NULL, Opcodes.ATHROW));
+    }
+
+    private static MethodNode findMethod(ClassNode cls, String name, String desc) {
+        for(MethodNode method: cls.methods)
+            if(method.name.equals(name) && method.desc.equals(desc))
+                return method;
+        return null;
+    }
+
+    /**
+     * Synthetic names (e.g. `access$000`, `Foo$1`) are numbered per compile, so they may differ in the stub.
+     */
+    private static boolean isSyntheticRef(String s, Set<String> synthetic_classes) {
+        for(String cls: synthetic_classes)
+            if(s.equals(cls) || s.contains("L"+cls+";"))
+                return true;
+        return false;
+    }
+
+    private static boolean isSelfContained(MethodNode method, Set<String> cu_classes, Set<String> synthetic_classes) {
+        for(AbstractInsnNode insn: method.instructions) {
+            String owner, name, desc;
+            if(insn instanceof FieldInsnNode) {
+                owner = ((FieldInsnNode)insn).owner;
+                name = ((FieldInsnNode)insn).name;
+                desc = ((FieldInsnNode)insn).desc;
+            } else if(insn instanceof MethodInsnNode) {
+                owner = ((MethodInsnNode)insn).owner;
+                name = ((MethodInsnNode)insn).name;
+                desc = ((MethodInsnNode)insn).desc;
+            } else if(insn instanceof TypeInsnNode) {
+                owner = ((TypeInsnNode)insn).desc;
+                name = "";
+                desc = "";
+            } else if(insn instanceof MultiANewArrayInsnNode) {
+                owner = "";
+                name = "";
+                desc = ((MultiANewArrayInsnNode)insn).desc;
+            } else if(insn instanceof LdcInsnNode && ((LdcInsnNode)insn).cst instanceof Type) {
+                owner = "";
+                name = "";
+                desc = ((Type)((LdcInsnNode)insn).cst).getDescriptor();
+            } else if(insn instanceof InvokeDynamicInsnNode) {
+                Handle bsm = ((InvokeDynamicInsnNode)insn).bsm;
+                if(!bsm.getOwner().equals("java/lang/invoke/StringConcatFactory")) // lambdas are never stubbed
+                    return false;
+                continue;
+            } else {
+                continue;
+            }
+
+            if(cu_classes.contains(owner) && name.contains("$"))
+                return false;
+            if(isSyntheticRef(owner, synthetic_classes) || isSyntheticRef(desc, synthetic_classes))
+                return false;
+        }
+
+        for(TryCatchBlockNode block: method.tryCatchBlocks)
+            if(block.type!=null && isSyntheticRef(block.type, synthetic_classes))
+                return false;
+
+        return true;
+    }
+
+    /**
+     * @param base_classes Classes of the unpatched file, by binary name.
+     * @param stub_classes Classes of the stubbed patched file, by binary name.
+     * @return Instrumented classes, or null if some stubbed method cannot be taken from the unpatched classes.
+     */
+    public static Map<String, byte[]> assemble(Map<String, byte[]> base_classes, Map<String, byte[]> stub_classes) {
+        Set<String> cu_classes = new HashSet<>();
+        Set<String> synthetic_classes = new HashSet<>();
+        for(String classname: base_classes.keySet()) {
+            String internal_name = classname.replace('.', '/');
+            cu_classes.add(internal_name);
+
+            int idx = internal_name.lastIndexOf('$');
+            if(idx!=-1 && idx+1<internal_name.length() && Character.isDigit(internal_name.charAt(idx+1)))
+                synthetic_classes.add(internal_name);
+        }
+
+        Map<String, byte[]> ret = new HashMap<>();
+        int copied_methods = 0;
+
+        for(Map.Entry<String, byte[]> entry: stub_classes.entrySet()) {
+            ClassReader reader = new ClassReader(entry.getValue());
+            ClassNode cls = new ClassNode();
+            reader.accept(cls, 0);
+            ClassNode base_cls = null;
+            boolean changed = false;
+
+            for(int i=0; i<cls.methods.size(); i++) {
+                MethodNode method = cls.methods.get(i);
+                if(!isStubbed(method))
+                    continue;
+
+                if(base_cls==null && base_classes.containsKey(entry.getKey()))
+                    base_cls = readClass(base_classes.get(entry.getKey()));
+
+                MethodNode base_method = base_cls==null ? null : findMethod(base_cls, method.name, method.desc);
+                if(base_method==null) {
+                    System.out.printf("cannot assemble: %s.%s%s not in unpatched class\n", entry.getKey(), method.name, method.desc);
+                    return null;
+                }
+                if(isStubbed(base_method)) // really `throw null` in the source
+                    continue;
+                if(!isSelfContained(base_method, cu_classes, synthetic_classes)) {
+                    System.out.printf("cannot assemble: %s.%s%s refers to synthetic names\n", entry.getKey(), method.name, method.desc);
+                    return null;
+                }
+
+                cls.methods.set(i, base_method);
+                changed = true;
+                copied_methods++;
+            }
+
+            if(!changed) {
+                ret.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+
+            // copied methods may refer to nested classes not otherwise referred to in the stub
+            Set<String> inner_names = new HashSet<>();
+            for(InnerClassNode inner: cls.innerClasses)
+                inner_names.add(inner.name);
+            for(InnerClassNode inner: base_cls.innerClasses)
+                if(inner_names.add(inner.name))
+                    cls.innerClasses.add(inner);
+
+            ClassWriter writer = new ClassWriter(reader, 0); // keep the constant pool; frames and maxs are copied as well
+            cls.accept(writer);
+            ret.put(entry.getKey(), writer.toByteArray());
+        }
+
+        System.out.printf("assembled %d classes, %d methods from unpatched classes\n", ret.size(), copied_methods);
+        return ret;
+    }
+}
@@ -0,0 +1,102 @@
+package expressapr.igniter;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Persistent record of patches known not to compile, shared by all clusters verified with the same cache file.
+ *
+ * Each line is `context_hash \t patch_hash \t verdict`, where context_hash covers the patched file, the code around
+ * the patch area, the javac cmdline, the compiler backend and the flags of the generated code (see `codegenFlags`).
+ * Only the `C` (compile error) verdict is recorded for now.
+ */
+public class CompileCache {
+    final static String VERDICT_COMPILE_ERROR = "C";
+
+    private Path cache_fn;
+    private String context_hash;
+    private Set<String> failed_patch_hashes = new HashSet<>();
+
+    public CompileCache(Path cache_fn, JSONObject patch_config, String javac_cmdline) throws IOException {
+        this.cache_fn = cache_fn;
+        this.context_hash = sha1(
+            patch_config.getString("filename") + "\0" +
+            patch_config.getString("context_above") + "\0" +
+            patch_config.getString("unpatched") + "\0" +
+            patch_config.getString("context_below") + "\0" +
+            javac_cmdline + "\0" +
+            codegenFlags()
+        );
+
+        if(Files.exists(cache_fn)) {
+            for(String line: Files.readAllLines(cache_fn, StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\t");
+                if(parts.length!=3) // maybe partially written by a killed servant
+                    continue;
+                if(parts[0].equals(context_hash) && parts[2].equals(VERDICT_COMPILE_ERROR))
+                    failed_patch_hashes.add(parts[1]);
+            }
+        }
+    }
+
+    /**
+     * Settings with which the same patch may compile or not, or fail at another location.
+     */
+    private static String codegenFlags() {
+        return String.format(
+            "backend=%s inproc=%b families=%b exprip=%b recovery=%b assembly=%b",
+            Args.COMPILER_BACKEND, Args.IN_PROCESS_COMPILE, Args.PATCH_FAMILIES, Args.EXPRESSION_INSTRUMENT_POINT,
+            Args.INSTRUMENT_POINT_RECOVERY, Args.BYTECODE_ASSEMBLY
+        );
+    }
+
+    public static String sha1(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for(byte b: digest)
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean isKnownCompileError(String patch) {
+        return failed_patch_hashes.contains(sha1(patch));
+    }
+
+    public void addCompileErrors(Collection<String> patches) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(String patch: patches) {
+            String patch_hash = sha1(patch);
+            if(failed_patch_hashes.add(patch_hash))
+                sb.append(context_hash).append('\t').append(patch_hash).append('\t').append(VERDICT_COMPILE_ERROR).append('\n');
+        }
+        if(sb.length()==0)
+            return;
+
+        // several servants may share the workdir
+        try(FileChannel ch = FileChannel.open(cache_fn, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            FileLock lock = ch.lock();
+            try {
+                ch.write(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+            } finally {
+                lock.release();
+            }
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package expressapr.igniter;
 
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class CompileResult {
     private boolean success;
@@ -11,6 +14,12 @@ public class CompileResult {
         public String fn;
         public int line;
         public String errormsg;
+        public String code; // diagnostic key from the compiler (e.g. `compiler.err.missing.ret.stmt`), null if scraped from stdout
+
+        public Failure(String fn, int line, String errormsg, String code) {
+            this(fn, line, errormsg);
+            this.code = code;
+        }
 
         public Failure(String fn, int line, String errormsg) {
             if(fn.startsWith("/")) // remove prefix /
@@ -57,6 +66,29 @@ public class CompileResult {
 
         return new CompileResult(false, error_lines);
     }
+    static CompileResult fromDiagnostics(List<Diagnostic<? extends JavaFileObject>> diagnostics, String workdir_abs) {
+        ArrayList<Failure> error_lines = new ArrayList<>();
+        for(Diagnostic<? extends JavaFileObject> d: diagnostics) {
+            if(d.getKind()!=Diagnostic.Kind.ERROR)
+                continue;
+
+            // only keep the first line, which is what javac prints after `: error:`
+            String errormsg = d.getMessage(Locale.ENGLISH);
+            int nl_idx = errormsg.indexOf('\n');
+            if(nl_idx!=-1)
+                errormsg = errormsg.substring(0, nl_idx);
+
+            String fn = d.getSource()==null ? "<no source>" : d.getSource().getName();
+            if(fn.startsWith(workdir_abs))
+                fn = fn.substring(workdir_abs.length());
+
+            error_lines.add(new Failure(fn, (int)d.getLineNumber(), errormsg, d.getCode()));
+        }
+
+        assert !error_lines.isEmpty() : diagnostics.toString();
+
+        return new CompileResult(false, error_lines);
+    }
     static CompileResult asSuccess() {
         return new CompileResult(true, null);
     }
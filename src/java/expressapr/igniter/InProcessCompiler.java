@@ -0,0 +1,457 @@
+package expressapr.igniter;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs javac inside the servant JVM through `javax.tools`, so each compile pass does not pay for a new javac JVM.
+ * The compiler and its file manager are kept warm across requests (opened jars on the classpath are cached).
+ * Errors are collected as typed diagnostics instead of being scraped from stdout.
+ *
+ * ECJ can be used instead of javac (see `Args.COMPILER_BACKEND`), with the same javac command line.
+ */
+public class InProcessCompiler {
+    final static String ECJ_CLASSNAME = "org.eclipse.jdt.internal.compiler.tool.EclipseCompiler";
+
+    private static final JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    private static JavaCompiler ecj = null;
+
+    private static JavaCompiler file_manager_compiler = null;
+    private static StandardJavaFileManager file_manager = null;
+
+    // file managers are not thread-safe, so each concurrent shard borrows one from here
+    private static final ConcurrentLinkedQueue<StandardJavaFileManager> shard_file_managers = new ConcurrentLinkedQueue<>();
+    private static JavaCompiler shard_file_managers_compiler = null;
+    private static ForkJoinPool shard_pool = null;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "in-process-javac");
+        t.setDaemon(true); // javac ignores interruption, so a timed out compile should not block servant exit
+        return t;
+    });
+
+    private static synchronized JavaCompiler getEcj() {
+        if(ecj==null) {
+            try {
+                ClassLoader loader = InProcessCompiler.class.getClassLoader();
+                if(Args.ECJ_JAR_PATH!=null)
+                    loader = new URLClassLoader(new URL[] {Paths.get(Args.ECJ_JAR_PATH).toUri().toURL()}, loader);
+
+                ecj = (JavaCompiler)loader.loadClass(ECJ_CLASSNAME).getConstructor().newInstance();
+            } catch(ReflectiveOperationException | IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("cannot load ecj from "+Args.ECJ_JAR_PATH+": "+e);
+            }
+        }
+        return ecj;
+    }
+
+    private static JavaCompiler getCompiler() {
+        switch(Args.COMPILER_BACKEND) {
+            case "javac":
+                return javac;
+            case "ecj":
+                return getEcj();
+            default:
+                throw new RuntimeException("unknown compiler backend: "+Args.COMPILER_BACKEND);
+        }
+    }
+
+    public static boolean isAvailable() {
+        // null when running on a JRE without tools.jar
+        return getCompiler()!=null;
+    }
+
+    public static boolean isJavac() {
+        return getCompiler()==javac;
+    }
+
+    /**
+     * Split a /bin/sh command line into words. Supports the quoting produced by python's `shlex.quote`.
+     */
+    static List<String> splitCmdline(String cmdline) {
+        List<String> ret = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean in_word = false;
+
+        for(int i=0; i<cmdline.length(); i++) {
+            char c = cmdline.charAt(i);
+
+            if(c=='\'') {
+                int end = cmdline.indexOf('\'', i+1);
+                if(end==-1)
+                    throw new RuntimeException("unterminated quote in javac cmdline");
+                cur.append(cmdline, i+1, end);
+                i = end;
+                in_word = true;
+            } else if(c=='"') {
+                i++;
+                while(i<cmdline.length() && cmdline.charAt(i)!='"') {
+                    char d = cmdline.charAt(i);
+                    if(d=='\\' && i+1<cmdline.length() && "$`\"\\\n".indexOf(cmdline.charAt(i+1))!=-1)
+                        d = cmdline.charAt(++i);
+                    cur.append(d);
+                    i++;
+                }
+                if(i>=cmdline.length())
+                    throw new RuntimeException("unterminated quote in javac cmdline");
+                in_word = true;
+            } else if(c=='\\' && i+1<cmdline.length()) {
+                cur.append(cmdline.charAt(++i));
+                in_word = true;
+            } else if(Character.isWhitespace(c)) {
+                if(in_word) {
+                    ret.add(cur.toString());
+                    cur.setLength(0);
+                    in_word = false;
+                }
+            } else {
+                cur.append(c);
+                in_word = true;
+            }
+        }
+        if(in_word)
+            ret.add(cur.toString());
+
+        return ret;
+    }
+
+    private static StandardJavaFileManager getFileManager() {
+        JavaCompiler compiler = getCompiler();
+        if(file_manager==null || file_manager_compiler!=compiler) {
+            file_manager = compiler.getStandardFileManager(null, Locale.ENGLISH, StandardCharsets.UTF_8);
+            file_manager_compiler = compiler;
+        }
+        return file_manager;
+    }
+
+    private static class MemorySourceFile extends SimpleJavaFileObject {
+        private final String code;
+
+        MemorySourceFile(URI uri, String code) {
+            super(uri, Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public String getName() {
+            if("file".equals(toUri().getScheme()))
+                return Paths.get(toUri()).toString(); // same as a file object, so that error locations are reported alike
+            else
+                return toUri().getPath();
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    private static class MemoryClassFile extends SimpleJavaFileObject {
+        private final String classname;
+        private final Map<String, byte[]> class_output;
+
+        MemoryClassFile(String classname, Map<String, byte[]> class_output) {
+            super(URI.create("mem:///"+classname.replace('.', '/')+Kind.CLASS.extension), Kind.CLASS);
+            this.classname = classname;
+            this.class_output = class_output;
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    synchronized(class_output) {
+                        class_output.put(classname, toByteArray());
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Keeps generated class files in memory instead of writing them to the `-d` directory.
+     */
+    private static class MemoryOutputFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, byte[]> class_output;
+
+        MemoryOutputFileManager(StandardJavaFileManager fm, Map<String, byte[]> class_output) {
+            super(fm);
+            this.class_output = class_output;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String classname, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+            if(location==StandardLocation.CLASS_OUTPUT && kind==JavaFileObject.Kind.CLASS)
+                return new MemoryClassFile(classname, class_output);
+            else
+                return super.getJavaFileForOutput(location, classname, kind, sibling);
+        }
+    }
+
+    /**
+     * Split `javac_cmdline` into compiler options and source file names.
+     */
+    private static void parseCmdline(String javac_cmdline, StandardJavaFileManager fm, List<String> options, List<String> source_fns) {
+        JavaCompiler compiler = getCompiler();
+        List<String> argv = splitCmdline(javac_cmdline);
+        if(argv.isEmpty() || !argv.get(0).endsWith("javac"))
+            throw new RuntimeException("not a javac cmdline: "+javac_cmdline);
+
+        for(int i=1; i<argv.size(); i++) {
+            String arg = argv.get(i);
+
+            if(arg.startsWith("-J")) // runtime options for the javac launcher, no use here
+                continue;
+
+            if(compiler!=javac) { // ecj accepts unknown options as flags, so translate javac-only ones here
+                if(arg.equals("-Xmaxerrs"))
+                    arg = "-maxProblems";
+                else if(arg.startsWith("-XD"))
+                    continue;
+            }
+
+            if(arg.startsWith("-")) {
+                int argc = compiler.isSupportedOption(arg);
+                if(argc==-1) // e.g. `-cp`, which is handled by the file manager
+                    argc = fm.isSupportedOption(arg);
+                if(argc==-1)
+                    throw new RuntimeException("unsupported javac option: "+arg);
+
+                options.add(arg);
+                for(int j=0; j<argc && i+1<argv.size(); j++)
+                    options.add(argv.get(++i));
+            } else {
+                source_fns.add(arg);
+            }
+        }
+    }
+
+    private static boolean runTask(JavaCompiler.CompilationTask task, long timeout_ms) {
+        Future<Boolean> future = executor.submit(task);
+        try {
+            return future.get(timeout_ms, TimeUnit.MILLISECONDS);
+        } catch(TimeoutException e) {
+            future.cancel(true);
+            file_manager = null; // still used by the abandoned task
+            throw new RuntimeException("compile timeout");
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+            future.cancel(true);
+            file_manager = null;
+            throw new RuntimeException("compile interrupted: "+e.getMessage());
+        } catch(ExecutionException e) {
+            e.getCause().printStackTrace();
+            file_manager = null;
+            throw new RuntimeException("compiler crashed: "+e.getCause());
+        }
+    }
+
+    private static JavaCompiler.CompilationTask createTask(
+        StandardJavaFileManager fm, String javac_cmdline,
+        Map<String, String> source_overrides, Map<String, byte[]> class_output,
+        DiagnosticCollector<JavaFileObject> diagnostics
+    ) {
+        List<String> options = new ArrayList<>();
+        List<String> source_fns = new ArrayList<>();
+        parseCmdline(javac_cmdline, fm, options, source_fns);
+
+        List<JavaFileObject> units = new ArrayList<>();
+        for(String fn: source_fns) {
+            String abs_fn = Paths.get(fn).toAbsolutePath().toString();
+            if(source_overrides!=null && source_overrides.containsKey(abs_fn))
+                units.add(new MemorySourceFile(Paths.get(abs_fn).toUri(), source_overrides.get(abs_fn)));
+            else
+                for(JavaFileObject f: fm.getJavaFileObjects(fn))
+                    units.add(f);
+        }
+
+        return getCompiler().getTask(
+            isJavac() ? null : new StringWriter(), // ecj prints all problems to stdout otherwise
+            class_output==null ? fm : new MemoryOutputFileManager(fm, class_output),
+            diagnostics, options, null, units
+        );
+    }
+
+    /**
+     * Compile according to a `javac ...` command line, as `/bin/sh -c javac_cmdline` would do.
+     */
+    public static CompileResult compile(String javac_cmdline, String workdir_abs, long timeout_ms) throws IOException {
+        return compile(javac_cmdline, workdir_abs, timeout_ms, null, null);
+    }
+
+    /**
+     * @param source_overrides If not null, source files (by absolute path) in the command line are read from here if present.
+     * @param class_output If not null, class files are put here (by binary name) instead of being written to disk.
+     */
+    public static CompileResult compile(
+        String javac_cmdline, String workdir_abs, long timeout_ms,
+        Map<String, String> source_overrides, Map<String, byte[]> class_output
+    ) throws IOException {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaCompiler.CompilationTask task = createTask(getFileManager(), javac_cmdline, source_overrides, class_output, diagnostics);
+        boolean succ = runTask(task, timeout_ms);
+
+        if(Args.WRITE_COMPILER_MSG) {
+            FileWriter f = new FileWriter(succ ? "compile-succ.txt" : "compile-error.txt");
+            for(Diagnostic<? extends JavaFileObject> d: diagnostics.getDiagnostics()) {
+                f.write(d.toString());
+                f.write('\n');
+            }
+            f.close();
+        }
+
+        if(succ)
+            return CompileResult.asSuccess();
+        else
+            return CompileResult.fromDiagnostics(diagnostics.getDiagnostics(), workdir_abs);
+    }
+
+    /**
+     * Write class files to the `-d` directory of `javac_cmdline`, as the compile would do without `class_output`.
+     */
+    public static void writeClassOutput(String javac_cmdline, Map<String, byte[]> classes) throws IOException {
+        List<String> argv = splitCmdline(javac_cmdline);
+        int idx = argv.indexOf("-d");
+        if(idx==-1 || idx+1>=argv.size())
+            throw new RuntimeException("no class output directory in javac cmdline");
+        Path outdir = Paths.get(argv.get(idx+1));
+
+        for(Map.Entry<String, byte[]> cls: classes.entrySet()) {
+            Path fn = outdir.resolve(cls.getKey().replace('.', '/')+JavaFileObject.Kind.CLASS.extension);
+            Files.createDirectories(fn.getParent());
+            Files.write(fn, cls.getValue());
+        }
+    }
+
+    /**
+     * Only parse each unit in its own compilation unit, so that a syntax error cannot spoil the parser state for others.
+     * Options (e.g. `-source`) are taken from `javac_cmdline`, source files in it are ignored.
+     *
+     * javac stops after parsing, so only errors reported by the parser are found, never unresolved symbols or types.
+     *
+     * @param units Map from unit name (a valid class name) to its source code, which should declare a class of this name.
+     * @return Names of units with syntax errors.
+     */
+    public static Set<String> findSyntaxErrors(String javac_cmdline, Map<String, String> units, long timeout_ms) {
+        assert isJavac() : "syntax check only works with javac";
+
+        StandardJavaFileManager fm = getFileManager();
+        List<String> options = new ArrayList<>();
+        parseCmdline(javac_cmdline, fm, options, new ArrayList<>());
+
+        // stop right after parsing, whether there are errors or not
+        // (units have no imports, so types in signatures are not resolved, which jdk 8 still does when entering)
+        options.add("-XDshould-stop.ifNoError=PARSE"); // jdk 9+
+        options.add("-XDshould-stop.ifError=PARSE");
+        options.add("-XDshouldStopPolicyIfNoError=PARSE"); // jdk 8
+        options.add("-XDshouldStopPolicyIfError=PARSE");
+
+        List<JavaFileObject> unit_files = new ArrayList<>();
+        for(Map.Entry<String, String> unit: units.entrySet())
+            unit_files.add(new MemorySourceFile(URI.create("string:///"+unit.getKey()+JavaFileObject.Kind.SOURCE.extension), unit.getValue()));
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaCompiler.CompilationTask task = javac.getTask(null, fm, diagnostics, options, null, unit_files);
+        runTask(task, timeout_ms);
+
+        Set<String> ret = new HashSet<>();
+        for(Diagnostic<? extends JavaFileObject> d: diagnostics.getDiagnostics()) {
+            if(d.getKind()!=Diagnostic.Kind.ERROR)
+                continue;
+            if(d.getSource()==null) // not related to any unit, e.g. invalid option
+                throw new RuntimeException("syntax check failed: "+d.getMessage(Locale.ENGLISH));
+
+            String name = d.getSource().toUri().getPath();
+            ret.add(name.substring(1, name.length()-JavaFileObject.Kind.SOURCE.extension.length()));
+        }
+        return ret;
+    }
+
+    /**
+     * Compile several versions of the same source file concurrently, each in its own javac task.
+     * Class files are discarded, so it is only useful for finding errors.
+     *
+     * @param source_abs_fn Absolute path of the source file (in the command line) to be replaced.
+     * @param shard_codes Source code of each version.
+     * @return Compile result of each version, in the same order.
+     */
+    public static List<CompileResult> compileShards(
+        String javac_cmdline, String workdir_abs, long timeout_ms,
+        String source_abs_fn, List<String> shard_codes, int parallelism
+    ) {
+        JavaCompiler compiler = getCompiler();
+        ForkJoinPool pool;
+        synchronized(InProcessCompiler.class) {
+            if(shard_pool==null || shard_pool.getParallelism()!=parallelism) {
+                // tasks already submitted to the old pool still run
+                if(shard_pool!=null)
+                    shard_pool.shutdown();
+                shard_pool = new ForkJoinPool(parallelism);
+            }
+            pool = shard_pool;
+            if(shard_file_managers_compiler!=compiler) {
+                shard_file_managers.clear();
+                shard_file_managers_compiler = compiler;
+            }
+        }
+
+        List<ForkJoinTask<CompileResult>> tasks = new ArrayList<>();
+        for(String code: shard_codes) {
+            tasks.add(pool.submit(()->{
+                StandardJavaFileManager fm = shard_file_managers.poll();
+                if(fm==null)
+                    fm = compiler.getStandardFileManager(null, Locale.ENGLISH, StandardCharsets.UTF_8);
+
+                DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+                boolean succ = createTask(
+                    fm, javac_cmdline,
+                    Collections.singletonMap(source_abs_fn, code), new HashMap<>(),
+                    diagnostics
+                ).call();
+
+                shard_file_managers.add(fm);
+
+                if(succ)
+                    return CompileResult.asSuccess();
+                else
+                    return CompileResult.fromDiagnostics(diagnostics.getDiagnostics(), workdir_abs);
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        List<CompileResult> ret = new ArrayList<>();
+        try {
+            for(ForkJoinTask<CompileResult> task: tasks)
+                ret.add(task.get(Math.max(deadline-System.currentTimeMillis(), 1), TimeUnit.MILLISECONDS));
+        } catch(TimeoutException e) {
+            for(ForkJoinTask<CompileResult> task: tasks)
+                task.cancel(true);
+            throw new RuntimeException("compile timeout");
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+            for(ForkJoinTask<CompileResult> task: tasks)
+                task.cancel(true);
+            throw new RuntimeException("compile interrupted: "+e.getMessage());
+        } catch(ExecutionException e) {
+            e.getCause().printStackTrace();
+            throw new RuntimeException("compiler crashed: "+e.getCause());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,324 @@
+package expressapr.igniter;
+
+import com.github.javaparser.Position;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.*;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.stmt.*;
+import com.github.javaparser.ast.type.UnionType;
+
+import java.util.*;
+
+/**
+ * Derives constraints of the instrument point from the container method, which were otherwise learned from javac
+ * errors one compile at a time (see `PreTransformer.report*`).
+ *
+ * It is conservative: a flag is only set if javac would surely complain without it, because a wrong flag changes the
+ * behavior of patches. Anything not derived here is still handled by the compile loop.
+ */
+public class InstrumentPointAnalyzer {
+    private final CallableDeclaration<?> container_method;
+    private final NodeList<BodyDeclaration<?>> container_members;
+    private final Statement ip_stmt;
+    private final Position ip_pos;
+
+    public boolean must_return = false;
+    public boolean cannot_return = false;
+    public boolean cannot_break = false;
+    public boolean cannot_continue = false;
+    public Set<String> uninitialized_vars = new LinkedHashSet<>();
+    public Set<String> final_vars = new LinkedHashSet<>();
+    public Set<String> caught_exceptions = new LinkedHashSet<>();
+
+    private List<Statement> following_stmts = new ArrayList<>(); // may be executed after the ip, in the same invocation
+    private Set<String> vars_declared_without_init = new LinkedHashSet<>();
+    private boolean may_reach_end = true; // whether control surely reaches the end of the method body from ip
+
+    /**
+     * @param ip_pos Position of the (removed) unpatched code, that is, the instrument point.
+     */
+    public InstrumentPointAnalyzer(CallableDeclaration<?> container_method, NodeList<BodyDeclaration<?>> container_members, Statement ip_stmt, Position ip_pos) {
+        this.container_method = container_method;
+        this.container_members = container_members;
+        this.ip_stmt = ip_stmt;
+        this.ip_pos = ip_pos;
+    }
+
+    private static int indexOfNode(List<? extends Node> li, Node node) {
+        // `List.indexOf` compares nodes structurally
+        for(int i=0; i<li.size(); i++)
+            if(li.get(i)==node)
+                return i;
+        return -1;
+    }
+
+    private static boolean isInNestedBody(Node node, Node root) {
+        for(Node cur=node; cur!=root && cur!=null; cur=cur.getParentNode().orElse(null))
+            if(cur instanceof LambdaExpr || cur instanceof ObjectCreationExpr || cur instanceof TypeDeclaration)
+                return true;
+        return false;
+    }
+
+    /**
+     * Whether `stmt` can surely complete normally by JLS 14.22, if it is reached.
+     * Loops and jumps are not analyzed, and considered unsure.
+     */
+    private static boolean surelyCompletesNormally(Statement stmt) {
+        return stmt.findAll(Node.class, (node)->
+            node instanceof ReturnStmt ||
+            node instanceof ThrowStmt ||
+            node instanceof BreakStmt ||
+            node instanceof ContinueStmt ||
+            node instanceof YieldStmt ||
+            node instanceof WhileStmt ||
+            node instanceof DoStmt ||
+            node instanceof ForStmt ||
+            node instanceof LabeledStmt ||
+            node instanceof LocalClassDeclarationStmt ||
+            node instanceof LambdaExpr ||
+            node instanceof ObjectCreationExpr
+        ).isEmpty();
+    }
+
+    private void collectDeclaredVars(Statement stmt) {
+        if(!stmt.isExpressionStmt() || !stmt.asExpressionStmt().getExpression().isVariableDeclarationExpr())
+            return;
+
+        VariableDeclarationExpr decl = stmt.asExpressionStmt().getExpression().asVariableDeclarationExpr();
+        for(VariableDeclarator var: decl.getVariables()) {
+            if(decl.isFinal())
+                final_vars.add(var.getNameAsString());
+            if(!var.getInitializer().isPresent())
+                vars_declared_without_init.add(var.getNameAsString());
+        }
+    }
+
+    private void collectFinalParams(NodeList<Parameter> params) {
+        for(Parameter param: params)
+            if(param.isFinal())
+                final_vars.add(param.getNameAsString());
+    }
+
+    private void addFollowingStmt(Statement stmt) {
+        following_stmts.add(stmt);
+        if(!surelyCompletesNormally(stmt))
+            may_reach_end = false;
+    }
+
+    public void analyze() {
+        boolean in_loop = false;
+        boolean in_switch = false;
+        boolean reached_method = false;
+
+        Node cur = ip_stmt;
+        while(true) {
+            Node parent = cur.getParentNode().orElse(null);
+
+            if(parent==container_method) {
+                collectFinalParams(container_method.getParameters());
+                reached_method = true;
+                break;
+            }
+            else if(parent instanceof LambdaExpr) {
+                collectFinalParams(((LambdaExpr)parent).getParameters());
+                may_reach_end = false;
+                break;
+            }
+            else if(parent instanceof BlockStmt) {
+                NodeList<Statement> stmts = ((BlockStmt)parent).getStatements();
+                int idx = indexOfNode(stmts, cur);
+                assert idx!=-1;
+
+                for(int i=0; i<idx; i++)
+                    collectDeclaredVars(stmts.get(i));
+                for(int i=idx+1; i<stmts.size(); i++)
+                    addFollowingStmt(stmts.get(i));
+            }
+            else if(parent instanceof SwitchEntry) {
+                SwitchEntry entry = (SwitchEntry)parent;
+                int idx = indexOfNode(entry.getStatements(), cur);
+                assert idx!=-1;
+
+                for(int i=0; i<idx; i++)
+                    collectDeclaredVars(entry.getStatements().get(i));
+                for(int i=idx+1; i<entry.getStatements().size(); i++)
+                    addFollowingStmt(entry.getStatements().get(i));
+            }
+            else if(parent instanceof SwitchStmt) {
+                SwitchStmt sw = (SwitchStmt)parent;
+                int idx = indexOfNode(sw.getEntries(), cur);
+                assert idx!=-1;
+
+                // scope of a local var in switch block is the rest of the switch block
+                for(int i=0; i<idx; i++)
+                    for(Statement stmt: sw.getEntries().get(i).getStatements())
+                        collectDeclaredVars(stmt);
+                for(int i=idx+1; i<sw.getEntries().size(); i++) // fall through
+                    for(Statement stmt: sw.getEntries().get(i).getStatements())
+                        addFollowingStmt(stmt);
+
+                in_switch = true;
+                may_reach_end = false; // depends on breaks
+            }
+            else if(parent instanceof IfStmt) {
+                // nothing to do: the other branch is neither in scope nor following
+            }
+            else if(parent instanceof CatchClause) {
+                Parameter param = ((CatchClause)parent).getParameter();
+                if(param.isFinal() || param.getType() instanceof UnionType) // a multi-catch param is implicitly final
+                    final_vars.add(param.getNameAsString());
+            }
+            else if(parent instanceof TryStmt) {
+                TryStmt tr = (TryStmt)parent;
+
+                if(cur==tr.getTryBlock()) {
+                    for(Expression res: tr.getResources()) // resources are implicitly final
+                        if(res.isVariableDeclarationExpr())
+                            for(VariableDeclarator var: res.asVariableDeclarationExpr().getVariables())
+                                final_vars.add(var.getNameAsString());
+
+                    for(CatchClause clause: tr.getCatchClauses()) {
+                        com.github.javaparser.ast.type.Type type = clause.getParameter().getType();
+                        if(type instanceof UnionType)
+                            for(com.github.javaparser.ast.type.Type alt: ((UnionType)type).getElements())
+                                caught_exceptions.add(alt.asString());
+                        else
+                            caught_exceptions.add(type.asString());
+                    }
+                }
+
+                if(tr.getFinallyBlock().isPresent()) {
+                    if(cur==tr.getFinallyBlock().get())
+                        may_reach_end = false; // depends on how the try block completes
+                    else
+                        addFollowingStmt(tr.getFinallyBlock().get());
+                }
+            }
+            else if(parent instanceof WhileStmt || parent instanceof DoStmt) {
+                in_loop = true;
+                may_reach_end = false;
+            }
+            else if(parent instanceof ForStmt) {
+                for(Expression init: ((ForStmt)parent).getInitialization())
+                    if(init.isVariableDeclarationExpr() && init.asVariableDeclarationExpr().isFinal())
+                        for(VariableDeclarator var: init.asVariableDeclarationExpr().getVariables())
+                            final_vars.add(var.getNameAsString());
+
+                in_loop = true;
+                may_reach_end = false;
+            }
+            else if(parent instanceof ForEachStmt) {
+                VariableDeclarationExpr decl = ((ForEachStmt)parent).getVariable();
+                if(decl.isFinal())
+                    for(VariableDeclarator var: decl.getVariables())
+                        final_vars.add(var.getNameAsString());
+
+                in_loop = true;
+                may_reach_end = false;
+            }
+            else if(parent instanceof LabeledStmt || parent instanceof SynchronizedStmt) {
+                // nothing to do
+            }
+            else {
+                // e.g. a switch expression, we are not sure about anything
+                System.out.printf("ip analyzer gave up at %s\n", parent==null ? "null" : parent.getClass().getSimpleName());
+                final_vars.clear();
+                caught_exceptions.clear();
+                return;
+            }
+
+            cur = parent;
+        }
+
+        // `break` and `continue` cannot cross a lambda or a method
+        cannot_break = !in_loop && !in_switch;
+        cannot_continue = !in_loop;
+
+        if(reached_method) {
+            if(may_reach_end && container_method instanceof MethodDeclaration && !((MethodDeclaration)container_method).getType().isVoidType())
+                must_return = true;
+            if(container_method instanceof ConstructorDeclaration)
+                cannot_return = blankFinalAssignedAfterIp();
+        }
+
+        collectUninitializedVars();
+    }
+
+    /**
+     * A local var declared without initializer, and never assigned before ip, is surely unassigned at ip.
+     */
+    private void collectUninitializedVars() {
+        Set<String> maybe_assigned = new HashSet<>();
+
+        container_method.walk(Node.class, (node)->{
+            Expression target;
+            if(node instanceof AssignExpr)
+                target = ((AssignExpr)node).getTarget();
+            else if(node instanceof UnaryExpr && (
+                ((UnaryExpr)node).getOperator().isPostfix() ||
+                ((UnaryExpr)node).getOperator()==UnaryExpr.Operator.PREFIX_INCREMENT ||
+                ((UnaryExpr)node).getOperator()==UnaryExpr.Operator.PREFIX_DECREMENT
+            ))
+                target = ((UnaryExpr)node).getExpression();
+            else
+                return;
+
+            if(!target.isNameExpr())
+                return;
+            if(node.getRange().isPresent() && node.getRange().get().begin.isAfter(ip_pos))
+                return;
+
+            maybe_assigned.add(target.asNameExpr().getNameAsString()); // also when the position is unknown
+        });
+
+        for(String name: vars_declared_without_init)
+            if(!maybe_assigned.contains(name))
+                uninitialized_vars.add(name);
+    }
+
+    /**
+     * In a constructor, returning at ip leaves a blank final field unassigned, if the field is assigned after ip.
+     */
+    private boolean blankFinalAssignedAfterIp() {
+        Set<String> blank_finals = new HashSet<>();
+        for(BodyDeclaration<?> member: container_members) {
+            if(!(member instanceof FieldDeclaration))
+                continue;
+            FieldDeclaration field = (FieldDeclaration)member;
+            if(field.isFinal() && !field.isStatic())
+                for(VariableDeclarator var: field.getVariables())
+                    if(!var.getInitializer().isPresent())
+                        blank_finals.add(var.getNameAsString());
+        }
+        if(blank_finals.isEmpty())
+            return false;
+
+        // a local var or param of the same name shadows the field
+        Set<String> local_names = new HashSet<>();
+        for(Parameter param: container_method.getParameters())
+            local_names.add(param.getNameAsString());
+        for(VariableDeclarator var: container_method.findAll(VariableDeclarator.class))
+            local_names.add(var.getNameAsString());
+
+        for(Statement stmt: following_stmts) {
+            for(AssignExpr asgn: stmt.findAll(AssignExpr.class)) {
+                if(isInNestedBody(asgn, stmt))
+                    continue;
+
+                Expression target = asgn.getTarget();
+                String name;
+                if(target.isFieldAccessExpr() && target.asFieldAccessExpr().getScope().isThisExpr() && !target.asFieldAccessExpr().getScope().asThisExpr().getTypeName().isPresent())
+                    name = target.asFieldAccessExpr().getNameAsString();
+                else if(target.isNameExpr() && !local_names.contains(target.asNameExpr().getNameAsString()))
+                    name = target.asNameExpr().getNameAsString();
+                else
+                    continue;
+
+                if(blank_finals.contains(name))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
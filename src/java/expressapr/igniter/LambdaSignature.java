@@ -0,0 +1,166 @@
+package expressapr.igniter;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.CastExpr;
+import com.github.javaparser.ast.expr.LambdaExpr;
+import com.github.javaparser.ast.expr.ObjectCreationExpr;
+import com.github.javaparser.ast.stmt.ReturnStmt;
+import com.github.javaparser.ast.type.ClassOrInterfaceType;
+import com.github.javaparser.ast.type.Type;
+import com.github.javaparser.ast.type.WildcardType;
+
+import java.util.*;
+
+/**
+ * Parameter and return types of a lambda, if its target type is a well-known functional interface written down next to
+ * it (e.g. `IntUnaryOperator f = x -> ...`). Symbols are not resolved, so anything else is unknown.
+ */
+public class LambdaSignature {
+    public List<String> param_types;
+    public String ret_type;
+
+    // simple name -> package and signature, where `$n` is the n-th type argument
+    private final static Map<String, String[]> KNOWN_INTERFACES = new HashMap<>();
+
+    private static void addKnown(String pkg, String name, String signature) {
+        KNOWN_INTERFACES.put(name, new String[] {pkg, signature});
+    }
+
+    static {
+        addKnown("java.lang", "Runnable", "->void");
+        addKnown("java.util.concurrent", "Callable", "->$0");
+        addKnown("java.util", "Comparator", "$0,$0->int");
+
+        final String FN = "java.util.function";
+        addKnown(FN, "Supplier", "->$0");
+        addKnown(FN, "Consumer", "$0->void");
+        addKnown(FN, "BiConsumer", "$0,$1->void");
+        addKnown(FN, "Function", "$0->$1");
+        addKnown(FN, "BiFunction", "$0,$1->$2");
+        addKnown(FN, "UnaryOperator", "$0->$0");
+        addKnown(FN, "BinaryOperator", "$0,$0->$0");
+        addKnown(FN, "Predicate", "$0->boolean");
+        addKnown(FN, "BiPredicate", "$0,$1->boolean");
+        addKnown(FN, "BooleanSupplier", "->boolean");
+
+        for(String prim: Arrays.asList("int", "long", "double")) {
+            String cap = Character.toUpperCase(prim.charAt(0)) + prim.substring(1);
+            addKnown(FN, cap+"UnaryOperator", prim+"->"+prim);
+            addKnown(FN, cap+"BinaryOperator", prim+","+prim+"->"+prim);
+            addKnown(FN, cap+"Predicate", prim+"->boolean");
+            addKnown(FN, cap+"Function", prim+"->$0");
+            addKnown(FN, cap+"Supplier", "->"+prim);
+            addKnown(FN, cap+"Consumer", prim+"->void");
+            addKnown(FN, "To"+cap+"Function", "$0->"+prim);
+            addKnown(FN, "To"+cap+"BiFunction", "$0,$1->"+prim);
+        }
+    }
+
+    private LambdaSignature(List<String> param_types, String ret_type) {
+        this.param_types = param_types;
+        this.ret_type = ret_type;
+    }
+
+    /**
+     * The type the lambda is assigned to, if it is written down in the declaration, the cast or the method containing it.
+     */
+    private static Type targetType(LambdaExpr lambda) {
+        Node parent = lambda.getParentNode().orElse(null);
+
+        if(parent instanceof VariableDeclarator && ((VariableDeclarator)parent).getInitializer().orElse(null)==lambda) {
+            Type type = ((VariableDeclarator)parent).getType();
+            return type.isVarType() ? null : type;
+        }
+        if(parent instanceof CastExpr)
+            return ((CastExpr)parent).getType();
+        if(parent instanceof ReturnStmt) {
+            // the return stmt should belong to the method, not to another lambda or class
+            for(Node node=parent.getParentNode().orElse(null); node!=null; node=node.getParentNode().orElse(null)) {
+                if(node instanceof MethodDeclaration)
+                    return ((MethodDeclaration)node).getType();
+                if(node instanceof LambdaExpr || node instanceof ObjectCreationExpr || node instanceof TypeDeclaration)
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the simple name surely refers to the interface in `pkg` in this compilation unit.
+     */
+    private static boolean isImported(CompilationUnit cu, String pkg, String name) {
+        for(TypeDeclaration<?> type: cu.findAll(TypeDeclaration.class))
+            if(type.getNameAsString().equals(name)) // shadowed by a type in this file
+                return false;
+
+        if(pkg.equals("java.lang"))
+            return true;
+        for(ImportDeclaration imp: cu.getImports())
+            if(!imp.isStatic() && (
+                imp.isAsterisk() ? imp.getNameAsString().equals(pkg) : imp.getNameAsString().equals(pkg+"."+name)
+            ))
+                return true;
+        return false;
+    }
+
+    private static String typeArgument(NodeList<Type> args, int idx) {
+        if(args==null) // raw type
+            return "Object";
+        if(idx>=args.size())
+            return null;
+
+        Type arg = args.get(idx);
+        if(arg instanceof WildcardType) {
+            WildcardType wildcard = (WildcardType)arg;
+            if(wildcard.getExtendedType().isPresent())
+                return wildcard.getExtendedType().get().asString();
+            if(wildcard.getSuperType().isPresent())
+                return wildcard.getSuperType().get().asString();
+            return "Object";
+        }
+        return arg.asString();
+    }
+
+    /**
+     * @return The signature, or null if it is unknown.
+     */
+    public static LambdaSignature of(LambdaExpr lambda, CompilationUnit cu) {
+        Type type = targetType(lambda);
+        if(!(type instanceof ClassOrInterfaceType))
+            return null;
+
+        ClassOrInterfaceType cls = (ClassOrInterfaceType)type;
+        String[] known = KNOWN_INTERFACES.get(cls.getNameAsString());
+        if(known==null)
+            return null;
+        if(cls.getScope().isPresent() ? !cls.getScope().get().asString().equals(known[0]) : !isImported(cu, known[0], cls.getNameAsString()))
+            return null;
+
+        NodeList<Type> args = cls.getTypeArguments().orElse(null);
+        if(args!=null && args.isEmpty()) // diamond is not allowed here anyway
+            return null;
+
+        List<String> types = new ArrayList<>();
+        for(String part: known[1].replace("->", ",").split(",", -1)) {
+            String t = part.startsWith("$") ? typeArgument(args, Integer.parseInt(part.substring(1))) : part;
+            if(t==null)
+                return null;
+            types.add(t);
+        }
+
+        // the first part is empty for a nullary interface
+        List<String> params = types.subList(0, types.size()-1);
+        if(params.size()==1 && params.get(0).isEmpty())
+            params = Collections.emptyList();
+        if(params.size()!=lambda.getParameters().size())
+            return null;
+
+        return new LambdaSignature(new ArrayList<>(params), types.get(types.size()-1));
+    }
+}
@@ -4,10 +4,12 @@ import expressapr.igniter.purity.AbstractPuritySource;
 import expressapr.testkit.RuntimeConfig;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 public class Main {
@@ -17,6 +19,8 @@ public class Main {
     String project_test_path = "";
     String project_vendor_path = "testkit_lib";
     String javac_cmdline = "";
+    String class_blob_path = null; // if set, compiled classes are kept in memory and dumped here instead of `-d`
+    String compile_cache_path = null; // if set, see `CompileCache`
     List<String> related_test_classes;
     List<String> all_tests;
 
@@ -25,6 +29,7 @@ public class Main {
     static final String[] COPY_RUNTIME_CLASSNAMES = {
         "DecisionTree",
         "InvokeDetails",
+        "MemoryClassLoader",
         "RuntimeConfig",
         "Test",
         "TestKitExecResult",
@@ -100,6 +105,9 @@ public class Main {
 
     public PatchVerifier generatePatchedClass() throws IOException {
         PatchVerifier v = new PatchVerifier(patches_json_fn, project_root_path, javac_cmdline);
+        v.in_memory_output = class_blob_path!=null;
+        if(compile_cache_path!=null)
+            v.enableCompileCache(Paths.get(compile_cache_path));
 
         if(v.orig_patch_count>0)
             v.verifyAllAndWriteFile();
@@ -139,4 +147,26 @@ public class Main {
 
         cfg.dump(project_root_path+"/_expapr_patch_config.ser");
     }
+
+    /**
+     * Dump classes compiled in memory, to be defined by `MemoryClassLoader` in the test JVM.
+     */
+    public void writeClassBlob(PatchVerifier v) throws IOException {
+        assert v.in_memory_output;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(class_blob_path)));
+        if(v.compiled_patch_count<=0 || v.compiled_classes==null) { // nothing to run
+            out.writeInt(0);
+        } else {
+            out.writeInt(v.compiled_classes.size());
+            for(Map.Entry<String, byte[]> cls: v.compiled_classes.entrySet()) {
+                byte[] name = cls.getKey().getBytes(StandardCharsets.UTF_8); // not `writeUTF`, as the loader decodes standard UTF-8
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeInt(cls.getValue().length);
+                out.write(cls.getValue());
+            }
+        }
+        out.close();
+    }
 }
@@ -0,0 +1,59 @@
+package expressapr.igniter;
+
+import com.github.javaparser.StaticJavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+
+import java.util.*;
+
+/**
+ * Keeps parsed target files in the servant, so that clusters patching the same file do not parse it again.
+ * Key is the hash of the whole unpatched source. Each user gets a clone, because `PreTransformer` modifies the AST.
+ */
+public class ParsedSourceCache {
+    public static class Entry {
+        final public CompilationUnit cu;
+        final public List<Integer> line_offsets; // see `PreTransformer.calcLineOffsets`
+
+        Entry(CompilationUnit cu, List<Integer> line_offsets) {
+            this.cu = cu;
+            this.line_offsets = line_offsets;
+        }
+    }
+
+    private static final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(16, .75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size()>Args.PARSED_SOURCE_CACHE_SIZE;
+        }
+    };
+
+    static List<Integer> calcLineOffsets(String src) {
+        List<Integer> line_offsets = new ArrayList<>();
+        line_offsets.add(0); // skip [0]
+        line_offsets.add(0); // line_offsets[1] = 0
+        int off = -1;
+        while((off=src.indexOf('\n', off+1))!=-1) {
+            line_offsets.add(off+1); // src[off] is '\n', src[off+1] is first char at next line
+        }
+        return Collections.unmodifiableList(line_offsets);
+    }
+
+    /**
+     * @return A freshly parsed or cloned CU of `src`, which can be modified by the caller.
+     */
+    public static synchronized Entry get(String src) {
+        if(Args.PARSED_SOURCE_CACHE_SIZE<=0 || Args.USE_LEXICAL_PRINTING) // lexical info is lost in clones
+            return new Entry(StaticJavaParser.parse(src), calcLineOffsets(src));
+
+        String key = CompileCache.sha1(src);
+        Entry entry = cache.get(key);
+        if(entry==null) {
+            entry = new Entry(StaticJavaParser.parse(src), calcLineOffsets(src));
+            cache.put(key, entry);
+        } else {
+            System.out.println("parsed source cache hit");
+        }
+
+        return new Entry(entry.cu.clone(), entry.line_offsets);
+    }
+}
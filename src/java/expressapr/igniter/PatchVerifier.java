@@ -18,12 +18,82 @@ public class PatchVerifier {
     public int compiled_patch_count;
     public int orig_patch_count;
 
+    // in-memory mode: the patched file is never written, and class files from the last compile are kept here
+    boolean in_memory_output = false;
+    private String patched_code = null;
+    public Map<String, byte[]> compiled_classes = null;
+
+    // bytecode assembly mode: only a stub is compiled (also in memory), and classes are assembled after the last compile
+    private boolean assemble_bytecode = false;
+    private Map<String, byte[]> base_classes = null;
+
+    private CompileCache compile_cache = null;
+    private List<String> orig_src_patches;
+
+    // original ids of patches removed because of an error located in their own code, which are cached
+    private Set<Integer> own_error_orig_ids = new HashSet<>();
+    // original ids of patches that may compile, but are removed because of an ip recovery rule, see `getStatusLine`
+    private Set<Integer> unvalidated_orig_ids = new HashSet<>();
+
+    // unknown error outside patches in the last compile, see `recoverInstrumentPoint`
+    private CompileResult.Failure unknown_ip_failure = null;
+    private boolean recovering_ip = false;
+
+    private boolean syntax_probed = false; // see `findSyntaxErrorPatchIds`
+
     public PatchVerifier(String patches_json_fn, String workdir, String javac_cmdline) throws IOException {
         this.workdir = workdir;
         this.javac_cmdline = javac_cmdline;
         trans = new PreTransformer(patches_json_fn);
         orig_patch_count = trans.getPatchCount();
         rel_patched_fn = trans.patch_config.getString("filename");
+
+        orig_src_patches = new ArrayList<>();
+        for(int i=1; i<=orig_patch_count; i++)
+            orig_src_patches.add(trans.getPatchSource(i));
+    }
+
+    /**
+     * Skip patches known not to compile, and record new ones, in `cache_fn`.
+     */
+    public void enableCompileCache(Path cache_fn) throws IOException {
+        compile_cache = new CompileCache(cache_fn, trans.patch_config, javac_cmdline);
+    }
+
+    /**
+     * Remove patches already known not to compile in this context.
+     */
+    private void removeCachedCompileErrors() {
+        Set<Integer> known_ids = new HashSet<>();
+        for(int i=1; i<=trans.getPatchCount(); i++)
+            if(compile_cache.isKnownCompileError(trans.getPatchSource(i)))
+                known_ids.add(i);
+
+        if(!known_ids.isEmpty()) {
+            trans.removePatchesBeforePrepare(known_ids);
+            System.out.printf("compile cache removed %d patches, %d left\n", known_ids.size(), trans.getPatchCount());
+        }
+    }
+
+    /**
+     * Only patches with an error in their own code are saved. Others may compile in another cluster or configuration,
+     * e.g. if the schemata is unreachable, or the patch is removed by an ip recovery rule.
+     */
+    private void saveCompileErrorsToCache() throws IOException {
+        List<String> failed_patches = new ArrayList<>();
+        for(int i=1; i<=orig_patch_count; i++)
+            if(own_error_orig_ids.contains(i))
+                failed_patches.add(orig_src_patches.get(i-1));
+
+        compile_cache.addCompileErrors(failed_patches);
+    }
+
+    /**
+     * Should be called before patches of `ids` are removed from `trans`.
+     */
+    private void markPatches(Set<Integer> orig_ids, Collection<Integer> ids) {
+        for(int id: ids)
+            orig_ids.add(trans.orig_patchids.get(id-1));
     }
 
     static private void backupFile(Path fn) throws IOException {
@@ -41,6 +111,11 @@ public class PatchVerifier {
     }
 
     private void writePatchedFile(String content) throws IOException {
+        if(in_memory_output || assemble_bytecode) {
+            patched_code = content;
+            return;
+        }
+
         Files.write(
             Paths.get(workdir).resolve(rel_patched_fn),
             content.getBytes(StandardCharsets.UTF_8),
@@ -48,7 +123,75 @@ public class PatchVerifier {
         );
     }
 
+    private long getCompileTimeoutMs() {
+        return Math.min(Args.COMPILE_TIMEOUT_MS_BASE + Args.COMPILE_TIMEOUT_MS_EACH*trans.getPatchCount(), Args.COMPILE_TIMEOUT_MS_MAX);
+    }
+
     private CompileResult compile() throws IOException {
+        if(in_memory_output || assemble_bytecode) {
+            if(!InProcessCompiler.isAvailable())
+                throw new RuntimeException("in-memory output requires an in-process compiler");
+
+            Map<String, String> sources = new HashMap<>();
+            if(patched_code!=null)
+                sources.put(Paths.get(workdir).resolve(rel_patched_fn).toAbsolutePath().toString(), patched_code);
+
+            compiled_classes = new HashMap<>();
+            return InProcessCompiler.compile(
+                javac_cmdline, Paths.get(workdir).toAbsolutePath().toString(), getCompileTimeoutMs(),
+                sources, compiled_classes
+            );
+        }
+
+        if((Args.IN_PROCESS_COMPILE || !"javac".equals(Args.COMPILER_BACKEND)) && InProcessCompiler.isAvailable())
+            return InProcessCompiler.compile(javac_cmdline, Paths.get(workdir).toAbsolutePath().toString(), getCompileTimeoutMs());
+        else
+            return compileInSubprocess();
+    }
+
+    /**
+     * @return Classes of the unpatched file, or null if it does not compile.
+     */
+    private Map<String, byte[]> compileBaseClasses() throws IOException {
+        Path src_fn = Paths.get(workdir).resolve(rel_patched_fn);
+        String key = CompileCache.sha1(javac_cmdline + "\0" + new String(Files.readAllBytes(src_fn), StandardCharsets.UTF_8));
+
+        Map<String, byte[]> classes = BytecodeAssembler.getBaseClasses(key);
+        if(classes!=null) {
+            System.out.println("base class cache hit");
+            return classes;
+        }
+
+        classes = new HashMap<>();
+        CompileResult result = InProcessCompiler.compile(javac_cmdline, Paths.get(workdir).toAbsolutePath().toString(), getCompileTimeoutMs(), null, classes);
+        if(!result.isSuccess())
+            return null;
+
+        BytecodeAssembler.putBaseClasses(key, classes);
+        return classes;
+    }
+
+    /**
+     * Turn the classes of the last (stub) compile into the instrumented classes, and write them as the compile would do.
+     */
+    private void assembleClasses() throws IOException {
+        Map<String, byte[]> classes = BytecodeAssembler.assemble(base_classes, compiled_classes);
+        if(classes==null) {
+            // patch errors are the same, so the full code compiles as well
+            trans.setStubUnrelatedMethods(false);
+            writePatchedFile(trans.generatePatches());
+            CompileResult result = compile();
+            if(!result.isSuccess())
+                throw new RuntimeException("full code does not compile after the stub compiled");
+            classes = compiled_classes;
+        }
+
+        compiled_classes = classes;
+        if(!in_memory_output)
+            InProcessCompiler.writeClassOutput(javac_cmdline, compiled_classes);
+    }
+
+    private CompileResult compileInSubprocess() throws IOException {
         ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c", javac_cmdline);
         pb.redirectErrorStream(true);
         Process p = pb.start();
@@ -71,8 +214,7 @@ public class PatchVerifier {
         // wait compiler to exits
 
         try {
-            long timeout = Math.min(Args.COMPILE_TIMEOUT_MS_BASE + Args.COMPILE_TIMEOUT_MS_EACH*trans.getPatchCount(), Args.COMPILE_TIMEOUT_MS_MAX);
-            boolean completed = p.waitFor(timeout, TimeUnit.MILLISECONDS);
+            boolean completed = p.waitFor(getCompileTimeoutMs(), TimeUnit.MILLISECONDS);
             if(!completed) { // timeout
                 p.destroyForcibly();
                 throw new RuntimeException("compile timeout");
@@ -108,11 +250,170 @@ public class PatchVerifier {
         }
     }
 
-    private Set<Integer> compileAndGetErrorPatchIds(List<Integer> patch_line_table) throws IOException {
+    /**
+     * Parse each patch wrapper in a separate compilation unit, so that a syntax error in one patch (which stops javac
+     * before attribution) does not hide errors in other patches or corrupt the parser state after it.
+     * Errors of later stages do not cascade: javac still attributes and flow-checks all methods after an error there,
+     * and each error is located in the patch that causes it.
+     * @return Ids of patches with syntax errors.
+     */
+    private Set<Integer> findSyntaxErrorPatchIds() {
+        List<String> wrappers = trans.getPatchWrappers();
+
+        Map<String, String> units = new LinkedHashMap<>();
+        for(int idx=0; idx<wrappers.size(); idx++) {
+            String unitname = "_testkit_probe_"+(idx+1);
+            units.put(unitname, "class "+unitname+" {\n"+wrappers.get(idx)+"\n}\n");
+        }
+
         Set<Integer> ret = new HashSet<>();
+        for(String unitname: InProcessCompiler.findSyntaxErrors(javac_cmdline, units, getCompileTimeoutMs()))
+            ret.add(Integer.parseInt(unitname.substring("_testkit_probe_".length())));
+        markPatches(own_error_orig_ids, ret);
+        return ret;
+    }
 
+    private Set<Integer> compileAndGetErrorPatchIds(List<Integer> patch_line_table) throws IOException {
         System.out.println("compiling");
-        CompileResult result = compile();
+        Set<Integer> own_error_ids = new HashSet<>();
+        Set<Integer> ret = getErrorPatchIds(compile(), patch_line_table, trans.getPatchCount(), own_error_ids);
+        markPatches(own_error_orig_ids, own_error_ids);
+        Set<Integer> broken_ids = handleUnknownInstrumentPointError();
+        markPatches(unvalidated_orig_ids, broken_ids);
+        trans.reportDone();
+
+        if(!broken_ids.isEmpty()) {
+            if(ret==null)
+                ret = new HashSet<>();
+            ret.addAll(broken_ids);
+        }
+        return ret;
+    }
+
+    /**
+     * Called after errors of a compile are applied. An unknown error outside patches may result from the ip flags
+     * reported in the same compile, so recovery is only tried if nothing is reported.
+     * @return Ids of patches to be removed in addition.
+     */
+    private Set<Integer> handleUnknownInstrumentPointError() throws IOException {
+        CompileResult.Failure failure = unknown_ip_failure;
+        unknown_ip_failure = null;
+
+        if(failure==null)
+            return Collections.emptySet();
+        if(trans.hasReportsInThisTurn()) {
+            System.out.printf("unknown error at line %d deferred until ip flags are applied: %s\n", failure.line, failure.errormsg);
+            return Collections.emptySet();
+        }
+
+        trans.reportDone();
+        return recoverInstrumentPoint(failure);
+    }
+
+    /**
+     * Try the recovery rules of `trans` one by one, and keep the first one with which the schemata compiles, apart from
+     * errors in patches. Errors found here are not applied, since the schemata is compiled again after the recovery.
+     * @return Ids of patches that cannot be validated with the kept rule.
+     */
+    private Set<Integer> recoverInstrumentPoint(CompileResult.Failure failure) throws IOException {
+        String desc = failure.fn+" at line "+failure.line+" : "+failure.errormsg;
+        System.out.println("recovering from unknown error: "+desc);
+
+        recovering_ip = true;
+        try {
+            for(String rule: trans.getRecoveryRules(failure.errormsg)) {
+                trans.applyRecoveryRule(rule);
+
+                long ts1 = System.nanoTime();
+                String code = trans.generatePatches();
+                long ts2 = System.nanoTime();
+                Main.total_offline_time_ns += ts2-ts1;
+
+                writePatchedFile(code);
+                try {
+                    getErrorPatchIds(compile(), locatePatchesInCode(code, trans.getPatchCount()), trans.getPatchCount(), new HashSet<>());
+                } catch(RuntimeException e) {
+                    System.out.printf("recovery rule %s failed: %s\n", rule, e.getMessage());
+                    trans.revertRecoveryRule();
+                    continue;
+                } finally {
+                    trans.reportDone();
+                }
+
+                System.out.printf("recovered by rule %s\n", rule);
+                return trans.getPatchesBrokenByRecoveryRule(rule);
+            }
+        } finally {
+            recovering_ip = false;
+        }
+
+        System.err.println("error not in patch candidates: "+desc);
+        throw new RuntimeException("error not in patch candidates: "+desc);
+    }
+
+    /**
+     * Compile patches in several shards concurrently, each shard being a schemata with a part of the patches.
+     * @return Ids of failed patches.
+     */
+    private Set<Integer> compileShardsAndGetErrorPatchIds(int shards) throws IOException {
+        int patches = trans.getPatchCount();
+
+        List<List<Integer>> shard_ids = new ArrayList<>();
+        List<String> shard_codes = new ArrayList<>();
+        for(int i=0; i<shards; i++) {
+            List<Integer> ids = new ArrayList<>();
+            for(int id=1+i*patches/shards; id<=(i+1)*patches/shards; id++)
+                ids.add(id);
+
+            long ts1 = System.nanoTime();
+            shard_codes.add(trans.generatePatchesForShard(ids));
+            long ts2 = System.nanoTime();
+            Main.total_offline_time_ns += ts2-ts1;
+
+            shard_ids.add(ids);
+        }
+
+        System.out.printf("compiling %d shards\n", shards);
+        List<CompileResult> results = InProcessCompiler.compileShards(
+            javac_cmdline, Paths.get(workdir).toAbsolutePath().toString(), getCompileTimeoutMs(),
+            Paths.get(workdir).resolve(rel_patched_fn).toAbsolutePath().toString(), shard_codes, Args.COMPILE_SHARD_THREADS
+        );
+
+        // results are applied one by one, since errors in ip will update flags in `trans`
+        Set<Integer> ret = new HashSet<>();
+        for(int i=0; i<shards; i++) {
+            List<Integer> ids = shard_ids.get(i);
+            Set<Integer> own_error_ids = new HashSet<>();
+            Set<Integer> failed_ids = getErrorPatchIds(results.get(i), locatePatchesInCode(shard_codes.get(i), ids.size()), ids.size(), own_error_ids, true);
+            if(failed_ids!=null)
+                for(int local_id: failed_ids)
+                    ret.add(ids.get(local_id-1));
+            for(int local_id: own_error_ids)
+                own_error_orig_ids.add(trans.orig_patchids.get(ids.get(local_id-1)-1));
+        }
+        Set<Integer> broken_ids = handleUnknownInstrumentPointError(); // ids in the whole schemata
+        markPatches(unvalidated_orig_ids, broken_ids);
+        ret.addAll(broken_ids);
+        trans.reportDone();
+
+        return ret;
+    }
+
+    /**
+     * @param patches Number of patches in the compiled code.
+     * @param own_error_ids Ids of failed patches with an error located in their own code are added to it.
+     * @return Ids of failed patches, or null if compile succeeded.
+     */
+    private Set<Integer> getErrorPatchIds(CompileResult result, List<Integer> patch_line_table, int patches, Set<Integer> own_error_ids) {
+        return getErrorPatchIds(result, patch_line_table, patches, own_error_ids, false);
+    }
+
+    /**
+     * @param in_shard Whether the code is a shard, whose patch ids are local to it and are never grouped in families.
+     */
+    private Set<Integer> getErrorPatchIds(CompileResult result, List<Integer> patch_line_table, int patches, Set<Integer> own_error_ids, boolean in_shard) {
+        Set<Integer> ret = new HashSet<>();
+
         if(!result.isSuccess()) {
             List<CompileResult.Failure> error_lines = result.getErrorLines();
             System.out.printf("failed, got %d error lines\n", error_lines.size());
@@ -133,23 +434,39 @@ public class PatchVerifier {
 
                 //System.out.printf("- error %s:%d (patch %d): %s\n", failure.fn, failure.line, patchid, failure.errormsg);
 
-                if(!(patchid>=1 && patchid<=trans.getPatchCount())) {
+                if(!(patchid>=1 && patchid<=patches)) {
                     // failure not in patched code, probably in ip. let's see if it is a known corner case
 
                     // missing-return
-                    if(failure.errormsg.contains("missing return statement")) {
+                    if(
+                        failure.errormsg.contains("missing return statement")
+                        || failure.errormsg.startsWith("This method must return a result of type ") // ecj
+                    ) {
                         trans.reportInstrumentPointMustReturn();
                     }
+                    // var-init (ecj, reported at the constructor): trailing code initializes a final field, so ip cannot return
+                    else if(
+                        trans.container_method_is_constructor
+                        && failure.errormsg.startsWith("The blank final field ")
+                        && failure.errormsg.endsWith(" may not have been initialized")
+                    ) {
+                        trans.reportInstrumentPointCannotReturn();
+                    }
                     // var-init
-                    else if(failure.errormsg.contains("variable ") && failure.errormsg.contains(" might not have been initialized")) {
+                    else if(
+                        failure.errormsg.contains("variable ") && (
+                            failure.errormsg.contains(" might not have been initialized")
+                            || failure.errormsg.contains(" may not have been initialized") // ecj
+                        )
+                    ) {
                         int idx1 = failure.errormsg.indexOf("variable ") + "variable ".length();
-                        int idx2 = failure.errormsg.indexOf(" might not have");
+                        int idx2 = failure.errormsg.indexOf(" ", idx1);
                         String varname = failure.errormsg.substring(idx1, idx2);
 
-                        if(patchid==trans.getPatchCount()+1) {
+                        if(patchid==patches+1) {
                             // happens before CODEGEN-IP ends: our stub code refers to an uninitialized var
                             trans.reportUninitializedVar(varname);
-                        } else if(patchid==trans.getPatchCount()+2 && trans.container_method_is_constructor) {
+                        } else if(patchid==patches+2 && trans.container_method_is_constructor) {
                             // happends after CODEGEN-IP ends: trailing code initializes a final field, so ip cannot return
                             trans.reportInstrumentPointCannotReturn();
                         } else {
@@ -163,6 +480,7 @@ public class PatchVerifier {
                     else if(
                         failure.errormsg.contains("cannot assign a value to final variable ")
                         || failure.errormsg.contains(" might already have been assigned")
+                        || failure.errormsg.startsWith("The final local variable ") // ecj, also for final params
                     ) {
                         int idx1 = failure.errormsg.indexOf("variable ");
                         assert idx1!=-1;
@@ -187,39 +505,64 @@ public class PatchVerifier {
                         String expname = failure.errormsg.substring(idx1, idx2);
                         trans.reportCaughtExceptionName(expname);
                     }
+                    else if(failure.errormsg.startsWith("Unreachable catch block for ")) { // ecj
+                        int idx1 = "Unreachable catch block for ".length();
+                        int idx2 = failure.errormsg.indexOf(". This exception is never thrown");
+                        String expname = failure.errormsg.substring(idx1, idx2);
+                        trans.reportCaughtExceptionName(expname);
+                    }
                     // control-flow
-                    else if(failure.errormsg.contains("break outside switch or loop")) {
+                    else if(
+                        failure.errormsg.contains("break outside switch or loop")
+                        || failure.errormsg.startsWith("break cannot be used outside of a loop or a switch") // ecj
+                    ) {
                         trans.reportInstrumentPointCannotBreak();
                     }
-                    else if(failure.errormsg.contains("continue outside of loop")) {
+                    else if(
+                        failure.errormsg.contains("continue outside of loop")
+                        || failure.errormsg.startsWith("continue cannot be used outside of a loop") // ecj
+                    ) {
                         trans.reportInstrumentPointCannotContinue();
                     }
                     // IGNORE-schemata-unreachable
-                    else if(failure.errormsg.contains("unreachable statement")) {
+                    else if(
+                        failure.errormsg.contains("unreachable statement")
+                        || failure.errormsg.equals("Unreachable code") // ecj
+                    ) {
                         // the schemata itself is unreachable, hence not patching anything. we can just fail all patches.
                         System.out.println("! schemata unreachable");
-                        for(int i=1; i<=trans.getPatchCount(); i++)
+                        if(recovering_ip) // the rule would drop all patches
+                            throw new RuntimeException("schemata unreachable");
+                        for(int i=1; i<=patches; i++)
                             ret.add(i);
                         return ret;
                     }
                     // ...
+                    else if(Args.INSTRUMENT_POINT_RECOVERY && !recovering_ip) {
+                        // keep on collecting patch errors, and try to recover after this compile
+                        if(unknown_ip_failure==null)
+                            unknown_ip_failure = failure;
+                    }
                     else {
-                        System.err.println("error not in patch candidates: "+ failure.fn+" at line "+(failure.line)+" : "+(failure.errormsg));
+                        if(!recovering_ip) // otherwise the rule just fails
+                            System.err.println("error not in patch candidates: "+ failure.fn+" at line "+(failure.line)+" : "+(failure.errormsg));
                         throw new RuntimeException("error not in patch candidates: "+ failure.fn+" at line "+(failure.line)+" : "+(failure.errormsg));
                     }
+                } else if(!in_shard && trans.reportPatchFamilyError(patchid)) {
+                    // failure in a wrapper shared by several patches, which are compiled separately in the next run
                 } else {
                     // failure in patch
                     ret.add(patchid);
+                    own_error_ids.add(patchid);
 
                     // `() -> {};` in patch will affect parser state and cause nonsense errors after that patch
-                    if(failure.errormsg.contains("illegal start of expression"))
+                    // (only without the syntax probe, which removes such patches before)
+                    if(!syntax_probed && failure.errormsg.contains("illegal start of expression"))
                         return ret;
                 }
 
             }
 
-            trans.reportDone();
-
             if(!found_err)
                 throw new RuntimeException("compilation failed but no error found");
 
@@ -233,9 +576,7 @@ public class PatchVerifier {
     /**
      * @return A list, where insert point of target code will be the patch id (starts from 1)
      */
-    private List<Integer> locatePatchesInCode(String code) {
-        int patches = trans.getPatchCount();
-
+    private List<Integer> locatePatchesInCode(String code, int patches) {
         List<Integer> ret = new ArrayList<>();
 
         int lidx = 0;
@@ -272,6 +613,9 @@ public class PatchVerifier {
 
         compiled_patch_count = -2;
 
+        if(compile_cache!=null)
+            removeCachedCompileErrors();
+
         ts1 = System.nanoTime();
         trans.preparePatches();
         trans.precheckPatches();
@@ -280,17 +624,58 @@ public class PatchVerifier {
         Main.total_offline_time_ns += ts2-ts1;
 
         try {
-            assert compile().isSuccess() : "unpatched code does not compile"; // will be optimized out without `-ea`
+            if(Args.BYTECODE_ASSEMBLY && InProcessCompiler.isAvailable()) {
+                base_classes = compileBaseClasses();
+                if(base_classes==null)
+                    System.out.println("unpatched code does not compile, bytecode assembly disabled");
+            }
+            assemble_bytecode = base_classes!=null;
+            trans.setStubUnrelatedMethods(assemble_bytecode);
 
-            while(true) {
+            if(!assemble_bytecode)
+                assert compile().isSuccess() : "unpatched code does not compile"; // will be optimized out without `-ea`
+
+            boolean sharded = false;
+
+            while(trans.getPatchCount()>0) { // all patches may be unparsable
                 ts1 = System.nanoTime();
                 String code = trans.generatePatches();
                 ts2 = System.nanoTime();
 
                 Main.total_offline_time_ns += ts2-ts1;
 
+                if(!syntax_probed && Args.SYNTAX_PROBE && trans.getPatchCount()>0 && InProcessCompiler.isAvailable() && InProcessCompiler.isJavac()) {
+                    // so that the compile below reports attribution errors of all remaining patches at once
+                    // (only for javac: ecj recovers from syntax errors by itself)
+                    syntax_probed = true;
+                    Set<Integer> failed_ids = findSyntaxErrorPatchIds();
+                    if(!failed_ids.isEmpty()) {
+                        trans.removePatches(failed_ids);
+                        System.out.printf("syntax probe removed %d patches, %d left\n", failed_ids.size(), trans.getPatchCount());
+
+                        if(trans.getPatchCount()==0)
+                            break;
+                        continue;
+                    }
+                }
+
+                int shards = Math.min(Args.COMPILE_SHARD_THREADS, trans.getPatchCount()/Args.COMPILE_SHARD_MIN_PATCHES);
+                if(!sharded && shards>1 && InProcessCompiler.isAvailable()) {
+                    // find most errors concurrently, and the full compile below will confirm the remaining patches
+                    sharded = true;
+                    Set<Integer> failed_ids = compileShardsAndGetErrorPatchIds(shards);
+                    if(!failed_ids.isEmpty()) {
+                        trans.removePatches(failed_ids);
+                        System.out.printf("removed %d patches in shards, %d left\n", failed_ids.size(), trans.getPatchCount());
+
+                        if(trans.getPatchCount()==0)
+                            break;
+                    }
+                    continue; // ip flags may also be updated
+                }
+
                 writePatchedFile(code);
-                List<Integer> patch_line_table = locatePatchesInCode(code);
+                List<Integer> patch_line_table = locatePatchesInCode(code, trans.getPatchCount());
 
                 Set<Integer> failed_ids = compileAndGetErrorPatchIds(patch_line_table);
                 if(failed_ids==null)
@@ -319,6 +704,9 @@ public class PatchVerifier {
                 if(trans.getPatchCount()==0)
                     break;
             }
+
+            if(assemble_bytecode && trans.getPatchCount()>0)
+                assembleClasses();
         } catch(IOException e) {
             e.printStackTrace();
             compiled_patch_count = -1;
@@ -326,14 +714,21 @@ public class PatchVerifier {
         }
 
         compiled_patch_count = trans.getPatchCount();
+
+        if(compile_cache!=null)
+            saveCompileErrorsToCache();
     }
 
+    /**
+     * `?` for compiled patches, to be run; `U` for patches not validated because of an ip recovery rule, which may
+     * still compile; and `C` for other patches, which failed to compile.
+     */
     public String getStatusLine() {
         char[] status = new char[orig_patch_count];
         assert compiled_patch_count<=orig_patch_count;
 
         for(int i=1; i<=orig_patch_count; i++)
-            status[i-1] = 'C';
+            status[i-1] = unvalidated_orig_ids.contains(i) ? 'U' : 'C';
 
         for(int pid: trans.orig_patchids)
             status[pid-1] = '?';
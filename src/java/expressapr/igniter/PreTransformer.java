@@ -2,6 +2,7 @@ package expressapr.igniter;
 
 import com.github.javaparser.*;
 import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
 import com.github.javaparser.ast.Modifier;
 import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.NodeList;
@@ -10,11 +11,15 @@ import com.github.javaparser.ast.expr.*;
 import com.github.javaparser.ast.stmt.*;
 import com.github.javaparser.ast.type.ClassOrInterfaceType;
 import com.github.javaparser.ast.type.PrimitiveType;
+import com.github.javaparser.ast.type.UnknownType;
+import com.github.javaparser.ast.type.VoidType;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -32,15 +37,25 @@ public class PreTransformer {
     final static StringTemplate TMPL_PATCH_WRAPPER = StringTemplate.fromTemplateName("PatchWrapper");
     final static StringTemplate TMPL_RUN_MODIFIED_CODE_CASE = StringTemplate.fromTemplateName("RunModifiedCodeCase");
     final static StringTemplate TMPL_APPLY_SAVED_CONTEXT_CASE = StringTemplate.fromTemplateName("ApplySavedContextCase");
+    final static StringTemplate TMPL_PATCH_HELPER_CLASS = StringTemplate.fromTemplateName("PatchHelperClass");
+    final static StringTemplate TMPL_RUN_MODIFIED_CODE_HELPER_CASE = StringTemplate.fromTemplateName("RunModifiedCodeHelperCase");
+    final static StringTemplate TMPL_APPLY_SAVED_CONTEXT_HELPER_CASE = StringTemplate.fromTemplateName("ApplySavedContextHelperCase");
     final static StringTemplate TMPL_REPORT_CONTEXT_BEFORE = StringTemplate.fromTemplateName("ReportContextBefore");
     final static StringTemplate TMPL_REPORT_RESTORE_CONTEXT_AFTER = StringTemplate.fromTemplateName("ReportRestoreContextAfter");
     final static StringTemplate TMPL_APPLY_SAVED_CONTEXT = StringTemplate.fromTemplateName("ApplySavedContext");
     final static StringTemplate TMPL_THROW_EXCEPTION_TO_PLEASE_COMPILER = StringTemplate.fromTemplateName("ThrowExceptionToPleaseCompiler");
+    final static StringTemplate TMPL_EXPR_INSTRUMENT_POINT = StringTemplate.fromTemplateName("ExprInstrumentPoint");
+    final static StringTemplate TMPL_COMPARE_OP = StringTemplate.fromTemplateName("CompareOp");
 
     final static String MARK_CODEGEN_IP_POINT = "--TESTKIT--INSTRUMENT-POINT-HERE";
+    final static String INTERFACE_HELPER_CLASS_NAME = "_testkit_members";
+    final static String INTERFACE_SELF_NAME = "_testkit_self";
     final static String MARK_CODEGEN_IP_STUB = "--TESTKIT--CODEGEN-IP-STUB";
     final static String MARK_CODEGEN_CLASS_POINT = "--TESTKIT--CODEGEN-POINT-HERE";
+    final static String IP_EXPR_PLACEHOLDER = "_testkit_expr_ip";
     final public static String MARK_CODEGEN_PATCHSTART = "--TESTKIT--CODEGEN-PATCHSTART-";
+    final static String FAMILY_PARAM_PREFIX = "_testkit_p";
+    final static String COMPARE_OP_METHOD = "_testkit_cmp";
 
     public List<Integer> orig_patchids; // map pid after removal -> orig pid
 
@@ -57,6 +72,16 @@ public class PreTransformer {
 
     private Set<String> report_in_this_turn = new HashSet<>();
 
+    /**
+     * Reported flags before a recovery rule is applied, see `applyRecoveryRule`.
+     */
+    private static class InstrumentPointFlags {
+        Set<String> vars_uninitialized, final_vars_assigned, caught_exceptions, reports;
+        Set<Integer> patchids_out_of_family;
+        boolean must_return, cannot_return, cannot_break, cannot_continue;
+    }
+    private InstrumentPointFlags flags_before_recovery;
+
     // initialized in constructor
 
     public String patches_json_fn;
@@ -80,13 +105,24 @@ public class PreTransformer {
     private BlockStmt container_block;
     private CallableDeclaration<?> container_method; // maybe constructor
     public boolean container_method_is_constructor = false;
+    private boolean container_method_is_initializer = false; // synthetic method lifted from an initializer, see `liftInitializerIntoMethod`
+    private boolean container_method_is_field_initializer = false;
     private boolean container_method_is_generic = false;
-    private ClassOrInterfaceDeclaration container_class;
-    public String rettype;
+    private TypeDeclaration<?> container_class; // innermost named type, which declares `container_members` unless it is anonymous
+    private NodeList<BodyDeclaration<?>> container_members; // of the class body declaring the container method
+    private boolean container_in_anonymous_class = false; // or an enum constant body, where static members are not allowed
+    private boolean container_in_interface = false; // see `adaptCodegenToInterface`
+    private LambdaExpr container_lambda; // innermost lambda containing the patch area in the container method, or null
+    private LambdaSignature container_lambda_signature; // null if unknown
+    private Statement lambda_body_stmt; // made from the expression body of a lambda, ranged as the expression
+    public String rettype; // type of values returned by patches, which is the expression type if `is_expr_ip`
 
     private boolean is_if_cond;
     private ExpressionStmt if_decl_stmt;
 
+    public boolean is_expr_ip; // the patched expression is replaced by a call, instead of the statements around it
+    private Expression expr_slot; // the replaced expression, see `findExpressionSlot`
+
     private boolean schemata_use_static_fields;
 
     // initialized in collectPatchedStmts
@@ -94,6 +130,10 @@ public class PreTransformer {
     private List<Statement> stmts_unpatched;
     List<List<Statement>> stmts_patches;
     public boolean have_stmts_after_patch_area;
+    private Statement ip_stmt;
+    private Expression ip_expr; // placeholder replacing `expr_slot` if `is_expr_ip`, otherwise null
+    private String[] codegen_skeleton = null; // printed cu split at class point and ip point, initialized on first use
+    private boolean stub_unrelated_methods = false; // see `setStubUnrelatedMethods`
 
     /*-- ↑ PREPARE ----- CODEGEN ↓ --*/
 
@@ -101,6 +141,7 @@ public class PreTransformer {
 
     private Map<String, Variable> vars_accessible_in_patch; // declared above the patch area, so that they are prefixed in occurrences
     private Map<String, Variable> vars_generated_in_patch; // declared in the unpatch code, and actually accessed by code below the patch area
+    private Set<String> vars_captured_in_patch = new HashSet<>(); // declared outside `container_lambda`, thus effectively final
     private List<Set<Variable>> fields_may_modified_in_patch; // including pseudo fields with prefixed name
     public List<Boolean> tree_handleable;
 
@@ -111,10 +152,21 @@ public class PreTransformer {
     // initialized in generateInstrumentPoint
 
     private String codegen_ip;
+    private String codegen_ip_method; // `_testkit_expr` if `is_expr_ip`, goes into codegen_class
 
     // initialized in generateClassFieldsAndMethods
 
     private String codegen_class;
+    private List<String> codegen_patch_wrappers; // for each patch, the generated methods in codegen_class
+
+    // initialized in groupPatchFamilies
+
+    private List<Integer> family_leader_of_patch; // idx of the patch whose wrapper is used, which is itself if not in a family
+    private List<String> family_args_of_patch; // leading args for the wrapper, empty if not in a family
+    private Map<Integer, ParameterizedPatch> family_leader_patches; // by idx of leader
+    private Map<Integer, List<Integer>> patch_families; // by id of leader, ids of all members
+    private Set<Integer> patchids_out_of_family = new HashSet<>(); // orig pid, see `reportPatchFamilyError`
+    private boolean group_patch_families = true; // turned off for shards, see `generatePatchesForShard`
 
     /**
      * Returns the position of the last char in str.
@@ -126,6 +178,16 @@ public class PreTransformer {
         return new Position(line, col);
     }
 
+    /**
+     * Same as `node.findAncestor(type).isPresent()`, without its unchecked generic varargs array.
+     */
+    private static boolean hasAncestor(Node node, Class<? extends Node> type) {
+        for(Node cur=node.getParentNode().orElse(null); cur!=null; cur=cur.getParentNode().orElse(null))
+            if(type.isInstance(cur))
+                return true;
+        return false;
+    }
+
     /*
     static {
         // setup symbol solver
@@ -182,28 +244,19 @@ public class PreTransformer {
 //        FileWriter writer = new FileWriter("data/temp/out.java");
 //        writer.write(src_allcode);
 //        writer.close();
-        cu = StaticJavaParser.parse(src_allcode);
+        ParsedSourceCache.Entry parsed = ParsedSourceCache.get(src_allcode);
+        cu = parsed.cu;
+        line_offsets = parsed.line_offsets;
         TreeStringify.setup(cu);
 
         patch_range = new Range(
             strEndpos(src_above+substrTillFirstSignificantChar(src_unpatched)),
             strEndpos(src_above+substrTillLastSignificantChar(src_unpatched))
         );
-        calcLineOffsets();
 
         sidefx_analyzer = new SideEffectAnalyzer(this);
     }
 
-    private void calcLineOffsets() {
-        line_offsets = new ArrayList<>();
-        line_offsets.add(0); // skip [0]
-        line_offsets.add(0); // line_offsets[1] = 0
-        int off = -1;
-        while((off=src_allcode.indexOf('\n', off+1))!=-1) {
-            line_offsets.add(off+1); // src[off] is '\n', src[off+1] is first char at next line
-        }
-    }
-
     /**
      * Convert {line, col} to source string index.
      */
@@ -214,25 +267,100 @@ public class PreTransformer {
     }
 
     private void readFromJSON(String json_fn) throws IOException {
-        String json_string = new String(Files.readAllBytes(Paths.get(json_fn)), StandardCharsets.UTF_8);
-        JSONObject obj = new JSONObject(json_string);
-        if(!obj.has("manifest_version") || (obj.getInt("manifest_version")!=2 && obj.getInt("manifest_version")!=3))
+        JSONObject obj;
+        try(Reader reader = Files.newBufferedReader(Paths.get(json_fn), StandardCharsets.UTF_8)) {
+            obj = new JSONObject(new JSONTokener(reader));
+        }
+        if(!obj.has("manifest_version") || (obj.getInt("manifest_version")<2 || obj.getInt("manifest_version")>4))
             throw new RuntimeException("json manifest version mismatch: "+json_fn);
 
+        if(obj.getInt("manifest_version")==4)
+            mergeHunks(obj);
+
         src_above = obj.getString("context_above");
         src_unpatched = obj.getString("unpatched");
         src_below = obj.getString("context_below");
 
 
-        JSONArray json_patches = obj.getJSONArray("patches");
+        JSONArray json_patches = (JSONArray)obj.remove("patches"); // not kept twice in `patch_config`
 
         src_patches = new ArrayList<>(json_patches.length());
         for(int i=0; i<json_patches.length(); i++)
-            src_patches.add(json_patches.get(i).toString());
+            src_patches.add(json_patches.getString(i));
 
         patch_config = obj;
     }
 
+    private static String joinHunks(List<String> hunks, JSONArray contexts_between, int begin, int end) {
+        StringBuilder sb = new StringBuilder(hunks.get(begin));
+        for(int i=begin+1; i<end; i++)
+            sb.append(contexts_between.getString(i-1)).append(hunks.get(i));
+        return sb.toString();
+    }
+
+    /**
+     * Manifest v4 has several hunks in one file: `unpatched` and each patch are lists of hunks, separated by
+     * `context_between`. A patch may leave a hunk unchanged by `null`.
+     *
+     * The patch area is narrowed to the hunks changed by any patch, and other hunks become context, then it is the
+     * same as manifest v3. If several hunks are changed, they are merged into one patch area spanning all of them,
+     * which is only allowed by `Args.MULTI_HUNK_PATCHES`.
+     */
+    private static void mergeHunks(JSONObject obj) {
+        JSONArray unpatched = obj.getJSONArray("unpatched");
+        JSONArray contexts_between = obj.getJSONArray("context_between");
+        if(unpatched.length()==0 || contexts_between.length()!=unpatched.length()-1)
+            throw new RuntimeException("manifest v4: context_between should separate unpatched hunks");
+
+        List<String> unpatched_hunks = new ArrayList<>();
+        for(int i=0; i<unpatched.length(); i++)
+            unpatched_hunks.add(unpatched.getString(i));
+
+        JSONArray patches = obj.getJSONArray("patches");
+        List<List<String>> patch_hunks = new ArrayList<>();
+        int first_changed = unpatched_hunks.size(), last_changed = -1;
+        for(int pidx=0; pidx<patches.length(); pidx++) {
+            JSONArray patch = patches.getJSONArray(pidx);
+            if(patch.length()!=unpatched_hunks.size())
+                throw new RuntimeException("manifest v4: hunk count mismatch in patch "+(pidx+1));
+
+            List<String> hunks = new ArrayList<>();
+            for(int i=0; i<patch.length(); i++) {
+                hunks.add(patch.isNull(i) ? unpatched_hunks.get(i) : patch.getString(i));
+                if(!hunks.get(i).equals(unpatched_hunks.get(i))) {
+                    first_changed = Math.min(first_changed, i);
+                    last_changed = Math.max(last_changed, i);
+                }
+            }
+            patch_hunks.add(hunks);
+        }
+
+        if(last_changed==-1) // no patch changes anything
+            first_changed = last_changed = 0;
+        if(first_changed!=last_changed && !Args.MULTI_HUNK_PATCHES)
+            throw new RuntimeException("manifest v4: patches change hunks "+(first_changed+1)+" to "+(last_changed+1)+", which needs the multi_hunk_patches flag");
+
+        int begin = first_changed, end = last_changed+1;
+        JSONArray merged_patches = new JSONArray();
+        for(List<String> hunks: patch_hunks)
+            merged_patches.put(joinHunks(hunks, contexts_between, begin, end));
+
+        StringBuilder above = new StringBuilder(obj.getString("context_above"));
+        for(int i=0; i<begin; i++)
+            above.append(unpatched_hunks.get(i)).append(contexts_between.getString(i));
+        StringBuilder below = new StringBuilder();
+        for(int i=end; i<unpatched_hunks.size(); i++)
+            below.append(contexts_between.getString(i-1)).append(unpatched_hunks.get(i));
+        below.append(obj.getString("context_below"));
+
+        obj.put("context_above", above.toString());
+        obj.put("unpatched", joinHunks(unpatched_hunks, contexts_between, begin, end));
+        obj.put("context_below", below.toString());
+        obj.put("patches", merged_patches);
+        obj.remove("context_between");
+        obj.put("manifest_version", 3);
+    }
+
     private void readFromSrc(String src_fn) throws IOException {
         String src_str = new String(Files.readAllBytes(Paths.get(src_fn)), StandardCharsets.UTF_8);
         final String begin_pattern = "/* BEGIN UNPATCHED */";
@@ -254,6 +382,112 @@ public class PreTransformer {
         src_patches.addAll(pat);
     }
 
+    private static boolean mayBeConstantExpression(Expression expr) {
+        return expr.findAll(Expression.class, (node)->!(
+            node instanceof LiteralExpr ||
+            node instanceof NameExpr ||
+            node instanceof FieldAccessExpr ||
+            node instanceof UnaryExpr ||
+            node instanceof BinaryExpr ||
+            node instanceof ConditionalExpr ||
+            node instanceof CastExpr ||
+            node instanceof EnclosedExpr
+        )).isEmpty();
+    }
+
+    /**
+     * If the patch area is in a field initializer or an initializer block, move that code into a synthetic method
+     * declared just before it, so that it can be the container method. Generated fields are then declared before the
+     * initializer as well, and are ready when it runs.
+     * A field initializer becomes `return <initializer>;`, which is later treated as an expression instrument point.
+     */
+    private void liftInitializerIntoMethod() {
+        Node container = null;
+        for(Node node: cu.findAll(Node.class, (node)->{
+            Optional<Range> range = node.getRange();
+            return (
+                node instanceof CallableDeclaration || node instanceof InitializerDeclaration || node instanceof FieldDeclaration
+            ) && range.isPresent() && range.get().contains(patch_range);
+        }))
+            container = node; // innermost one comes last
+        if(!(container instanceof InitializerDeclaration) && !(container instanceof FieldDeclaration))
+            return;
+
+        Node parent = container.getParentNode().orElse(null);
+        if(!(parent instanceof ClassOrInterfaceDeclaration) || ((ClassOrInterfaceDeclaration)parent).isInterface())
+            throw new RuntimeException("patch area in an initializer not in a class");
+        ClassOrInterfaceDeclaration cls = (ClassOrInterfaceDeclaration)parent;
+
+        boolean is_static = container instanceof InitializerDeclaration ?
+            ((InitializerDeclaration)container).isStatic() :
+            ((FieldDeclaration)container).isStatic();
+        if(is_static && cls.isInnerClass()) // cannot declare a static method there
+            throw new RuntimeException("patch area in a static initializer of an inner class");
+
+        NodeList<Modifier> modifiers = is_static ?
+            new NodeList<>(Modifier.privateModifier(), Modifier.staticModifier()) :
+            new NodeList<>(Modifier.privateModifier());
+        MethodDeclaration method;
+
+        if(container instanceof InitializerDeclaration) {
+            System.out.println("lift initializer block");
+            InitializerDeclaration init = (InitializerDeclaration)container;
+            method = new MethodDeclaration(modifiers, new VoidType(), is_static ? "_testkit_static_init" : "_testkit_instance_init");
+
+            BlockStmt body = init.getBody();
+            init.setBody(new BlockStmt(new NodeList<>(new ExpressionStmt(new MethodCallExpr(method.getNameAsString())))));
+            method.setBody(body);
+
+            // blank final fields cannot be assigned in a method, so they are no longer final
+            Set<String> assigned_names = new HashSet<>();
+            body.walk(AssignExpr.class, (expr)->{
+                if(expr.getTarget() instanceof NameExpr)
+                    assigned_names.add(((NameExpr)expr.getTarget()).getNameAsString());
+                else if(expr.getTarget() instanceof FieldAccessExpr)
+                    assigned_names.add(((FieldAccessExpr)expr.getTarget()).getNameAsString());
+            });
+            for(FieldDeclaration field: cls.getFields())
+                if(
+                    field.isFinal() && field.isStatic()==is_static &&
+                    field.getVariables().stream().noneMatch((decl)->decl.getInitializer().isPresent()) &&
+                    field.getVariables().stream().anyMatch((decl)->assigned_names.contains(decl.getNameAsString()))
+                )
+                    field.setFinal(false);
+        } else {
+            System.out.println("lift field initializer");
+            FieldDeclaration field = (FieldDeclaration)container;
+            VariableDeclarator decl = null;
+            for(VariableDeclarator d: field.getVariables()) {
+                Optional<Expression> init = d.getInitializer();
+                if(init.isPresent() && init.get().getRange().isPresent() && init.get().getRange().get().contains(patch_range))
+                    decl = d;
+            }
+            if(decl==null)
+                throw new RuntimeException("patch area in a field but not in its initializer");
+
+            Expression init = decl.getInitializer().get();
+            if(init instanceof ArrayInitializerExpr)
+                throw new RuntimeException("patch area in an array initializer of a field");
+            if(
+                field.isFinal() &&
+                (decl.getType().isPrimitiveType() || decl.getTypeAsString().equals("String") || decl.getTypeAsString().equals("java.lang.String")) &&
+                mayBeConstantExpression(init)
+            ) // a constant variable may be used in case labels, or inlined into other classes
+                throw new RuntimeException("patch area in a constant field initializer");
+
+            method = new MethodDeclaration(modifiers, decl.getType().clone(), "_testkit_init_"+decl.getNameAsString());
+            decl.setInitializer(new MethodCallExpr(method.getNameAsString()));
+
+            ReturnStmt ret = new ReturnStmt(init);
+            ret.setRange(init.getRange().get()); // so it is found as the patched statement
+            method.setBody(new BlockStmt(new NodeList<>(ret)));
+            container_method_is_field_initializer = true;
+        }
+
+        cls.getMembers().addBefore(method, (BodyDeclaration<?>)container);
+        container_method_is_initializer = true;
+    }
+
     /**
      * Update field `container_block`, `container_method`, `container_class`.
      * Find AST of stmt corresponding to patched area, and its container block.
@@ -262,6 +496,8 @@ public class PreTransformer {
      *   `container_block` is `patched_ast` itself or its parent, which is always a `BlockStmt` anyway.
      */
     private void normalizePatchedAstInBlock() {
+        liftInitializerIntoMethod();
+
         // step 1: locate containing ast node
 
         List<Statement> patched_ast_candidates = cu.findAll(Statement.class, (node)->{
@@ -341,6 +577,20 @@ public class PreTransformer {
                     throw new RuntimeException("unknown position in parent for");
                 blk.getStatements().setParentNode(blk);
             }
+            else if(parent instanceof LambdaExpr) {
+                System.out.println("processing lambda expression");
+                LambdaExpr par = (LambdaExpr)parent;
+                LambdaSignature sig = LambdaSignature.of(par, cu);
+                if(sig==null) // cannot tell whether it is a return or an expression stmt
+                    throw new RuntimeException("patch area in an expression lambda of unknown type");
+
+                Expression body_expr = ((ExpressionStmt)patched_ast).getExpression();
+                Statement stmt = "void".equals(sig.ret_type) ? new ExpressionStmt(body_expr) : new ReturnStmt(body_expr);
+                stmt.setRange(body_expr.getRange().get()); // so that `collectPatchedStmts` finds it
+                par.setBody(new BlockStmt(new NodeList<>(stmt)));
+                patched_ast = stmt;
+                lambda_body_stmt = stmt;
+            }
             else if(parent instanceof ForEachStmt) {
                 System.out.println("processing foreach");
                 ForEachStmt par = (ForEachStmt)parent;
@@ -359,34 +609,94 @@ public class PreTransformer {
 
         assert container_block==patched_ast || container_block==patched_ast.getParentNode().get();
 
-        container_method = container_block.findAncestor(MethodDeclaration.class).orElse(null);
-        if(container_method==null) { // try constructor
-            container_method = container_block.findAncestor(ConstructorDeclaration.class).orElse(null);
-            container_method_is_constructor = true;
-        }
+        container_method = container_block.findAncestor(CallableDeclaration.class).orElse(null);
         if(container_method==null)
             throw new RuntimeException("patch area not in a method");
+        container_method_is_constructor = container_method instanceof ConstructorDeclaration;
 
         container_method.setLineComment(MARK_CODEGEN_CLASS_POINT);
 
-        container_class = container_method.findAncestor(ClassOrInterfaceDeclaration.class).orElse(null);
+        // schemata members are declared in the class body of the container method
+
+        Node body_owner = container_method.getParentNode().orElse(null);
+        if(body_owner instanceof ObjectCreationExpr || body_owner instanceof EnumConstantDeclaration) {
+            System.out.println("deal with anonymous class");
+            container_in_anonymous_class = true;
+            container_members = body_owner instanceof ObjectCreationExpr ?
+                ((ObjectCreationExpr)body_owner).getAnonymousClassBody().get() :
+                ((EnumConstantDeclaration)body_owner).getClassBody();
+        }
+        else if(body_owner instanceof ClassOrInterfaceDeclaration || body_owner instanceof EnumDeclaration) {
+            container_members = ((TypeDeclaration<?>)body_owner).getMembers();
+        }
+        else {
+            throw new RuntimeException("patch area not in a class");
+        }
+
+        container_class = container_method.findAncestor(TypeDeclaration.class).orElse(null);
         if(container_class==null)
             throw new RuntimeException("patch area not in a class");
 
+        boolean class_is_generic = container_class instanceof ClassOrInterfaceDeclaration && ((ClassOrInterfaceDeclaration)container_class).isGeneric();
+        boolean class_is_inner = container_class instanceof ClassOrInterfaceDeclaration && (
+            ((ClassOrInterfaceDeclaration)container_class).isInnerClass() || ((ClassOrInterfaceDeclaration)container_class).isLocalClassDeclaration()
+        );
+
+        if(body_owner instanceof ClassOrInterfaceDeclaration && ((ClassOrInterfaceDeclaration)body_owner).isInterface()) {
+            System.out.println("deal with interface");
+            container_in_interface = true;
+            Optional<String> interface_name = container_class.getFullyQualifiedName();
+            if(!interface_name.isPresent())
+                throw new RuntimeException("patch area in a local interface");
+            cu.addImport(interface_name.get()+"."+INTERFACE_HELPER_CLASS_NAME, true, true);
+        }
+
         //noinspection SimplifiableConditionalExpression
         schemata_use_static_fields = (
-            container_class.isInnerClass() ? false : // inner classes cannot have static fields or methods
+            container_in_anonymous_class ? false : // anonymous classes cannot have static fields or methods
+            container_in_interface ? true : // interfaces cannot have instance fields
+            class_is_inner ? false : // inner classes cannot have static fields or methods
             container_method.isStatic() ? true : // if the container method is static, we have to keep everything static
-            container_class.isGeneric() ? false : // avoid static if the class have generic parameters which cannot be accessed statically
+            container_method_is_constructor && container_class instanceof EnumDeclaration ? false : // enum constructors cannot refer to static fields
+            class_is_generic ? false : // avoid static if the class have generic parameters which cannot be accessed statically
             true // otherwise, keep everything static, which is faster
         );
         rettype = (container_method instanceof ConstructorDeclaration) ? "void" : ((MethodDeclaration)container_method).getTypeAsString();
-        if(container_method.getTypeParameters().size()>0) {
+        if(container_method.getTypeParameters().size()>0 || (container_in_interface && class_is_generic)) { // the latter cannot be in static fields
             System.out.println("deal with generic");
             container_method_is_generic = true;
         }
 
-        // step 3: special treatment for detect if cond
+        // patches in a lambda return from the lambda
+
+        container_lambda = null;
+        for(Node node=container_block; node!=container_method; node=node.getParentNode().get())
+            if(node instanceof LambdaExpr) {
+                container_lambda = (LambdaExpr)node;
+                break;
+            }
+        if(container_lambda!=null) {
+            container_lambda_signature = LambdaSignature.of(container_lambda, cu);
+            System.out.println(container_lambda_signature==null ? "deal with lambda of unknown type" : "deal with lambda");
+            rettype = container_lambda_signature==null ? "void" : container_lambda_signature.ret_type; // patches returning from an unknown one are rejected
+        }
+
+        // step 3: if the patch area is within an expression of known type, only this expression is patched
+
+        is_expr_ip = false;
+        if(Args.EXPRESSION_INSTRUMENT_POINT) {
+            expr_slot = findExpressionSlot(patched_ast);
+            if(expr_slot!=null) {
+                System.out.println("treat expression");
+                is_expr_ip = true;
+                rettype = slotType(expr_slot);
+                return;
+            }
+        }
+        if(container_method_is_field_initializer && container_lambda==null)
+            throw new RuntimeException("patch area in a field initializer cannot be an expression instrument point");
+
+        // step 4: otherwise, special treatment for detect if cond
 
         is_if_cond = false;
         if(patched_ast instanceof IfStmt) {
@@ -430,6 +740,132 @@ public class PreTransformer {
         }
     }
 
+    /**
+     * Returns the type that any expression at the position of `expr` should have, if it is known without resolving
+     * symbols. Otherwise returns null.
+     */
+    private String slotType(Expression expr) {
+        Node parent = expr.getParentNode().orElse(null);
+
+        if(
+            (parent instanceof IfStmt && ((IfStmt)parent).getCondition()==expr) ||
+            (parent instanceof WhileStmt && ((WhileStmt)parent).getCondition()==expr) ||
+            (parent instanceof DoStmt && ((DoStmt)parent).getCondition()==expr) ||
+            (parent instanceof ForStmt && ((ForStmt)parent).getCompare().orElse(null)==expr) ||
+            (parent instanceof ConditionalExpr && ((ConditionalExpr)parent).getCondition()==expr) ||
+            (parent instanceof BinaryExpr && (
+                ((BinaryExpr)parent).getOperator()==BinaryExpr.Operator.AND ||
+                ((BinaryExpr)parent).getOperator()==BinaryExpr.Operator.OR
+            )) ||
+            (parent instanceof UnaryExpr && ((UnaryExpr)parent).getOperator()==UnaryExpr.Operator.LOGICAL_COMPLEMENT)
+        )
+            return "boolean";
+
+        if(parent instanceof VariableDeclarator && ((VariableDeclarator)parent).getInitializer().orElse(null)==expr) {
+            VariableDeclarator decl = (VariableDeclarator)parent;
+            Node decl_expr = decl.getParentNode().orElse(null);
+            if(
+                decl_expr instanceof VariableDeclarationExpr &&
+                ((VariableDeclarationExpr)decl_expr).getVariables().size()==1 && // otherwise previous vars in it are not collected
+                !decl.getType().isVarType() &&
+                decl.getType().getAnnotations().isEmpty() &&
+                !(expr instanceof ArrayInitializerExpr)
+            )
+                return decl.getTypeAsString();
+        }
+
+        if(parent instanceof ReturnStmt && ( // `return;` has no expr
+            container_lambda!=null ? container_lambda_signature!=null : container_method instanceof MethodDeclaration
+        ))
+            return rettype;
+
+        return null;
+    }
+
+    private static Expression assignTarget(Node node) {
+        if(node instanceof AssignExpr)
+            return ((AssignExpr)node).getTarget();
+        if(node instanceof UnaryExpr && (
+            ((UnaryExpr)node).getOperator()==UnaryExpr.Operator.PREFIX_INCREMENT ||
+            ((UnaryExpr)node).getOperator()==UnaryExpr.Operator.PREFIX_DECREMENT ||
+            ((UnaryExpr)node).getOperator()==UnaryExpr.Operator.POSTFIX_INCREMENT ||
+            ((UnaryExpr)node).getOperator()==UnaryExpr.Operator.POSTFIX_DECREMENT
+        ))
+            return ((UnaryExpr)node).getExpression();
+        return null;
+    }
+
+    private static boolean assignsNames(Expression expr) {
+        return !expr.findAll(Expression.class, (node)->{
+            Expression target = assignTarget(node);
+            return target instanceof NameExpr || (target instanceof FieldAccessExpr && ((FieldAccessExpr)target).getScope() instanceof ThisExpr);
+        }).isEmpty();
+    }
+
+    private static boolean assignsNames(Node root, Set<String> names) {
+        return !root.findAll(Expression.class, (node)->{
+            Expression target = assignTarget(node);
+            return target instanceof NameExpr && names.contains(((NameExpr)target).getNameAsString());
+        }).isEmpty();
+    }
+
+    /**
+     * Find the innermost expression containing the patch area whose type is known (see `slotType`). It can be the
+     * instrument point itself, if the unpatched code is an expression there, and no patch assigns a (maybe local) var,
+     * which could not be restored from inside an expression. Patches that are not expressions there fail to compile.
+     * @return The expression, or null if the instrument point should be statements.
+     */
+    private Expression findExpressionSlot(Statement patched_ast) {
+        if(container_method_is_generic || !container_method.findAll(LocalClassDeclarationStmt.class).isEmpty()) // not usable in `_testkit_expr` signature
+            return null;
+
+        List<Expression> candidates = patched_ast.findAll(Expression.class, (node)->{
+            Optional<Range> range = node.getRange();
+            return range.isPresent() && range.get().contains(patch_range);
+        });
+
+        Expression slot = null;
+        for(int i=candidates.size()-1; i>=0; i--) // innermost first
+            if(slotType(candidates.get(i))!=null) {
+                slot = candidates.get(i);
+                break;
+            }
+        if(slot==null)
+            return null;
+
+        for(Node node=slot; node!=container_method; node=node.getParentNode().get())
+            if(
+                (node instanceof LambdaExpr && node!=container_lambda) ||
+                (node instanceof ObjectCreationExpr && ((ObjectCreationExpr)node).getAnonymousClassBody().isPresent()) ||
+                node instanceof TypeDeclaration ||
+                node instanceof ExplicitConstructorInvocationStmt // cannot call instance methods there
+            )
+                return null;
+
+        StringBuilder sb_pfx = new StringBuilder();
+        StringBuilder sb_sfx = new StringBuilder();
+        updateSfxPfxFromRange(sb_pfx, sb_sfx, slot.getRange().get().begin, slot.getRange().get().end);
+
+        try {
+            if(assignsNames(StaticJavaParser.parseExpression(sb_pfx + src_unpatched + sb_sfx)))
+                return null;
+        } catch(ParseProblemException e) {
+            return null;
+        }
+        for(String src: src_patches) {
+            Expression expr;
+            try {
+                expr = StaticJavaParser.parseExpression(sb_pfx + src + sb_sfx);
+            } catch(ParseProblemException e) {
+                continue; // not an expression, which is dropped as a compile error
+            }
+            if(assignsNames(expr))
+                return null;
+        }
+
+        return slot;
+    }
+
     /**
      * Append into `sb_pfx` and `sb_sfx` so that
      * `sb_pfx + code in patch_range + sb_sfx == code in [begin, end]`
@@ -482,7 +918,14 @@ public class PreTransformer {
         StringBuilder sb_pfx = new StringBuilder();
         StringBuilder sb_sfx = new StringBuilder();
 
-        if(is_if_cond) {
+        if(is_expr_ip) {
+            Range slot_range = expr_slot.getRange().get();
+            sb_pfx.append("return ");
+            updateSfxPfxFromRange(sb_pfx, sb_sfx, slot_range.begin, slot_range.end);
+            sb_sfx.append(";");
+
+            stmts_unpatched.add(new ReturnStmt(expr_slot.clone()));
+        } else if(is_if_cond) {
             Expression if_cond = (
                 if_decl_stmt.getExpression().asVariableDeclarationExpr()
                     .getVariables().get(0)
@@ -515,10 +958,80 @@ public class PreTransformer {
             } else {
                 assert stmts_unpatched.isEmpty();
             }
+
+            if(stmts_unpatched.size()==1 && stmts_unpatched.get(0)==lambda_body_stmt) { // its range is only the expression
+                if(lambda_body_stmt instanceof ReturnStmt)
+                    sb_pfx.insert(0, "return ");
+                sb_sfx.append(";");
+            }
         }
 
         // replace unpatched part to a MARK_INST_POINT
 
+        if(is_expr_ip) {
+            ip_expr = new NameExpr(IP_EXPR_PLACEHOLDER);
+            ip_expr.setLineComment(MARK_CODEGEN_IP_POINT);
+            expr_slot.replace(ip_expr);
+            have_stmts_after_patch_area = false; // patches are single return stmts, which are always fine
+        } else {
+            replaceStmtsWithInstrumentPoint();
+        }
+
+        // gen ast of patched_stmts
+
+        stmts_patches = new ArrayList<>();
+        List<Integer> unparsable_idxs = new ArrayList<>();
+
+        for(int idx=0; idx<src_patches.size(); idx++) {
+            String patch_str = sb_pfx + src_patches.get(idx) + sb_sfx;
+            try {
+                BlockStmt blk = StaticJavaParser.parseBlock("{" + patch_str + "}");
+                StaticJavaParser.parseBlock(blk.toString()); // xxx: parse `{();}` gets `{()->{};}`, which is invalid
+                if(is_expr_ip && !(blk.getStatements().size()==1 && blk.getStatement(0).isReturnStmt())) { // e.g. `x); foo(`
+                    System.out.printf("patch is not an expression: << %s >>\n", patch_str);
+                    unparsable_idxs.add(idx);
+                    continue;
+                }
+                if(container_method_is_initializer && container_lambda==null && !is_expr_ip && returnsFrom(blk)) { // compiles in the lifted method, but not in the initializer
+                    System.out.printf("patch returns from an initializer: << %s >>\n", patch_str);
+                    unparsable_idxs.add(idx);
+                    continue;
+                }
+                if(container_lambda!=null && container_lambda_signature==null && !is_expr_ip && returnsFrom(blk))
+                    throw new RuntimeException("patch returns from a lambda of unknown type");
+                stmts_patches.add(blk.getStatements());
+            } catch(ParseProblemException e) {
+                //e.printStackTrace();
+                System.out.printf("failed to parse patch: << %s >>\n", patch_str);
+                unparsable_idxs.add(idx);
+            }
+        }
+
+        // drop unparsable patches now, so they will not cost a compile
+        Set<Integer> unparsable_ids = new HashSet<>();
+        for(int idx: unparsable_idxs)
+            unparsable_ids.add(idx+1);
+        removePatchesBeforePrepare(unparsable_ids);
+        if(!unparsable_idxs.isEmpty())
+            System.out.printf("removed %d unparsable patches, %d left\n", unparsable_idxs.size(), src_patches.size());
+    }
+
+    /**
+     * Whether there is a `return` in `root` that is not in a nested lambda or class.
+     */
+    private static boolean returnsFrom(Node root) {
+        return !root.findAll(ReturnStmt.class, (ret)->{
+            for(Node node=ret; node!=root; node=node.getParentNode().get())
+                if(node instanceof LambdaExpr || node instanceof BodyDeclaration)
+                    return false;
+            return true;
+        }).isEmpty();
+    }
+
+    /**
+     * Replace `stmts_unpatched` in `container_block` with `ip_stmt`.
+     */
+    private void replaceStmtsWithInstrumentPoint() {
         int instrument_point_idx = -1;
 
         if(stmts_unpatched.isEmpty()) {
@@ -550,28 +1063,9 @@ public class PreTransformer {
         have_stmts_after_patch_area = container_block.getStatements().size()>instrument_point_idx;
 
         // xxx: JavaParser ignores comments for an empty stmt
-        Statement ip_stmt = new EmptyStmt();
+        ip_stmt = new EmptyStmt();
         container_block.getStatements().add(instrument_point_idx, ip_stmt);
         ip_stmt.setLineComment(MARK_CODEGEN_IP_POINT);
-
-        // gen ast of patched_stmts
-
-        stmts_patches = new ArrayList<>();
-
-        for(String patch_str_raw: src_patches) {
-            String patch_str = sb_pfx + patch_str_raw + sb_sfx;
-            NodeList<Statement> parsed_stmts;
-            try {
-                BlockStmt blk = StaticJavaParser.parseBlock("{" + patch_str + "}");
-                StaticJavaParser.parseBlock(blk.toString()); // xxx: parse `{();}` gets `{()->{};}`, which is invalid
-                parsed_stmts = blk.getStatements();
-            } catch(ParseProblemException e) {
-                //e.printStackTrace();
-                System.out.printf("failed to parse patch: << %s >>\n", patch_str);
-                parsed_stmts = StaticJavaParser.parseBlock("{\"TESTKIT - patch parse failed\";}").getStatements();
-            }
-            stmts_patches.add(parsed_stmts);
-        }
     }
 
     /**
@@ -583,7 +1077,7 @@ public class PreTransformer {
         // collect fields
 
         Map<String, Variable> all_fields = new HashMap<>();
-        for(BodyDeclaration<?> bodydecl: container_class.getMembers()) {
+        for(BodyDeclaration<?> bodydecl: container_members) {
             if(bodydecl instanceof FieldDeclaration) {
                 addDeclIntoVarList(
                     all_fields,
@@ -662,11 +1156,15 @@ public class PreTransformer {
         if(vars_accessible_in_patch==null) {
             vars_accessible_in_patch = new HashMap<>();
 
-            // collect decls: walk up the container_block until method body
+            Set<String> lambda_local_names = null; // declared in `container_lambda`, others are captured
+            Set<String> untyped_lambda_params = new HashSet<>();
+
+            // collect decls: walk up the container_block (or the ip expr, which may be in a loop header) until method body
+            Node prev = null;
             for (
-                Node node = container_block;
-                node!=null && !(node instanceof MethodDeclaration);
-                node = node.getParentNode().orElse(null)
+                Node node = is_expr_ip ? ip_expr : container_block;
+                node!=null && node!=container_method;
+                prev = node, node = node.getParentNode().orElse(null)
             ) {
                 if (node instanceof BlockStmt) {
                     for (Node sub: node.getChildNodes())
@@ -681,7 +1179,7 @@ public class PreTransformer {
                                 (VariableDeclarationExpr)((ExpressionStmt)sub).getExpression()
                             );
                         }
-                } else if (node instanceof ForEachStmt) {
+                } else if (node instanceof ForEachStmt && prev==((ForEachStmt)node).getBody()) {
                     addDeclIntoVarList(
                         vars_accessible_in_patch,
                         ((ForEachStmt) node).getVariable()
@@ -698,6 +1196,22 @@ public class PreTransformer {
                                 (VariableDeclarationExpr)sub
                             );
                         }
+                } else if (node instanceof LambdaExpr) {
+                    LambdaExpr lambda = (LambdaExpr)node;
+                    LambdaSignature sig = lambda==container_lambda ? container_lambda_signature : LambdaSignature.of(lambda, cu);
+                    for(int i=0; i<lambda.getParameters().size(); i++) {
+                        Parameter param = lambda.getParameter(i);
+                        String type = !(param.getType() instanceof UnknownType) ? param.getTypeAsString() : sig!=null ? sig.param_types.get(i) : null;
+                        if(type==null) {
+                            untyped_lambda_params.add(param.getNameAsString());
+                            continue;
+                        }
+                        vars_accessible_in_patch.put(param.getNameAsString(), new Variable(type, param.getNameAsString(), param.isFinal()));
+                        if(param.isFinal())
+                            final_vars_assigned_in_ip.add(param.getNameAsString());
+                    }
+                    if(lambda_local_names==null)
+                        lambda_local_names = new HashSet<>(vars_accessible_in_patch.keySet());
                 } else if (node instanceof ExpressionStmt) {
                     if(
                         node.getRange().isPresent() &&
@@ -722,6 +1236,14 @@ public class PreTransformer {
                     final_vars_assigned_in_ip.add(param.getNameAsString());
             }
 
+            // captured vars are read into fields, but never written back
+            if(lambda_local_names!=null)
+                for(String name: vars_accessible_in_patch.keySet())
+                    if(!lambda_local_names.contains(name)) {
+                        vars_captured_in_patch.add(name);
+                        final_vars_assigned_in_ip.add(name);
+                    }
+
             // generated final fields is a special kind of var
             for(Variable var: final_fields_initialized_in_ip) {
                 vars_accessible_in_patch.put(var.name, var);
@@ -751,6 +1273,8 @@ public class PreTransformer {
                 for(Statement stmt: patch) {
                     stmt.walk(NameExpr.class, (expr)->{
                         String name = expr.getNameAsString();
+                        if(untyped_lambda_params.contains(name)) // it cannot be moved into a field
+                            throw new RuntimeException("cannot determine type of lambda parameter "+name);
                         if(!all_fields.containsKey(name)) {
                             return; // maybe some external name or just a faulty patch, leave it to javac
                         }
@@ -839,7 +1363,7 @@ public class PreTransformer {
      * This process saves time and avoids compile errors (e.g. `break`ing in ip may cause missing-return error).
      */
     private void detectCtrlFlowInPatches() {
-        if(is_if_cond) {
+        if(is_if_cond || is_expr_ip) {
             // expr in if cond cannot break or continue
             instrument_point_cannot_break = true;
             instrument_point_cannot_continue = true;
@@ -870,6 +1394,11 @@ public class PreTransformer {
      * Add instrument routine at patch area.
      */
     private void generateInstrumentPoint() {
+        if(is_expr_ip) {
+            generateExprInstrumentPoint();
+            return;
+        }
+
         ArrayList<Statement> instrument_stmts = new ArrayList<>();
 
         // save local vars
@@ -884,6 +1413,11 @@ public class PreTransformer {
 
         // call stub
 
+        if(container_in_interface && !container_method.isStatic())
+            instrument_stmts.add(new ExpressionStmt(new AssignExpr(
+                new NameExpr(INTERFACE_SELF_NAME), new ThisExpr(), AssignExpr.Operator.ASSIGN
+            )));
+
         ExpressionStmt call_stub_stmt = new ExpressionStmt(new MethodCallExpr("_testkit_stub"));
         call_stub_stmt.setLineComment(MARK_CODEGEN_IP_STUB);
         instrument_stmts.add(call_stub_stmt);
@@ -940,6 +1474,17 @@ public class PreTransformer {
                 .done()
         ).getStatements());
 
+        // throw checked exceptions to make compiler happy
+        // (before the must-return throw, otherwise they are unreachable)
+
+        for(String exp: caught_exception_in_ip)
+            instrument_stmts.addAll(StaticJavaParser.parseBlock(
+                TMPL_THROW_EXCEPTION_TO_PLEASE_COMPILER.set(
+                    "EXP_NAME",
+                    exp
+                ).done()
+            ).getStatements());
+
         // control flow goes on
 
         if(instrument_point_must_return) {
@@ -951,16 +1496,6 @@ public class PreTransformer {
             )));
         }
 
-        // throw checked exceptions to make compiler happy
-
-        for(String exp: caught_exception_in_ip)
-            instrument_stmts.addAll(StaticJavaParser.parseBlock(
-                TMPL_THROW_EXCEPTION_TO_PLEASE_COMPILER.set(
-                    "EXP_NAME",
-                    exp
-                ).done()
-            ).getStatements());
-
         // store into codegen_ip
 
         StringBuilder ip_sb = new StringBuilder();
@@ -970,6 +1505,43 @@ public class PreTransformer {
         }
 
         codegen_ip = "\n/*-- BEGIN TESTKIT CODEGEN IP --*/\n" + ip_sb + "\n/*-- END TESTKIT CODEGEN IP --*/\n";
+        codegen_ip_method = null;
+    }
+
+    /**
+     * Initialize `codegen_ip` and `codegen_ip_method` if `is_expr_ip`.
+     * The patched expression becomes a call to `_testkit_expr`, which takes local vars as arguments and evaluates to
+     * the value returned by the patch. Patches cannot assign vars (see `findExpressionSlot`), so nothing is restored.
+     */
+    private void generateExprInstrumentPoint() {
+        List<String> params = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+        StringBuilder save_sb = new StringBuilder();
+
+        if(container_in_interface && !container_method.isStatic()) {
+            params.add(container_class.getNameAsString() + " " + INTERFACE_SELF_NAME + "_arg");
+            args.add("this");
+            save_sb.append(INTERFACE_SELF_NAME).append(" = ").append(INTERFACE_SELF_NAME).append("_arg;\n");
+        }
+
+        for(Variable var: vars_accessible_in_patch.values())
+            if(!vars_uninitialized_in_ip.contains(var.name)) {
+                params.add(var.type + " " + var.name);
+                args.add(var.name);
+                save_sb.append(Variable.NAME_PREFIX).append(var.name).append(" = ").append(var.name).append(";\n");
+            }
+
+        codegen_ip_method = TMPL_EXPR_INSTRUMENT_POINT
+            .set("MAYBE_STATIC", container_method.isStatic() ? "static" : "")
+            .set("EXPR_TYPE", rettype)
+            .set("PARAMS", String.join(", ", params))
+            .set("THROWS", caught_exception_in_ip.isEmpty() ? "" : "throws " + String.join(", ", caught_exception_in_ip))
+            .set("SAVE_LOCALS", save_sb.toString())
+            .set("EXPR_OBJECT_TYPE", new Variable(rettype, "_ret", false).objectVarType())
+            .doneWithNewline();
+
+        // args are on their own line, so that errors there (e.g. uninitialized var) are located before the stub mark
+        codegen_ip = "\n/*-- BEGIN TESTKIT CODEGEN IP --*/\n_testkit_expr(\n" + String.join(", ", args) + "\n//" + MARK_CODEGEN_IP_STUB + "\n)\n/*-- END TESTKIT CODEGEN IP --*/\n";
     }
 
     /**
@@ -977,6 +1549,609 @@ public class PreTransformer {
      * Add necessary fields and methods for instrumentation.
      * Each patch is wrapped into a method.
      */
+    private String generateRunModifiedCodeCases(int begin_idx, int end_idx) {
+        StringBuilder sb = new StringBuilder();
+        for(int idx=begin_idx; idx<end_idx; idx++)
+            sb.append(
+                TMPL_RUN_MODIFIED_CODE_CASE
+                    .set("PATCH_ID", String.valueOf(idx+1))
+                    .set("WRAPPER_ID", String.valueOf(family_leader_of_patch.get(idx)+1))
+                    .set("LEADING_ARGS", family_args_of_patch.get(idx))
+                    .doneWithNewline()
+            );
+        return sb.toString();
+    }
+
+    private String generateApplySavedContextCases(int begin_idx, int end_idx) {
+        StringBuilder sb = new StringBuilder();
+        for(int idx=begin_idx; idx<end_idx; idx++)
+            sb.append(
+                TMPL_APPLY_SAVED_CONTEXT_CASE
+                    .set("PATCH_ID", String.valueOf(idx+1))
+                    .set("WRAPPER_ID", String.valueOf(family_leader_of_patch.get(idx)+1))
+                    .doneWithNewline()
+            );
+        return sb.toString();
+    }
+
+    final static Set<String> OBJECT_METHOD_NAMES = new HashSet<>(Arrays.asList(
+        "clone", "equals", "finalize", "getClass", "hashCode", "notify", "notifyAll", "toString", "wait"
+    ));
+
+    /**
+     * Patch code moved into a helper class should still refer to the container class by `this`, `super` and
+     * unqualified `Object` methods (which the helper class also has). Code in anonymous or local classes is kept.
+     *
+     * @param stmt A detached statement, which is modified in place.
+     */
+    private Statement qualifyOuterRefs(Statement stmt) {
+        Name outer = new Name(container_class.getNameAsString());
+
+        for(ThisExpr expr: stmt.findAll(ThisExpr.class))
+            if(!expr.getTypeName().isPresent() && !hasAncestor(expr, BodyDeclaration.class))
+                expr.setTypeName(outer.clone());
+        for(SuperExpr expr: stmt.findAll(SuperExpr.class))
+            if(!expr.getTypeName().isPresent() && !hasAncestor(expr, BodyDeclaration.class))
+                expr.setTypeName(outer.clone());
+        for(MethodCallExpr expr: stmt.findAll(MethodCallExpr.class))
+            if(!expr.getScope().isPresent() && OBJECT_METHOD_NAMES.contains(expr.getNameAsString()) && !hasAncestor(expr, BodyDeclaration.class))
+                expr.setScope(new ThisExpr(outer.clone()));
+
+        return stmt;
+    }
+
+    /**
+     * Patch code moved into the helper class of an interface (see `adaptCodegenToInterface`) refers to the interface
+     * instance by `_testkit_self` instead of `this`. Unqualified calls are assumed to be on the instance, unless a static
+     * method of that name is declared around or imported. Code in anonymous or local classes is kept.
+     *
+     * @param stmt A detached statement, which is modified in place.
+     */
+    private Statement qualifySelfRefs(Statement stmt) {
+        Set<String> static_method_names = new HashSet<>();
+        for(Node node=container_class; node!=null; node=node.getParentNode().orElse(null))
+            if(node instanceof TypeDeclaration)
+                for(MethodDeclaration method: ((TypeDeclaration<?>)node).getMethods())
+                    if(method.isStatic())
+                        static_method_names.add(method.getNameAsString());
+        for(ImportDeclaration imp: cu.getImports())
+            if(imp.isStatic() && !imp.isAsterisk())
+                static_method_names.add(imp.getName().getIdentifier());
+
+        for(ThisExpr expr: stmt.findAll(ThisExpr.class))
+            if(!hasAncestor(expr, BodyDeclaration.class))
+                expr.replace(new NameExpr(INTERFACE_SELF_NAME));
+        for(MethodCallExpr expr: stmt.findAll(MethodCallExpr.class))
+            if(
+                !expr.getScope().isPresent() && !hasAncestor(expr, BodyDeclaration.class)
+                && !static_method_names.contains(expr.getNameAsString()) && !expr.getNameAsString().startsWith("_testkit_")
+            )
+                expr.setScope(new NameExpr(INTERFACE_SELF_NAME));
+
+        return stmt;
+    }
+
+    /**
+     * A patch with parameterizable literals and relational operators (see `isParameterizable`) replaced by params.
+     */
+    private static class ParameterizedPatch {
+        List<Statement> stmts = new ArrayList<>();
+        List<String> param_types = new ArrayList<>();
+        List<String> values = new ArrayList<>(); // for each parameterizable position, as an arg, even if not replaced
+        boolean uses_compare_op = false;
+    }
+
+    final static List<BinaryExpr.Operator> COMPARE_OPS = Arrays.asList( // in the order of `_testkit_cmp`
+        BinaryExpr.Operator.LESS, BinaryExpr.Operator.LESS_EQUALS, BinaryExpr.Operator.GREATER, BinaryExpr.Operator.GREATER_EQUALS
+    );
+    final static Set<BinaryExpr.Operator> CONSTANT_FOLDED_OPS = new HashSet<>(Arrays.asList(
+        BinaryExpr.Operator.PLUS, BinaryExpr.Operator.MINUS, BinaryExpr.Operator.MULTIPLY, BinaryExpr.Operator.DIVIDE,
+        BinaryExpr.Operator.REMAINDER, BinaryExpr.Operator.BINARY_AND, BinaryExpr.Operator.BINARY_OR, BinaryExpr.Operator.XOR,
+        BinaryExpr.Operator.LEFT_SHIFT, BinaryExpr.Operator.SIGNED_RIGHT_SHIFT, BinaryExpr.Operator.UNSIGNED_RIGHT_SHIFT
+    ));
+    final static Set<String> NARROWABLE_TYPES = new HashSet<>(Arrays.asList(
+        "byte", "short", "char", "Byte", "Short", "Character", "java.lang.Byte", "java.lang.Short", "java.lang.Character"
+    ));
+
+    private static boolean isIntegerLiteralInRange(String literal, int bits) {
+        String s = literal.replace("_", "").toLowerCase();
+        if(s.endsWith("l"))
+            s = s.substring(0, s.length()-1);
+
+        int radix = 10;
+        if(s.startsWith("0x")) {
+            radix = 16;
+            s = s.substring(2);
+        } else if(s.startsWith("0b")) {
+            radix = 2;
+            s = s.substring(2);
+        } else if(s.startsWith("0") && s.length()>1) {
+            radix = 8;
+            s = s.substring(1);
+        }
+
+        try {
+            // only the decimal literal of MIN_VALUE is out of range without unary minus
+            java.math.BigInteger value = new java.math.BigInteger(s, radix);
+            return value.bitLength() <= (radix==10 ? bits-1 : bits);
+        } catch(NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isFloatingLiteralInRange(String literal, boolean is_float) {
+        String s = literal.replace("_", "").toLowerCase();
+        double value;
+        try {
+            value = is_float ? Float.parseFloat(s) : Double.parseDouble(s);
+        } catch(NumberFormatException e) {
+            return false;
+        }
+
+        // javac rejects literals rounded to infinity or to zero
+        String mantissa = s.startsWith("0x") ? s.substring(2, Math.max(2, s.indexOf('p'))) : s.split("[efd]")[0];
+        return !Double.isInfinite(value) && (value!=0 || !mantissa.matches(".*[1-9a-f].*"));
+    }
+
+    /**
+     * @return Type of the param replacing this literal, or null if it cannot be replaced.
+     * Literals not accepted by javac (e.g. out of range) are not replaced, so that args always compile.
+     */
+    private static String literalParamType(LiteralExpr lit) {
+        if(lit instanceof IntegerLiteralExpr)
+            return isIntegerLiteralInRange(((IntegerLiteralExpr)lit).getValue(), 32) ? "int" : null;
+        if(lit instanceof LongLiteralExpr)
+            return isIntegerLiteralInRange(((LongLiteralExpr)lit).getValue(), 64) ? "long" : null;
+        if(lit instanceof DoubleLiteralExpr) {
+            String value = ((DoubleLiteralExpr)lit).getValue();
+            boolean is_float = value.endsWith("f") || value.endsWith("F");
+            if(!isFloatingLiteralInRange(value, is_float))
+                return null;
+            return is_float ? "float" : "double";
+        }
+        try {
+            if(lit instanceof CharLiteralExpr) {
+                ((CharLiteralExpr)lit).asChar();
+                return "char";
+            }
+            if(lit instanceof StringLiteralExpr) {
+                ((StringLiteralExpr)lit).asString();
+                return "java.lang.String";
+            }
+        } catch(RuntimeException e) { // bad escape
+            return null;
+        }
+        return null; // boolean literals decide reachability, so they are kept as well
+    }
+
+    private static boolean isInSwitchLabel(Node node) {
+        for(Node cur=node; cur.getParentNode().isPresent(); cur=cur.getParentNode().get()) {
+            Node parent = cur.getParentNode().get();
+            if(parent instanceof SwitchEntry) {
+                for(Expression label: ((SwitchEntry)parent).getLabels())
+                    if(label==cur)
+                        return true;
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Declared type of an assigned var or field, or null if unknown.
+     */
+    private String assignTargetType(Expression target, List<Statement> patch) {
+        if(target instanceof FieldAccessExpr && ((FieldAccessExpr)target).getScope() instanceof ThisExpr)
+            return fieldType(((FieldAccessExpr)target).getNameAsString());
+        if(!(target instanceof NameExpr))
+            return null;
+
+        String name = ((NameExpr)target).getNameAsString();
+        if(name.startsWith(Variable.NAME_PREFIX)) {
+            Variable var = vars_accessible_in_patch.get(name.substring(Variable.NAME_PREFIX.length()));
+            return var==null ? null : var.type;
+        }
+
+        List<VariableDeclarator> decls = new ArrayList<>();
+        for(Statement stmt: patch)
+            decls.addAll(stmt.findAll(VariableDeclarator.class, (decl)->decl.getNameAsString().equals(name)));
+        if(!decls.isEmpty())
+            return decls.size()==1 ? decls.get(0).getTypeAsString() : null;
+
+        return fieldType(name);
+    }
+
+    private String fieldType(String name) {
+        for(BodyDeclaration<?> member: container_members)
+            if(member instanceof FieldDeclaration)
+                for(VariableDeclarator decl: ((FieldDeclaration)member).getVariables())
+                    if(decl.getNameAsString().equals(name))
+                        return decl.getTypeAsString();
+        return null; // maybe inherited
+    }
+
+    /**
+     * Whether the literal has to be a constant in its context, i.e. `byte b = 1` only compiles with a constant, and
+     * `c ? 'a' : 0` is only a char with a constant.
+     */
+    private boolean needsConstant(LiteralExpr lit, List<Statement> patch) {
+        Node node = lit;
+        while(true) {
+            Node parent = node.getParentNode().orElse(null);
+
+            if(parent instanceof EnclosedExpr) {
+                // go on
+            } else if(parent instanceof UnaryExpr) {
+                UnaryExpr.Operator op = ((UnaryExpr)parent).getOperator();
+                if(op!=UnaryExpr.Operator.PLUS && op!=UnaryExpr.Operator.MINUS && op!=UnaryExpr.Operator.BITWISE_COMPLEMENT)
+                    return false;
+            } else if(parent instanceof BinaryExpr) {
+                BinaryExpr.Operator op = ((BinaryExpr)parent).getOperator();
+                if(!CONSTANT_FOLDED_OPS.contains(op))
+                    return false;
+                if(lit instanceof StringLiteralExpr && op==BinaryExpr.Operator.PLUS) // concatenated constants are interned
+                    return true;
+            } else if(parent instanceof ConditionalExpr) {
+                return ((ConditionalExpr)parent).getCondition()!=node;
+            } else if(parent instanceof VariableDeclarator) {
+                Node decl_parent = parent.getParentNode().orElse(null);
+                if(decl_parent instanceof VariableDeclarationExpr && ((VariableDeclarationExpr)decl_parent).isFinal())
+                    return true; // a constant var, maybe used in case labels
+                if(decl_parent instanceof FieldDeclaration && ((FieldDeclaration)decl_parent).isFinal())
+                    return true;
+                return NARROWABLE_TYPES.contains(((VariableDeclarator)parent).getTypeAsString());
+            } else if(parent instanceof AssignExpr) {
+                if(((AssignExpr)parent).getOperator()!=AssignExpr.Operator.ASSIGN) // compound assignments cast anyway
+                    return false;
+                String type = assignTargetType(((AssignExpr)parent).getTarget(), patch);
+                return type==null || NARROWABLE_TYPES.contains(type);
+            } else if(parent instanceof ReturnStmt) {
+                if(hasAncestor(parent, LambdaExpr.class) || hasAncestor(parent, BodyDeclaration.class))
+                    return true; // returned type unknown
+                return NARROWABLE_TYPES.contains(rettype);
+            } else if(parent instanceof ArrayInitializerExpr) {
+                return true;
+            } else {
+                return false;
+            }
+
+            node = parent;
+        }
+    }
+
+    /**
+     * Whether the node can be replaced by a param without changing how the patch compiles, if it compiles.
+     * These are literals and relational operators (replaced by a `_testkit_cmp` call).
+     */
+    private boolean isParameterizable(Node node, List<Statement> patch) {
+        if(node instanceof BinaryExpr) {
+            if(!COMPARE_OPS.contains(((BinaryExpr)node).getOperator()))
+                return false;
+        } else if(node instanceof LiteralExpr) {
+            if(literalParamType((LiteralExpr)node)==null)
+                return false;
+        } else {
+            return false;
+        }
+
+        // params are not accessible in annotations and in (static) local types, and case labels must be constant
+        if(hasAncestor(node, AnnotationExpr.class) || hasAncestor(node, TypeDeclaration.class))
+            return false;
+        if(isInSwitchLabel(node))
+            return false;
+        // a constant condition decides reachability and definite assignment, e.g. `while(1<2)`, which a param changes
+        if(isInBooleanConstant((Expression)node, patch))
+            return false;
+
+        return node instanceof BinaryExpr || !needsConstant((LiteralExpr)node, patch);
+    }
+
+    final static Set<BinaryExpr.Operator> BOOLEAN_OPS = new HashSet<>(Arrays.asList(
+        BinaryExpr.Operator.LESS, BinaryExpr.Operator.LESS_EQUALS, BinaryExpr.Operator.GREATER, BinaryExpr.Operator.GREATER_EQUALS,
+        BinaryExpr.Operator.EQUALS, BinaryExpr.Operator.NOT_EQUALS, BinaryExpr.Operator.AND, BinaryExpr.Operator.OR
+    ));
+
+    /**
+     * Whether the expression is part of a constant expression of boolean type, e.g. `1` in `1<N` if `N` may be a
+     * constant var.
+     */
+    private boolean isInBooleanConstant(Expression expr, List<Statement> patch) {
+        if(!isConstantExpr(expr, patch, 0))
+            return false;
+
+        Node node = expr;
+        while(true) {
+            if(node instanceof BinaryExpr && BOOLEAN_OPS.contains(((BinaryExpr)node).getOperator()))
+                return true;
+            if(node instanceof UnaryExpr && ((UnaryExpr)node).getOperator()==UnaryExpr.Operator.LOGICAL_COMPLEMENT)
+                return true;
+
+            Node parent = node.getParentNode().orElse(null);
+            if(!(parent instanceof Expression) || !isConstantExpr((Expression)parent, patch, 0))
+                return false;
+            node = parent;
+        }
+    }
+
+    /**
+     * Whether the expression may be a compile-time constant (JLS 15.29). Names that cannot be found are assumed to be
+     * constant vars.
+     */
+    private boolean isConstantExpr(Expression expr, List<Statement> patch, int depth) {
+        if(depth>8) // maybe a cycle of field initializers
+            return true;
+
+        if(expr instanceof LiteralExpr)
+            return !(expr instanceof NullLiteralExpr);
+        if(expr instanceof EnclosedExpr)
+            return isConstantExpr(((EnclosedExpr)expr).getInner(), patch, depth);
+        if(expr instanceof UnaryExpr) {
+            UnaryExpr.Operator op = ((UnaryExpr)expr).getOperator();
+            return (op==UnaryExpr.Operator.PLUS || op==UnaryExpr.Operator.MINUS || op==UnaryExpr.Operator.BITWISE_COMPLEMENT || op==UnaryExpr.Operator.LOGICAL_COMPLEMENT)
+                && isConstantExpr(((UnaryExpr)expr).getExpression(), patch, depth);
+        }
+        if(expr instanceof BinaryExpr)
+            return isConstantExpr(((BinaryExpr)expr).getLeft(), patch, depth) && isConstantExpr(((BinaryExpr)expr).getRight(), patch, depth);
+        if(expr instanceof ConditionalExpr) {
+            ConditionalExpr cond = (ConditionalExpr)expr;
+            return isConstantExpr(cond.getCondition(), patch, depth) && isConstantExpr(cond.getThenExpr(), patch, depth) && isConstantExpr(cond.getElseExpr(), patch, depth);
+        }
+        if(expr instanceof CastExpr) {
+            CastExpr cast = (CastExpr)expr;
+            String type = cast.getType().asString();
+            return (cast.getType().isPrimitiveType() || type.equals("String") || type.equals("java.lang.String"))
+                && isConstantExpr(cast.getExpression(), patch, depth);
+        }
+        if(expr instanceof FieldAccessExpr) // `this.x` is never constant, but `T.x` may be
+            return !(((FieldAccessExpr)expr).getScope() instanceof ThisExpr);
+        if(expr instanceof NameExpr) {
+            String name = ((NameExpr)expr).getNameAsString();
+            if(name.startsWith(Variable.NAME_PREFIX)) // locals are copied into fields
+                return false;
+
+            List<VariableDeclarator> decls = new ArrayList<>();
+            for(Statement stmt: patch)
+                decls.addAll(stmt.findAll(VariableDeclarator.class, (decl)->decl.getNameAsString().equals(name)));
+            for(BodyDeclaration<?> member: container_members)
+                if(member instanceof FieldDeclaration)
+                    for(VariableDeclarator decl: ((FieldDeclaration)member).getVariables())
+                        if(decl.getNameAsString().equals(name))
+                            decls.add(decl);
+            if(decls.size()!=1)
+                return true;
+
+            VariableDeclarator decl = decls.get(0);
+            Node decl_parent = decl.getParentNode().orElse(null);
+            boolean is_final =
+                (decl_parent instanceof VariableDeclarationExpr && ((VariableDeclarationExpr)decl_parent).isFinal())
+                || (decl_parent instanceof FieldDeclaration && (((FieldDeclaration)decl_parent).isFinal() || container_in_interface));
+            return is_final && decl.getInitializer().isPresent() && isConstantExpr(decl.getInitializer().get(), patch, depth+1);
+        }
+        return false;
+    }
+
+    /**
+     * @param positions Indexes of parameterizable nodes to be replaced, or null to replace all of them.
+     */
+    private ParameterizedPatch parameterizePatch(int idx, Set<Integer> positions) {
+        ParameterizedPatch ret = new ParameterizedPatch();
+        for(Statement stmt: transformed_stmts_patches.get(idx))
+            ret.stmts.add(stmt.clone());
+
+        // find all of them before replacing, which changes the context of nested ones
+        List<Node> nodes = new ArrayList<>();
+        for(Statement stmt: ret.stmts)
+            nodes.addAll(stmt.findAll(Node.class, (node)->isParameterizable(node, ret.stmts)));
+
+        for(int pos=0; pos<nodes.size(); pos++) {
+            Node node = nodes.get(pos);
+            String type, value;
+            if(node instanceof BinaryExpr) {
+                type = "int";
+                value = String.valueOf(COMPARE_OPS.indexOf(((BinaryExpr)node).getOperator()));
+            } else {
+                type = literalParamType((LiteralExpr)node);
+                value = node.toString();
+            }
+            ret.values.add(value);
+
+            if(positions!=null && !positions.contains(pos))
+                continue;
+
+            NameExpr param = new NameExpr(FAMILY_PARAM_PREFIX + ret.param_types.size());
+            ret.param_types.add(type);
+            if(node instanceof BinaryExpr) {
+                BinaryExpr expr = (BinaryExpr)node;
+                expr.replace(new MethodCallExpr(null, COMPARE_OP_METHOD, new NodeList<>(param, expr.getLeft(), expr.getRight())));
+                ret.uses_compare_op = true;
+            } else {
+                node.replace(param);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Initialize `family_leader_of_patch`, `family_args_of_patch`, `family_leader_patches` and `patch_families`.
+     * Patches in the same helper class that are identical up to parameterizable nodes form a family, and only the
+     * first one (leader) has a wrapper, whose params are the nodes that differ, so the generated class is much smaller
+     * for mutation-like patches.
+     */
+    private void groupPatchFamilies(int patches, boolean use_helpers) {
+        family_leader_of_patch = new ArrayList<>();
+        family_args_of_patch = new ArrayList<>();
+        family_leader_patches = new HashMap<>();
+        patch_families = new HashMap<>();
+        for(int idx=0; idx<patches; idx++) {
+            family_leader_of_patch.add(idx);
+            family_args_of_patch.add("");
+        }
+
+        if(!Args.PATCH_FAMILIES || !group_patch_families)
+            return;
+
+        List<ParameterizedPatch> parameterized = new ArrayList<>();
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for(int idx=0; idx<patches; idx++) {
+            if(patchids_out_of_family.contains(orig_patchids.get(idx))) {
+                parameterized.add(null);
+                continue;
+            }
+
+            ParameterizedPatch patch = parameterizePatch(idx, null);
+            parameterized.add(patch);
+
+            StringBuilder key = new StringBuilder();
+            key.append(use_helpers ? idx/Args.PATCHES_PER_HELPER_CLASS : 0).append("\n");
+            for(Statement stmt: patch.stmts)
+                key.append(stmt).append("\n");
+            key.append(patch.param_types).append("\n");
+            key.append(fields_may_modified_in_patch.get(idx).stream().map((var)->var.name).sorted().collect(Collectors.toList()));
+
+            groups.computeIfAbsent(key.toString(), (k)->new ArrayList<>()).add(idx);
+        }
+
+        int members_count = 0;
+        for(List<Integer> members: groups.values()) {
+            if(members.size()<2)
+                continue;
+
+            // params that are the same for all members are kept as is
+            int leader = members.get(0);
+            List<String> leader_values = parameterized.get(leader).values;
+            Set<Integer> positions = new HashSet<>();
+            for(int idx: members)
+                for(int pos=0; pos<leader_values.size(); pos++)
+                    if(!parameterized.get(idx).values.get(pos).equals(leader_values.get(pos)))
+                        positions.add(pos);
+
+            family_leader_patches.put(leader, parameterizePatch(leader, positions));
+
+            List<Integer> ids = new ArrayList<>();
+            for(int idx: members) {
+                StringBuilder args = new StringBuilder();
+                for(int pos=0; pos<leader_values.size(); pos++)
+                    if(positions.contains(pos))
+                        args.append(parameterized.get(idx).values.get(pos)).append(", ");
+
+                family_leader_of_patch.set(idx, leader);
+                family_args_of_patch.set(idx, args.toString());
+                ids.add(idx+1);
+            }
+            patch_families.put(leader+1, ids);
+            members_count += members.size();
+        }
+
+        if(!patch_families.isEmpty())
+            System.out.printf("grouped %d patches into %d families\n", members_count, patch_families.size());
+    }
+
+    private String generatePatchWrapper(int idx, boolean use_helpers, boolean is_static) {
+        ParameterizedPatch family_patch = family_leader_patches.get(idx);
+        List<String> params = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+        if(family_patch!=null)
+            for(int pidx=0; pidx<family_patch.param_types.size(); pidx++) {
+                params.add("final " + family_patch.param_types.get(pidx) + " " + FAMILY_PARAM_PREFIX + pidx);
+                args.add(FAMILY_PARAM_PREFIX + pidx);
+            }
+
+        StringBuilder patch_body_sb = new StringBuilder();
+        for(Statement stmt: family_patch!=null ? family_patch.stmts : transformed_stmts_patches.get(idx)) {
+            if(use_helpers)
+                patch_body_sb.append(qualifyOuterRefs(stmt.clone()));
+            else if(container_in_interface && !container_method.isStatic())
+                patch_body_sb.append(qualifySelfRefs(stmt.clone()));
+            else
+                patch_body_sb.append(stmt);
+            patch_body_sb.append("\n");
+        }
+
+        StringBuilder before_sb = new StringBuilder();
+
+        for(Variable var: fields_may_modified_in_patch.get(idx))
+            before_sb.append(
+                TMPL_REPORT_CONTEXT_BEFORE
+                    .set("VARNAME", var.name)
+                    .doneWithNewline()
+            );
+
+        StringBuilder after_sb = new StringBuilder();
+
+        for(Variable var: fields_may_modified_in_patch.get(idx))
+            after_sb.append(
+                TMPL_REPORT_RESTORE_CONTEXT_AFTER
+                    .set("KIND", var.objectKind())
+                    .set("VARTYPE", container_method_is_generic ? var.objectKind() : var.objectVarType())
+                    .set("VARNAME", var.name)
+                    .doneWithNewline()
+            );
+        for(Variable var: vars_generated_in_patch.values())
+            after_sb.append(
+                TMPL_REPORT_RESTORE_CONTEXT_AFTER
+                    .set("KIND", var.objectKind())
+                    .set("VARTYPE", container_method_is_generic ? var.objectKind() : var.objectVarType())
+                    .set("VARNAME", Variable.NAME_PREFIX + var.name)
+                    .doneWithNewline()
+            );
+
+        StringBuilder apply_sb = new StringBuilder();
+
+        for(Variable var: fields_may_modified_in_patch.get(idx))
+            apply_sb.append(
+                TMPL_APPLY_SAVED_CONTEXT
+                    .set("VARTYPE", container_method_is_generic ? var.objectKind() : var.objectVarType())
+                    .set("VARNAME", var.name)
+                    .doneWithNewline()
+            );
+        for(Variable var: vars_generated_in_patch.values())
+            apply_sb.append(
+                TMPL_APPLY_SAVED_CONTEXT
+                    .set("VARTYPE", container_method_is_generic ? var.objectKind() : var.objectVarType())
+                    .set("VARNAME", Variable.NAME_PREFIX + var.name)
+                    .doneWithNewline()
+            );
+
+        return
+            TMPL_PATCH_WRAPPER
+                .set("MAYBE_STATIC", is_static && !use_helpers ? "static" : "")
+                .set("RET_TYPE", container_method_is_generic ? new Variable(rettype, "_ret", false).objectKind() : rettype)
+                .set("PATCH_ID", String.valueOf(idx+1))
+                .set("PARAMS", String.join(", ", params))
+                .set("LEADING_PARAMS", params.isEmpty() ? "" : String.join(", ", params) + ", ")
+                .set("ARGS", String.join(", ", args))
+                .set("PATCH_BODY", patch_body_sb.toString())
+                .set("REPORT_CONTEXT_BEFORE", before_sb.toString())
+                .set("REPORT_AND_RESTORE_CONTEXT_AFTER", after_sb.toString())
+                .set("COMMENTOUT_IF_NO_SAVED_CONTEXT", apply_sb.toString().isEmpty() ? "//" : "")
+                .set("APPLY_SAVED_CONTEXT", apply_sb.toString())
+                .set("COMMENTOUT_IF_VOID", "void".equals(rettype) ? "//" : "")
+                .set("COMMENTOUT_UNLESS_VOID", "void".equals(rettype) ? "" : "//")
+                .doneWithNewline();
+    }
+
+    /**
+     * Move wrappers in `helper_sb` into a helper class in `sb`, if `idx` is the last patch of that helper class.
+     */
+    private void flushHelperClass(StringBuilder sb, StringBuilder helper_sb, int idx, int patches, boolean is_static) {
+        if((idx+1)%Args.PATCHES_PER_HELPER_CLASS!=0 && idx+1!=patches)
+            return;
+
+        int hidx = idx/Args.PATCHES_PER_HELPER_CLASS;
+        int begin = hidx*Args.PATCHES_PER_HELPER_CLASS;
+        sb.append(
+            TMPL_PATCH_HELPER_CLASS
+                .set("MAYBE_STATIC", is_static ? "static" : "")
+                .set("HELPER_ID", String.valueOf(hidx+1))
+                .set("RUN_MODIFIED_CODE_CASES", generateRunModifiedCodeCases(begin, idx+1))
+                .set("APPLY_SAVED_CONTEXT_CASES", generateApplySavedContextCases(begin, idx+1))
+                .set("PATCH_WRAPPERS", helper_sb.toString())
+                .doneWithNewline()
+        );
+        helper_sb.setLength(0);
+    }
+
     private void generateClassFieldsAndMethods() {
         StringBuilder sb = new StringBuilder();
 
@@ -994,7 +2169,6 @@ public class PreTransformer {
         // common fields
 
         boolean is_static = container_method.isStatic();
-        String rettype = (container_method instanceof ConstructorDeclaration) ? "void" : ((MethodDeclaration)container_method).getTypeAsString();
         int patches = transformed_stmts_patches.size();
 
         sb.append(
@@ -1003,105 +2177,106 @@ public class PreTransformer {
                 .doneWithNewline()
         );
 
+        // large clusters are spread over helper classes, otherwise the dispatch switch and the constant pool overflow
+        // (not in anonymous classes, whose `this` cannot be qualified, or in interfaces, which have no inner classes)
+        boolean use_helpers = patches>Args.PATCHES_PER_HELPER_CLASS && !container_in_anonymous_class && !container_in_interface;
+        int helpers = (patches+Args.PATCHES_PER_HELPER_CLASS-1) / Args.PATCHES_PER_HELPER_CLASS;
+
+        groupPatchFamilies(patches, use_helpers);
+
         // common methods
 
         StringBuilder run_code_sb = new StringBuilder();
-        for(int idx=0; idx<patches; idx++)
-            run_code_sb.append(
-                TMPL_RUN_MODIFIED_CODE_CASE
-                    .set("PATCH_ID", String.valueOf(idx+1))
-                    .doneWithNewline()
-            );
-
         StringBuilder apply_ctx_sb = new StringBuilder();
-        for(int idx=0; idx<patches; idx++)
-            apply_ctx_sb.append(
-                TMPL_APPLY_SAVED_CONTEXT_CASE
-                    .set("PATCH_ID", String.valueOf(idx+1))
-                    .doneWithNewline()
-            );
+        if(use_helpers) {
+            for(int hidx=0; hidx<helpers; hidx++) {
+                run_code_sb.append(
+                    TMPL_RUN_MODIFIED_CODE_HELPER_CASE
+                        .set("HELPER_ID", String.valueOf(hidx+1))
+                        .doneWithNewline()
+                );
+                apply_ctx_sb.append(
+                    TMPL_APPLY_SAVED_CONTEXT_HELPER_CASE
+                        .set("HELPER_ID", String.valueOf(hidx+1))
+                        .doneWithNewline()
+                );
+            }
+        } else {
+            run_code_sb.append(generateRunModifiedCodeCases(0, patches));
+            apply_ctx_sb.append(generateApplySavedContextCases(0, patches));
+        }
 
         sb.append(
             TMPL_INST_METHODS
                 .set("MAYBE_STATIC", is_static ? "static" : "")
+                .set("DISPATCH_KEY", use_helpers ? "(patchid-1)/"+Args.PATCHES_PER_HELPER_CLASS+"+1" : "patchid")
                 .set("RUN_MODIFIED_CODE_CASES", run_code_sb.toString())
                 .set("APPLY_SAVED_CONTEXT_CASES", apply_ctx_sb.toString())
                 .doneWithNewline()
         );
+        if(codegen_ip_method!=null)
+            sb.append(codegen_ip_method);
+
+        boolean uses_compare_op = false;
+        for(ParameterizedPatch patch: family_leader_patches.values())
+            uses_compare_op |= patch.uses_compare_op;
+        if(uses_compare_op)
+            for(String type: Arrays.asList("int", "long", "float", "double"))
+                sb.append(
+                    TMPL_COMPARE_OP
+                        .set("MAYBE_STATIC", schemata_use_static_fields ? "static" : "")
+                        .set("TYPE", type)
+                        .doneWithNewline()
+                );
 
         // each patch wrapper
 
+        codegen_patch_wrappers = new ArrayList<>();
+        StringBuilder helper_sb = new StringBuilder();
         for(int idx=0; idx<patches; idx++) {
-            StringBuilder patch_body_sb = new StringBuilder();
-            for(Statement stmt: transformed_stmts_patches.get(idx)) {
-                patch_body_sb.append(stmt.toString());
-                patch_body_sb.append("\n");
+            // members of a family share the wrapper of its leader
+            int leader = family_leader_of_patch.get(idx);
+            String wrapper = leader==idx ? generatePatchWrapper(idx, use_helpers, is_static) : "";
+
+            codegen_patch_wrappers.add(leader==idx ? wrapper : codegen_patch_wrappers.get(leader));
+            if(!use_helpers) {
+                sb.append("//").append(MARK_CODEGEN_PATCHSTART).append(idx+1).append("\n");
+                sb.append(wrapper);
+                continue;
             }
 
-            StringBuilder before_sb = new StringBuilder();
-
-            for(Variable var: fields_may_modified_in_patch.get(idx))
-                before_sb.append(
-                    TMPL_REPORT_CONTEXT_BEFORE
-                        .set("VARNAME", var.name)
-                        .doneWithNewline()
-                );
-
-            StringBuilder after_sb = new StringBuilder();
-
-            for(Variable var: fields_may_modified_in_patch.get(idx))
-                after_sb.append(
-                    TMPL_REPORT_RESTORE_CONTEXT_AFTER
-                        .set("KIND", var.objectKind())
-                        .set("VARTYPE", container_method_is_generic ? var.objectKind() : var.objectVarType())
-                        .set("VARNAME", var.name)
-                        .doneWithNewline()
-                );
-            for(Variable var: vars_generated_in_patch.values())
-                after_sb.append(
-                    TMPL_REPORT_RESTORE_CONTEXT_AFTER
-                        .set("KIND", var.objectKind())
-                        .set("VARTYPE", container_method_is_generic ? var.objectKind() : var.objectVarType())
-                        .set("VARNAME", Variable.NAME_PREFIX + var.name)
-                        .doneWithNewline()
-                );
+            helper_sb.append("//").append(MARK_CODEGEN_PATCHSTART).append(idx+1).append("\n");
+            helper_sb.append(wrapper);
+            flushHelperClass(sb, helper_sb, idx, patches, is_static);
+        }
 
-            StringBuilder apply_sb = new StringBuilder();
+        sb.append("//").append(MARK_CODEGEN_PATCHSTART).append(patches+1).append("\n");
+        codegen_class = "\n/*-- BEGIN TESTKIT CODEGEN CLASS --*/\n" + (container_in_interface ? adaptCodegenToInterface(sb) : sb) + "\n/*-- END TESTKIT CODEGEN CLASS --*/\n";
+    }
 
-            for(Variable var: fields_may_modified_in_patch.get(idx))
-                apply_sb.append(
-                    TMPL_APPLY_SAVED_CONTEXT
-                        .set("VARTYPE", container_method_is_generic ? var.objectKind() : var.objectVarType())
-                        .set("VARNAME", var.name)
-                        .doneWithNewline()
-                );
-            for(Variable var: vars_generated_in_patch.values())
-                apply_sb.append(
-                    TMPL_APPLY_SAVED_CONTEXT
-                        .set("VARTYPE", container_method_is_generic ? var.objectKind() : var.objectVarType())
-                        .set("VARNAME", Variable.NAME_PREFIX + var.name)
-                        .doneWithNewline()
-                );
+    /**
+     * Interface members cannot be private, fields cannot be assigned, and generated methods should not be inherited by
+     * implementations as default methods. So generated members are moved into a nested class, whose members are
+     * statically imported (see `normalizePatchedAstInBlock`). Instance members become static, and patches in a default
+     * method refer to the instance by `_testkit_self` (see `qualifySelfRefs`), which is set by the ip.
+     * Generated members are those starting with `private` at the beginning of a line.
+     */
+    private String adaptCodegenToInterface(CharSequence code) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("static class ").append(INTERFACE_HELPER_CLASS_NAME).append(" {\n");
+        if(!container_method.isStatic())
+            sb.append("static ").append(container_class.getNameAsString()).append(" ").append(INTERFACE_SELF_NAME).append(";\n");
+
+        for(String line: code.toString().split("\n", -1)) {
+            if(!line.startsWith("private ")) {
+                sb.append(line).append("\n");
+                continue;
+            }
 
-            sb.append("//").append(MARK_CODEGEN_PATCHSTART).append(idx+1).append("\n");
-            sb.append(
-                TMPL_PATCH_WRAPPER
-                    .set("MAYBE_STATIC", is_static ? "static" : "")
-                    .set("RET_TYPE", container_method_is_generic ? new Variable(rettype, "_ret", false).objectKind() : rettype)
-                    .set("PATCH_ID", String.valueOf(idx+1))
-                    .set("PATCH_BODY", patch_body_sb.toString())
-                    .set("REPORT_CONTEXT_BEFORE", before_sb.toString())
-                    .set("REPORT_AND_RESTORE_CONTEXT_AFTER", after_sb.toString())
-                    .set("COMMENTOUT_IF_NO_SAVED_CONTEXT", apply_sb.toString().isEmpty() ? "//" : "")
-                    .set("APPLY_SAVED_CONTEXT", apply_sb.toString())
-                    .set("COMMENTOUT_IF_VOID", "void".equals(rettype) ? "//" : "")
-                    .set("COMMENTOUT_UNLESS_VOID", "void".equals(rettype) ? "" : "//")
-                    .doneWithNewline()
-            );
+            String decl = line.substring("private ".length()).trim();
+            sb.append(decl.startsWith("static ") ? "" : "static ").append(decl).append("\n");
         }
-
-        sb.append("//").append(MARK_CODEGEN_PATCHSTART).append(patches+1).append("\n");
-        codegen_class = "\n/*-- BEGIN TESTKIT CODEGEN CLASS --*/\n" + sb + "\n/*-- END TESTKIT CODEGEN CLASS --*/\n";
+        return sb.append("}\n").toString();
     }
 
     /**
@@ -1118,18 +2293,116 @@ public class PreTransformer {
     }
 
     /**
-     * Given all generated fields, produce full patched code.
+     * Code in the body of these methods produces no synthetic member or class, so their compiled form does not depend
+     * on the rest of the class, and can be taken from a compile of the unpatched file (see `BytecodeAssembler`).
      */
-    private String joinPatchedCode() {
-        String src = TreeStringify.print(cu);
+    private List<MethodDeclaration> findStubbableMethods() {
+        List<MethodDeclaration> ret = new ArrayList<>();
+        for(MethodDeclaration method: cu.findAll(MethodDeclaration.class)) {
+            if(method==container_method || !method.getBody().isPresent())
+                continue;
+
+            Node parent = method.getParentNode().orElse(null);
+            if(!(parent instanceof ClassOrInterfaceDeclaration && !((ClassOrInterfaceDeclaration)parent).isInterface()) && !(parent instanceof EnumDeclaration))
+                continue;
+            if(hasAncestor(method, Statement.class) || hasAncestor(method, Expression.class)) // in local or anonymous class
+                continue;
+
+            boolean has_synthetic = !method.getBody().get().findAll(Node.class, (node)->
+                node instanceof LambdaExpr ||
+                node instanceof MethodReferenceExpr ||
+                (node instanceof ObjectCreationExpr && ((ObjectCreationExpr)node).getAnonymousClassBody().isPresent()) ||
+                node instanceof LocalClassDeclarationStmt ||
+                node instanceof SwitchStmt || // maybe on enum, which needs a switch map class
+                node instanceof SwitchExpr ||
+                node instanceof AssertStmt // `$assertionsDisabled`
+            ).isEmpty();
+            if(!has_synthetic)
+                ret.add(method);
+        }
+        return ret;
+    }
 
-        // remove `;` after codegen ip
-        src = src.replaceFirst(MARK_CODEGEN_IP_POINT+"\\n\\s*;", MARK_CODEGEN_IP_POINT+"\n");
+    /**
+     * If set, bodies of methods other than the container method are replaced with `throw null` in generated code,
+     * which then only compiles to a stub for `BytecodeAssembler`. Patch errors are reported the same.
+     */
+    public void setStubUnrelatedMethods(boolean stub) {
+        if(stub && Args.USE_LEXICAL_PRINTING)
+            throw new RuntimeException("cannot stub methods with lexical printing");
 
-        src = commentReplace(src, MARK_CODEGEN_IP_POINT, codegen_ip);
-        src = commentReplace(src, MARK_CODEGEN_CLASS_POINT, codegen_class);
+        if(stub_unrelated_methods!=stub) {
+            stub_unrelated_methods = stub;
+            codegen_skeleton = null;
+        }
+    }
 
-        return src;
+    /**
+     * Print `cu` once, and split it at the codegen points into `codegen_skeleton`.
+     * `cu` is not changed after `preparePatches`, so only codegen parts need to be regenerated for each patch selection.
+     */
+    private void splitSkeleton() {
+        final String CLASS_SPLITTER = "\0TESTKIT-CLASS\0";
+        final String IP_SPLITTER = "\0TESTKIT-IP\0";
+
+        String src;
+        if(stub_unrelated_methods) {
+            // bodies are swapped only for printing, since `cu` is still used by codegen
+            Map<MethodDeclaration, BlockStmt> orig_bodies = new LinkedHashMap<>();
+            for(MethodDeclaration method: findStubbableMethods())
+                orig_bodies.put(method, method.getBody().get());
+
+            for(MethodDeclaration method: orig_bodies.keySet())
+                method.setBody(new BlockStmt(new NodeList<>(new ThrowStmt(new NullLiteralExpr()))));
+            try {
+                src = TreeStringify.print(cu);
+            } finally {
+                for(Map.Entry<MethodDeclaration, BlockStmt> entry: orig_bodies.entrySet())
+                    entry.getKey().setBody(entry.getValue());
+            }
+            System.out.printf("stubbed %d unrelated methods\n", orig_bodies.size());
+        } else {
+            src = TreeStringify.print(cu);
+        }
+
+        src = replaceInstrumentPoint(src, IP_SPLITTER);
+        src = commentReplace(src, MARK_CODEGEN_CLASS_POINT, CLASS_SPLITTER);
+
+        // class point is the comment of container method, so it is always before the ip
+        int class_idx = src.indexOf(CLASS_SPLITTER);
+        int ip_idx = src.indexOf(IP_SPLITTER);
+        assert class_idx!=-1 && class_idx<ip_idx;
+
+        codegen_skeleton = new String[] {
+            src.substring(0, class_idx),
+            src.substring(class_idx+CLASS_SPLITTER.length(), ip_idx),
+            src.substring(ip_idx+IP_SPLITTER.length()),
+        };
+    }
+
+    /**
+     * Replace the instrument point in printed `cu` with `code`, which is statements, or an expression if `is_expr_ip`.
+     */
+    String replaceInstrumentPoint(String src, String code) {
+        // remove `;` of the empty stmt or the placeholder expr after the mark
+        src = src.replaceFirst(MARK_CODEGEN_IP_POINT+"\\n\\s*"+(is_expr_ip ? IP_EXPR_PLACEHOLDER : ";"), MARK_CODEGEN_IP_POINT+"\n");
+        return commentReplace(src, MARK_CODEGEN_IP_POINT, code);
+    }
+
+    /**
+     * Given all generated fields, produce full patched code.
+     */
+    private String joinPatchedCode() {
+        if(codegen_skeleton==null)
+            splitSkeleton();
+
+        return new StringBuilder(codegen_skeleton[0].length() + codegen_class.length() + codegen_skeleton[1].length() + codegen_ip.length() + codegen_skeleton[2].length())
+            .append(codegen_skeleton[0])
+            .append(codegen_class)
+            .append(codegen_skeleton[1])
+            .append(codegen_ip)
+            .append(codegen_skeleton[2])
+            .toString();
     }
 
     /**
@@ -1157,6 +2430,9 @@ public class PreTransformer {
 
         detectCtrlFlowInPatches();
 
+        if(!is_expr_ip) // the analyzer works on stmts
+            deriveInstrumentPointFlags();
+
         System.out.println("preprare patches done.");
     }
 
@@ -1181,6 +2457,59 @@ public class PreTransformer {
         return joinPatchedCode();
     }
 
+    /**
+     * Remove patches before `preparePatches`, when only `src_patches` is initialized.
+     */
+    public void removePatchesBeforePrepare(Set<Integer> ids_set) {
+        List<Integer> ids_list = new ArrayList<>(ids_set);
+        Collections.sort(ids_list);
+        Collections.reverse(ids_list);
+
+        for(int id: ids_list) {
+            src_patches.remove(id-1);
+            orig_patchids.remove(id-1);
+        }
+    }
+
+    public String getPatchSource(int id) {
+        return src_patches.get(id-1);
+    }
+
+    private static <T> List<T> pickByIds(List<T> li, List<Integer> ids) {
+        List<T> ret = new ArrayList<>(ids.size());
+        for(int id: ids)
+            ret.add(li.get(id-1));
+        return ret;
+    }
+
+    /**
+     * Same as `generatePatches`, but only include patches in `ids`, which are renumbered from 1 in the order of `ids`.
+     * Patch selection is left unchanged.
+     */
+    public String generatePatchesForShard(List<Integer> ids) {
+        List<String> all_src_patches = src_patches;
+        List<List<Statement>> all_stmts_patches = stmts_patches;
+        List<List<Statement>> all_transformed_stmts_patches = transformed_stmts_patches;
+        List<Set<Variable>> all_fields_may_modified_in_patch = fields_may_modified_in_patch;
+
+        // errors are attributed to patches as they are, so that no family has to be split up after the shards
+        group_patch_families = false;
+        src_patches = pickByIds(all_src_patches, ids);
+        stmts_patches = pickByIds(all_stmts_patches, ids);
+        transformed_stmts_patches = pickByIds(all_transformed_stmts_patches, ids);
+        fields_may_modified_in_patch = pickByIds(all_fields_may_modified_in_patch, ids);
+
+        try {
+            return generatePatches();
+        } finally {
+            src_patches = all_src_patches;
+            stmts_patches = all_stmts_patches;
+            transformed_stmts_patches = all_transformed_stmts_patches;
+            fields_may_modified_in_patch = all_fields_may_modified_in_patch;
+            group_patch_families = true;
+        }
+    }
+
     public void removePatches(Set<Integer> ids_set) {
         List<Integer> ids_list = new ArrayList<>(ids_set);
         Collections.sort(ids_list);
@@ -1211,6 +2540,14 @@ public class PreTransformer {
         return true;
     }
 
+    /**
+     * Returns the generated wrapper methods for each patch (index 0 is patch 1), which are the same for a family.
+     * Only valid after `generatePatches`.
+     */
+    public List<String> getPatchWrappers() {
+        return codegen_patch_wrappers;
+    }
+
     public int getPatchCount() {
         return src_patches.size();
     }
@@ -1261,7 +2598,7 @@ public class PreTransformer {
     }
 
     public void reportCaughtExceptionName(String name) {
-        assert isJavaIdentifier(name) : "caught exception name invalid: "+name;
+        assert Arrays.stream(name.split("\\.", -1)).allMatch(this::isJavaIdentifier) : "caught exception name invalid: "+name; // maybe qualified
 
         if(caught_exception_in_ip.contains(name)) {
             if(report_in_this_turn.contains("caughtexc:"+name))
@@ -1316,10 +2653,167 @@ public class PreTransformer {
         System.out.print("set reportInstrumentPointCannotReturn\n");
     }
 
+    /**
+     * Set flags that can be known without compiling, so that the first schemata is more likely to compile.
+     */
+    private void deriveInstrumentPointFlags() {
+        InstrumentPointAnalyzer analyzer = new InstrumentPointAnalyzer(container_method, container_members, ip_stmt, patch_range.begin);
+        analyzer.analyze();
+
+        instrument_point_must_return = analyzer.must_return;
+        instrument_point_cannot_return = analyzer.cannot_return;
+        instrument_point_cannot_break = analyzer.cannot_break;
+        instrument_point_cannot_continue = analyzer.cannot_continue;
+        vars_uninitialized_in_ip.addAll(analyzer.uninitialized_vars);
+        final_vars_assigned_in_ip.addAll(analyzer.final_vars);
+        caught_exception_in_ip.addAll(analyzer.caught_exceptions);
+
+        System.out.printf(
+            "derived ip flags: mustret=%s cantret=%s cantbreak=%s cantcontn=%s uninit=%s final=%s caughtexc=%s\n",
+            instrument_point_must_return, instrument_point_cannot_return,
+            instrument_point_cannot_break, instrument_point_cannot_continue,
+            vars_uninitialized_in_ip, final_vars_assigned_in_ip, caught_exception_in_ip
+        );
+    }
+
+    /**
+     * A compile error is located in the wrapper of patch `id`.
+     * @return Whether it is the shared wrapper of a family, whose members are then generated separately, since the
+     * error may not apply to all of them (e.g. unreachable code after `while(1<2)`).
+     */
+    public boolean reportPatchFamilyError(int id) {
+        List<Integer> members = patch_families.get(id);
+        if(members==null)
+            return false;
+
+        if(report_in_this_turn.add("family:"+id)) {
+            for(int member: members)
+                patchids_out_of_family.add(orig_patchids.get(member-1));
+            System.out.printf("set reportPatchFamilyError %d (%d patches)\n", id, members.size());
+        }
+        return true;
+    }
+
     public void reportDone() {
         report_in_this_turn.clear();
     }
 
+    public boolean hasReportsInThisTurn() {
+        return !report_in_this_turn.isEmpty();
+    }
+
+    /**
+     * Types caught by the try stmts around ip, which the stub may pretend to throw.
+     */
+    private Set<String> exceptionsCaughtAroundInstrumentPoint() {
+        Set<String> ret = new LinkedHashSet<>();
+        Node cur = is_expr_ip ? ip_expr : ip_stmt;
+        for(Node parent=cur.getParentNode().orElse(null); parent!=null && parent!=container_method && !(parent instanceof LambdaExpr); parent=parent.getParentNode().orElse(null)) {
+            if(parent instanceof TryStmt && ((TryStmt)parent).getTryBlock()==cur)
+                for(CatchClause clause: ((TryStmt)parent).getCatchClauses()) {
+                    com.github.javaparser.ast.type.Type type = clause.getParameter().getType();
+                    if(type.isUnionType())
+                        for(com.github.javaparser.ast.type.Type alt: type.asUnionType().getElements())
+                            ret.add(alt.asString());
+                    else
+                        ret.add(type.asString());
+                }
+            cur = parent;
+        }
+        return ret;
+    }
+
+    /**
+     * Conservative variants of the ip to try if the schemata fails to compile with an unknown error outside patches,
+     * in the order they are tried:
+     * - `cantret` and `mustret`: same as `reportInstrumentPointCannotReturn` and `reportInstrumentPointMustReturn`
+     * - `norestore:x`: do not restore local var `x` mentioned in the error, and patches assigning it are dropped
+     * - `catchall`: the stub pretends to throw everything caught around ip
+     */
+    public List<String> getRecoveryRules(String errormsg) {
+        List<String> ret = new ArrayList<>();
+
+        if(!is_expr_ip) { // the expr ip does neither return nor restore vars
+            if(!instrument_point_cannot_return && !instrument_point_must_return) {
+                ret.add("cantret");
+                ret.add("mustret");
+            }
+
+            Set<String> names = new LinkedHashSet<>(Arrays.asList(errormsg.split("[^\\w$]+")));
+            for(String name: names)
+                if(vars_accessible_in_patch.containsKey(name) && !final_vars_assigned_in_ip.contains(name))
+                    ret.add("norestore:"+name);
+        }
+
+        if(!caught_exception_in_ip.containsAll(exceptionsCaughtAroundInstrumentPoint()))
+            ret.add("catchall");
+
+        return ret;
+    }
+
+    /**
+     * Apply a rule from `getRecoveryRules` on top of the current flags, which can be reverted by `revertRecoveryRule`
+     * until the next rule is applied.
+     */
+    public void applyRecoveryRule(String rule) {
+        InstrumentPointFlags flags = new InstrumentPointFlags();
+        flags.vars_uninitialized = new HashSet<>(vars_uninitialized_in_ip);
+        flags.final_vars_assigned = new HashSet<>(final_vars_assigned_in_ip);
+        flags.caught_exceptions = new HashSet<>(caught_exception_in_ip);
+        flags.reports = new HashSet<>(report_in_this_turn);
+        flags.patchids_out_of_family = new HashSet<>(patchids_out_of_family);
+        flags.must_return = instrument_point_must_return;
+        flags.cannot_return = instrument_point_cannot_return;
+        flags.cannot_break = instrument_point_cannot_break;
+        flags.cannot_continue = instrument_point_cannot_continue;
+        flags_before_recovery = flags;
+
+        if(rule.equals("cantret"))
+            instrument_point_cannot_return = true;
+        else if(rule.equals("mustret"))
+            instrument_point_must_return = true;
+        else if(rule.startsWith("norestore:"))
+            final_vars_assigned_in_ip.add(rule.substring("norestore:".length()));
+        else if(rule.equals("catchall"))
+            caught_exception_in_ip.addAll(exceptionsCaughtAroundInstrumentPoint());
+        else
+            throw new RuntimeException("unknown recovery rule: "+rule);
+
+        System.out.printf("apply recovery rule %s\n", rule);
+    }
+
+    public void revertRecoveryRule() {
+        InstrumentPointFlags flags = flags_before_recovery;
+        assert flags!=null;
+        flags_before_recovery = null;
+
+        vars_uninitialized_in_ip = flags.vars_uninitialized;
+        final_vars_assigned_in_ip = flags.final_vars_assigned;
+        caught_exception_in_ip = flags.caught_exceptions;
+        report_in_this_turn = flags.reports;
+        patchids_out_of_family = flags.patchids_out_of_family;
+        instrument_point_must_return = flags.must_return;
+        instrument_point_cannot_return = flags.cannot_return;
+        instrument_point_cannot_break = flags.cannot_break;
+        instrument_point_cannot_continue = flags.cannot_continue;
+    }
+
+    /**
+     * @return Ids of patches that cannot be validated once `rule` is kept.
+     */
+    public Set<Integer> getPatchesBrokenByRecoveryRule(String rule) {
+        Set<Integer> ret = new HashSet<>();
+        if(rule.startsWith("norestore:")) {
+            // assignment to the var would be lost
+            Set<String> names = Collections.singleton(rule.substring("norestore:".length()));
+            for(int i=0; i<stmts_patches.size(); i++)
+                for(Statement stmt: stmts_patches.get(i))
+                    if(assignsNames(stmt, names))
+                        ret.add(i+1);
+        }
+        return ret;
+    }
+
     public void precheckPatches() {
         // `{xxx; return; yyy;}` will cause compile error (unreachable statement) at `yyy;`
         if(have_stmts_after_patch_area) {
@@ -1342,6 +2836,20 @@ public class PreTransformer {
 
             removePatches(problematic_patches);
         }
+
+        // a captured var cannot be assigned in the lambda, but its field can
+        if(!vars_captured_in_patch.isEmpty()) {
+            Set<Integer> problematic_patches = new HashSet<>();
+            for(int i=0; i<stmts_patches.size(); i++)
+                for(Statement stmt: stmts_patches.get(i))
+                    if(assignsNames(stmt, vars_captured_in_patch)) {
+                        System.out.printf("precheck filtered out patch #%d assigning a captured var\n", i+1);
+                        problematic_patches.add(i+1);
+                        break;
+                    }
+
+            removePatches(problematic_patches);
+        }
     }
 
     public static void main(String[] args) throws IOException {
@@ -1,6 +1,8 @@
 package expressapr.igniter;
 
 import expressapr.igniter.purity.AbstractPuritySource;
+import expressapr.igniter.purity.BytecodePurityAnalyzer;
+import expressapr.igniter.purity.CompactSidefxDb;
 import expressapr.igniter.purity.SidefxDbSource;
 import expressapr.igniter.purity.TrivialPuritySource;
 import org.json.JSONArray;
@@ -31,6 +33,14 @@ public class Servant {
         Args.RUNTIME_DEBUG = flags.getBoolean("runtime_debug");
         Args.TEST_SEL_WHEN_NODEDUP = flags.getBoolean("test_sel_when_nodedup");
         Args.WRITE_COMPILER_MSG = flags.getBoolean("write_compiler_msg");
+        Args.IN_PROCESS_COMPILE = flags.getBoolean("in_process_compile");
+        Args.COMPILER_BACKEND = flags.getString("compiler_backend");
+        Args.ECJ_JAR_PATH = flags.isNull("ecj_jar_path") ? null : flags.getString("ecj_jar_path");
+        Args.BYTECODE_ASSEMBLY = flags.getBoolean("bytecode_assembly");
+        Args.EXPRESSION_INSTRUMENT_POINT = flags.getBoolean("expression_instrument_point");
+        Args.PATCH_FAMILIES = flags.getBoolean("patch_families");
+        Args.INSTRUMENT_POINT_RECOVERY = flags.getBoolean("instrument_point_recovery");
+        Args.MULTI_HUNK_PATCHES = flags.getBoolean("multi_hunk_patches");
     }
 
     static void setupPuritySource(JSONObject config) {
@@ -47,9 +57,14 @@ public class Servant {
             case "sidefx_db":
                 puritySource = new SidefxDbSource(
                     config.getString("sidefx_db_path"),
-                    null
+                    null,
+                    config.optBoolean("source_analysis", true)
                 );
                 break;
+
+            case "sidefx_auto": // the db is built by `build_sidefx_db` after the project is compiled
+                puritySource = null;
+                break;
         }
     }
 
@@ -58,9 +73,27 @@ public class Servant {
 
         if(action.equals("setup")) {
             setupPuritySource(req.getJSONObject("purity_source"));
+            if(puritySource instanceof SidefxDbSource && req.has("project_src_path")) // warm up before the first cluster
+                SidefxDbSource.warmUp(req.getString("project_src_path"));
             return new JSONObject();
         }
 
+        if(action.equals("build_sidefx_db")) {
+            int impure_cnt = BytecodePurityAnalyzer.buildDb(
+                getJsonListString(req.getJSONArray("class_paths")),
+                req.getString("sidefx_db_path")
+            );
+            return new JSONObject().put("impure_method_count", impure_cnt);
+        }
+
+        if(action.equals("compact_sidefx_db")) {
+            int impure_cnt = CompactSidefxDb.compactTextDb(
+                req.getString("sidefx_db_path"),
+                req.getString("compact_db_path")
+            );
+            return new JSONObject().put("impure_method_count", impure_cnt);
+        }
+
         if(puritySource instanceof SidefxDbSource) {
             String path = req.getString("project_root_path") + "/" + req.getString("project_src_path");
             ((SidefxDbSource) puritySource).setSrcPath(path);
@@ -82,8 +115,12 @@ public class Servant {
 
         switch(action) {
             case "run":
+                main.class_blob_path = req.isNull("class_blob_path") ? null : req.getString("class_blob_path");
+                main.compile_cache_path = req.isNull("compile_cache_path") ? null : req.getString("compile_cache_path");
                 v = main.generatePatchedClass();
                 main.genRuntimeConfig(v);
+                if(main.class_blob_path!=null)
+                    main.writeClassBlob(v);
                 break;
 
             case "init":
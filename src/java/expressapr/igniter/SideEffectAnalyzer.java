@@ -1,6 +1,9 @@
 package expressapr.igniter;
 
+import com.github.javaparser.JavaParser;
 import com.github.javaparser.ParseProblemException;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParserConfiguration;
 import com.github.javaparser.StaticJavaParser;
 import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.NodeList;
@@ -12,12 +15,15 @@ import com.github.javaparser.ast.stmt.Statement;
 import expressapr.igniter.purity.AbstractPuritySource;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SideEffectAnalyzer {
     public static AbstractPuritySource purity_source = null; // if null: fallback to nodedup mode
 
-    final static String INJECTION_POINT_MARKER = "__TESTKIT_MARKER_SIDEFX";
+    public final static String INJECTION_POINT_MARKER = "__TESTKIT_MARKER_SIDEFX";
 
     private final PreTransformer context;
 
@@ -42,7 +48,7 @@ public class SideEffectAnalyzer {
         return s.substring(0, 1).toUpperCase() + s.substring(1);
     }
 
-    private String generateTotalSourceCode() {
+    private String generateTotalSourceCode(String src) {
         StringBuilder sb = new StringBuilder("\nif("+INJECTION_POINT_MARKER+") {");
 
         for(List<Statement> patch: context.stmts_patches) {
@@ -55,8 +61,11 @@ public class SideEffectAnalyzer {
 
         sb.append("}");
 
-        String src = TreeStringify.print(context.cu);
-        return PreTransformer.commentReplace(src, PreTransformer.MARK_CODEGEN_IP_POINT, sb.toString());
+        String code = sb.toString();
+        if(context.is_expr_ip) // put patches into a lambda body, as the ip is an expression
+            code = "((java.util.function.Supplier<Object>)() -> {" + code + "\nreturn null;\n}).get()";
+
+        return context.replaceInstrumentPoint(src, code);
     }
 
     Map<List<Statement>, Integer> patch_to_idx;
@@ -83,109 +92,197 @@ public class SideEffectAnalyzer {
     List<Boolean> should_tree_skip;
 
     public void analyze(Map<String, Variable> fields) {
-        shallow_sidefxs = new ArrayList<>();
-        should_tree_skip = new ArrayList<>();
         calcPatchToIdx();
 
-        String new_src = generateTotalSourceCode();
+        String src = TreeStringify.print(context.cu);
+        String new_src = generateTotalSourceCode(src);
         CompilationUnit new_cu = StaticJavaParser.parse(new_src);
+        NodeList<Statement> patches = findPatches(new_cu);
+        assert patches.size()==context.stmts_patches.size();
+
+        if(purity_source!=null)
+            purity_source.initializeForPatches(patches, src);
+
+        boolean rettype_safe = isTypeSafeForComparison(context.rettype);
+
+        List<Set<Variable>> outs = new ArrayList<>(Collections.nCopies(patches.size(), null));
+        boolean[] tree_skips = new boolean[patches.size()];
+
+        int workers = Math.min(Args.SIDEFX_ANALYSIS_THREADS, patches.size()/Args.SIDEFX_PARALLEL_MIN_PATCHES);
+        if(purity_source!=null && workers>1) {
+            analyzeInParallel(new_src, patches, workers, fields, rettype_safe, outs, tree_skips);
+        } else {
+            for(int idx=0; idx<patches.size(); idx++) {
+                Set<Variable> out = new HashSet<>();
+                tree_skips[idx] = analyzePatch(patches.get(idx), fields, rettype_safe, out);
+                outs.set(idx, out);
+            }
+        }
+
+        shallow_sidefxs = outs;
+        should_tree_skip = new ArrayList<>();
+        for(boolean tree_skip: tree_skips)
+            should_tree_skip.add(tree_skip);
+    }
 
+    private static NodeList<Statement> findPatches(CompilationUnit cu) {
         IfStmt node = (IfStmt)(
-            new_cu.findFirst(
+            cu.findFirst(
                 NameExpr.class,
                 (exp)->INJECTION_POINT_MARKER.equals(exp.getNameAsString())
             ).get().getParentNode().get()
         );
         assert node.getThenStmt() instanceof BlockStmt;
-        NodeList<Statement> patches = ((BlockStmt)node.getThenStmt()).getStatements();
-        assert patches.size()==context.stmts_patches.size();
-
-        if(purity_source!=null)
-            purity_source.initializeForPatches(patches);
-
-        boolean rettype_safe = isTypeSafeForComparison(context.rettype);
+        return ((BlockStmt)node.getThenStmt()).getStatements();
+    }
 
-        for(Statement patch_block: patches) {
-            assert patch_block instanceof BlockStmt;
-            Set<Variable> out = new HashSet<>();
-            AtomicBoolean tree_skip = new AtomicBoolean(false);
+    private static ForkJoinPool analysis_pool = null;
 
-            if(purity_source==null) {
-                tree_skip.set(true); // fallback to true
+    /**
+     * Patches are split into contiguous ranges, one for each worker. JavaParser caches resolved types in AST nodes, so
+     * each worker parses its own copy of `new_src`, with a symbol solver that is not used by other workers.
+     */
+    private void analyzeInParallel(
+        String new_src, NodeList<Statement> patches, int workers,
+        Map<String, Variable> fields, boolean rettype_safe,
+        List<Set<Variable>> outs, boolean[] tree_skips
+    ) {
+        long ts1 = System.nanoTime();
+
+        ForkJoinPool pool;
+        synchronized(SideEffectAnalyzer.class) {
+            if(analysis_pool==null || analysis_pool.getParallelism()!=Args.SIDEFX_ANALYSIS_THREADS) {
+                // tasks already submitted to the old pool still run
+                if(analysis_pool!=null)
+                    analysis_pool.shutdown();
+                analysis_pool = new ForkJoinPool(Args.SIDEFX_ANALYSIS_THREADS);
             }
+            pool = analysis_pool;
+        }
 
-            for(Statement stmt: ((BlockStmt)patch_block).getStatements()) {
-                // detect assignment
-                stmt.walk(AssignExpr.class, expr -> {
-                    if (expr.getTarget() instanceof NameExpr) { // field = xxx;
-                        String targetName = ((NameExpr)expr.getTarget()).getNameAsString();
-                        if (fields.containsKey(targetName)) {
-                            Variable v = fields.get(targetName);
-                            out.add(v);
-                            if(Args.ONLY_SAFE_TYPES_IN_TREE && !isTypeSafeForComparison(v.type))
-                                tree_skip.set(true);
-                        } else {
-                            // maybe patch contains syntax error
-                            System.out.printf("unknown variable name: %s\n", targetName);
-                        }
-                    } else if(
-                        expr.getTarget() instanceof FieldAccessExpr &&
-                        ((FieldAccessExpr)expr.getTarget()).getScope() instanceof ThisExpr
-                    ) { // this.field = xxx;
-                        String targetName = ((FieldAccessExpr)expr.getTarget()).getNameAsString();
-                        if (fields.containsKey(targetName)) {
-                            Variable v = fields.get(targetName);
-                            out.add(v);
-                            if(Args.ONLY_SAFE_TYPES_IN_TREE && !isTypeSafeForComparison(v.type))
-                                tree_skip.set(true);
-                        } else {
-                            // maybe patch contains syntax error
-                            System.out.printf("unknown variable name: %s\n", targetName);
-                        }
-                    } else if(mayContainDeepTarget(expr.getTarget(), fields)) { // e.g. field[i] = xxx;
-                        tree_skip.set(true);
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for(int w=0; w<workers; w++) {
+            int begin = patches.size()*w/workers;
+            int end = patches.size()*(w+1)/workers;
+            tasks.add(pool.submit(()->{
+                ParserConfiguration config = purity_source.acquireWorkerConfiguration();
+                try {
+                    ParseResult<CompilationUnit> res = new JavaParser(config).parse(new_src);
+                    if(!res.isSuccessful() || !res.getResult().isPresent())
+                        throw new ParseProblemException(res.getProblems());
+                    NodeList<Statement> copies = findPatches(res.getResult().get());
+
+                    for(int idx=begin; idx<end; idx++) {
+                        purity_source.initializeForCopy(patches.get(idx), copies.get(idx));
+                        Set<Variable> out = new HashSet<>();
+                        tree_skips[idx] = analyzePatch(copies.get(idx), fields, rettype_safe, out);
+                        outs.set(idx, out);
                     }
-                    // assigned to fields/method calls/reflections...
-                });
-
-                // detect uncomparable retval
-                if(!tree_skip.get() && !rettype_safe) {
-                    stmt.walk(ReturnStmt.class, (ret)->{
-                        Expression expr = ret.getExpression().orElse(null);
-                        // everything other than `return;` and `return null;` are unsafe
-                        if(expr!=null && !(expr instanceof NullLiteralExpr))
-                            tree_skip.set(true);
-                    });
+                } finally {
+                    purity_source.releaseWorkerConfiguration(config);
                 }
+            }));
+        }
 
-                // check deep sidefx method calls
-                if(!tree_skip.get()) {
-                    //long ts1 = System.nanoTime();
+        try {
+            for(ForkJoinTask<?> task: tasks)
+                task.get();
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+            for(ForkJoinTask<?> task: tasks)
+                task.cancel(true);
+            throw new RuntimeException("sidefx analysis interrupted: "+e.getMessage());
+        } catch(ExecutionException e) {
+            e.getCause().printStackTrace();
+            throw new RuntimeException("sidefx analysis crashed: "+e.getCause());
+        }
+
+        long ts2 = System.nanoTime();
+        System.out.printf("sidefx analyzer: %d patches in %d workers took %d ms\n", patches.size(), workers, (ts2-ts1)/1000000);
+    }
 
-                    try {
-                        stmt.walk(MethodCallExpr.class, (call)->{
-                            if(tree_skip.get())
-                                return; // skip if already rejected
+    /**
+     * @param out Fields assigned by the patch are added to it.
+     * @return Whether the patch should skip the tree, i.e. its side effects cannot be compared.
+     */
+    private boolean analyzePatch(Statement patch_block, Map<String, Variable> fields, boolean rettype_safe, Set<Variable> out) {
+        assert patch_block instanceof BlockStmt;
+        AtomicBoolean tree_skip = new AtomicBoolean(false);
 
+        if(purity_source==null) {
+            tree_skip.set(true); // fallback to true
+        }
 
-                            if(!purity_source.isMethodCallPure(call)) {
-                                tree_skip.set(true);
-                            }
-                        });
-                    } catch (ParseProblemException e) {
-                        System.out.println("sidefx analyzer parsing error!");
+        for(Statement stmt: ((BlockStmt)patch_block).getStatements()) {
+            // detect assignment
+            stmt.walk(AssignExpr.class, expr -> {
+                if (expr.getTarget() instanceof NameExpr) { // field = xxx;
+                    String targetName = ((NameExpr)expr.getTarget()).getNameAsString();
+                    if (fields.containsKey(targetName)) {
+                        Variable v = fields.get(targetName);
+                        out.add(v);
+                        if(Args.ONLY_SAFE_TYPES_IN_TREE && !isTypeSafeForComparison(v.type))
+                            tree_skip.set(true);
+                    } else {
+                        // maybe patch contains syntax error
+                        System.out.printf("unknown variable name: %s\n", targetName);
+                    }
+                } else if(
+                    expr.getTarget() instanceof FieldAccessExpr &&
+                    ((FieldAccessExpr)expr.getTarget()).getScope() instanceof ThisExpr
+                ) { // this.field = xxx;
+                    String targetName = ((FieldAccessExpr)expr.getTarget()).getNameAsString();
+                    if (fields.containsKey(targetName)) {
+                        Variable v = fields.get(targetName);
+                        out.add(v);
+                        if(Args.ONLY_SAFE_TYPES_IN_TREE && !isTypeSafeForComparison(v.type))
+                            tree_skip.set(true);
+                    } else {
+                        // maybe patch contains syntax error
+                        System.out.printf("unknown variable name: %s\n", targetName);
                     }
+                } else if(mayContainDeepTarget(expr.getTarget(), fields)) { // e.g. field[i] = xxx;
+                    tree_skip.set(true);
+                }
+                // assigned to fields/method calls/reflections...
+            });
+
+            // detect uncomparable retval
+            if(!tree_skip.get() && !rettype_safe) {
+                stmt.walk(ReturnStmt.class, (ret)->{
+                    Expression expr = ret.getExpression().orElse(null);
+                    // everything other than `return;` and `return null;` are unsafe
+                    if(expr!=null && !(expr instanceof NullLiteralExpr))
+                        tree_skip.set(true);
+                });
+            }
 
-                    //long ts2 = System.nanoTime();
+            // check deep sidefx method calls
+            if(!tree_skip.get()) {
+                //long ts1 = System.nanoTime();
 
-                    //if(!Args.POPULATE_CACHE_FOR_SYMBOL_SOLVER)
-                    //    Main.total_offline_time_ns += ts2-ts1;
+                try {
+                    stmt.walk(MethodCallExpr.class, (call)->{
+                        if(tree_skip.get())
+                            return; // skip if already rejected
+
+
+                        if(!purity_source.isMethodCallPure(call)) {
+                            tree_skip.set(true);
+                        }
+                    });
+                } catch (ParseProblemException e) {
+                    System.out.println("sidefx analyzer parsing error!");
                 }
-            }
 
-            shallow_sidefxs.add(out);
-            should_tree_skip.add(tree_skip.get());
+                //long ts2 = System.nanoTime();
+
+                //if(!Args.POPULATE_CACHE_FOR_SYMBOL_SOLVER)
+                //    Main.total_offline_time_ns += ts2-ts1;
+            }
         }
+
+        return tree_skip.get();
     }
 
     private static final Set<String> SAFE_TYPES = new HashSet<>(Arrays.asList(
@@ -1,5 +1,6 @@
 package expressapr.igniter.purity;
 
+import com.github.javaparser.ParserConfiguration;
 import com.github.javaparser.ast.NodeList;
 import com.github.javaparser.ast.expr.MethodCallExpr;
 import com.github.javaparser.ast.stmt.Statement;
@@ -12,10 +13,30 @@ public interface AbstractPuritySource {
 
     /**
      * Also called once at the beginning of the analysis of each cluster.
-     * But this time with the list of patches.
+     * But this time with the list of patches, and the source of the target file where they are put.
      */
-    default void initializeForPatches(NodeList<Statement> patches) {}
+    default void initializeForPatches(NodeList<Statement> patches, String src_around_patches) {}
 
+    /**
+     * For a worker thread that analyzes its own copy of the patches, see `SideEffectAnalyzer.analyzeInParallel`.
+     * JavaParser keeps resolution caches in AST nodes and type solvers, so each worker parses the copy with this
+     * configuration, which is not used by other threads until it is released.
+     */
+    default ParserConfiguration acquireWorkerConfiguration() {
+        return new ParserConfiguration();
+    }
+
+    default void releaseWorkerConfiguration(ParserConfiguration config) {}
+
+    /**
+     * Called by the worker before calls in `copy` are analyzed. `copy` is parsed from the same code as `patch`, which
+     * was passed to `initializeForPatches`.
+     */
+    default void initializeForCopy(Statement patch, Statement copy) {}
+
+    /**
+     * May be called from several worker threads at the same time, each with calls in its own copy.
+     */
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     boolean isMethodCallPure(MethodCallExpr call);
 }
@@ -0,0 +1,1429 @@
+package expressapr.igniter.purity;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.signature.SignatureReader;
+import org.objectweb.asm.signature.SignatureVisitor;
+import org.objectweb.asm.tree.*;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Builds the sidefx db read by `SidefxDbSource` from compiled classes, i.e. `tp_src`, dependency jars and the JDK.
+ *
+ * Each method gets a conservative summary of what it may write: objects reachable from its params (incl. `this`), or
+ * anything else (static fields, native or unknown code). Writes to a param itself are told apart from writes to objects
+ * loaded from it, and writes to objects allocated in the method or its callees are ignored. An allocated object may
+ * still refer to a param or a global object stored into it, so the references stored into each allocated object are
+ * tracked by allocation site, and each method also gets a summary of what it may store into its params and into the
+ * objects it allocates. Summaries are propagated over calls, along with what each method may return, and over
+ * overrides, because a virtual call may reach any override in the loaded classes. Methods with a non-empty summary go
+ * to the db.
+ */
+public class BytecodePurityAnalyzer {
+    // bits of summaries: param k (`this` is param 0 of instance methods), objects loaded from param k at bit
+    // MAX_TRACKED_PARAMS+k, new objects, and anything else
+    private static final int MAX_TRACKED_PARAMS = 15;
+    private static final int PARAM_BITS = (1<<MAX_TRACKED_PARAMS)-1;
+    private static final int FRESH_BIT = 1<<30;
+    private static final int GLOBAL = 1<<31;
+
+    // objects in `evaluate` are summary bits but new objects, or one of these bits for objects allocated in the method or
+    // by one of its calls: site j at bit 32+j, or any site
+    private static final int MAX_TRACKED_SITES = 31;
+    private static final long ANY_SITE = 1L<<63;
+    private static final long SITE_BITS = 0xffffffff00000000L;
+
+    // tags of values in `analyzeCode`: param k is tagged k, and objects loaded from it MAX_TRACKED_PARAMS+k, the same as
+    // their bits; the result of call j is tagged RET_BASE-4j, allocation site j RET_BASE-4j-1, load j RET_BASE-4j-2, and
+    // merge j, which may be any of several tags, RET_BASE-4j-3
+    private static final int OTHER = -1;
+    private static final int FRESH = -2; // allocated at one of several sites
+    private static final int CONST = -3; // null and strings, incl. their contents, which are never written
+    private static final int RET_BASE = -4;
+    private static final int MAX_MERGES = 64;
+
+    private static final String JDK_MODULE_PREFIX = "java.";
+
+    private static final Set<String> PURE_NATIVE_CLASSES = new HashSet<>(Arrays.asList(
+        "java/lang/Math", "java/lang/StrictMath"
+    ));
+    private static final Set<String> PURE_NATIVE_METHODS = new HashSet<>(Arrays.asList(
+        "java/lang/Object.getClass", "java/lang/Object.hashCode",
+        "java/lang/System.identityHashCode", "java/lang/System.nanoTime", "java/lang/System.currentTimeMillis",
+        "java/lang/Thread.currentThread",
+        "java/lang/Float.floatToRawIntBits", "java/lang/Float.intBitsToFloat",
+        "java/lang/Double.doubleToRawLongBits", "java/lang/Double.longBitsToDouble",
+        "java/lang/Class.isInstance", "java/lang/Class.isArray", "java/lang/Class.isPrimitive", "java/lang/Class.isInterface",
+        "java/lang/Class.isAssignableFrom", "java/lang/Class.getModifiers", "java/lang/Class.getSuperclass",
+        "java/lang/NullPointerException.getExtendedNPEMessage"
+    ));
+    // natives that only write their params
+    private static final Map<String, Integer> NATIVE_PARAM_WRITES = new HashMap<>();
+    static {
+        NATIVE_PARAM_WRITES.put("java/lang/System.arraycopy", 1<<2);
+        NATIVE_PARAM_WRITES.put("java/lang/Throwable.fillInStackTrace", 1<<0);
+    }
+    // natives that store references from their params into another param, as tags of the target and the value
+    private static final Map<String, int[]> NATIVE_PARAM_STORES = new HashMap<>();
+    static {
+        NATIVE_PARAM_STORES.put("java/lang/System.arraycopy", new int[] {2, MAX_TRACKED_PARAMS}); // elements of param 0
+    }
+
+    private static class ClassInfo {
+        final String name;
+        final String super_name;
+        final List<String> interfaces;
+        final boolean is_interface;
+        final String db_name; // null for anonymous and local classes
+        final Map<String, MethodInfo> methods = new LinkedHashMap<>(); // by name+desc
+        List<String> supertypes = null; // see `supertypesOf`
+
+        ClassInfo(ClassNode node) {
+            name = node.name;
+            super_name = node.superName;
+            interfaces = node.interfaces;
+            is_interface = (node.access & Opcodes.ACC_INTERFACE)!=0;
+
+            String db_name = node.name.replace('/', '.');
+            for(InnerClassNode inner: node.innerClasses)
+                if(inner.name.equals(node.name)) {
+                    db_name = inner.outerName==null || inner.innerName==null ? null : db_name.replace('$', '.');
+                    break;
+                }
+            this.db_name = db_name;
+        }
+    }
+
+    private static class CallSite {
+        final String owner, name, desc;
+        int[] arg_tags = null; // receiver first, or null if the call is unreachable
+        MethodInfo callee = null; // set in `link`, or null if unknown
+        int site = -1; // allocation site of new objects from the callee, once it returns or stores any
+
+        CallSite(String owner, String name, String desc) {
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+        }
+
+        CallSite(MethodInfo callee, int[] arg_tags) {
+            this(callee.cls.name, callee.name, callee.desc);
+            this.callee = callee;
+            this.arg_tags = arg_tags;
+        }
+    }
+
+    private static class MethodInfo {
+        final ClassInfo cls;
+        final String name, desc, signature;
+        final int access;
+
+        // effects that do not depend on callees
+        int local_summary = 0;
+        String local_reason = null;
+        final List<CallSite> calls = new ArrayList<>();
+        final List<Integer> loads = new ArrayList<>(); // tag of the object loaded from, by load index
+        final List<Set<Integer>> merges = new ArrayList<>(); // tags that each merge may be, none of them merges
+        int sites = 0;
+        final List<Integer> write_tags = new ArrayList<>(); // of call results and loaded values
+        final List<Integer> return_tags = new ArrayList<>();
+        final List<int[]> store_tags = new ArrayList<>(); // target, value, and 1 if the value is loaded from the tag
+        final Set<Integer> primitive_arrays = new HashSet<>(); // tags of values that never refer to objects
+
+        int summary = 0;
+        String reason = null; // why the summary is not empty
+        int returns = 0; // what the returned value may be, in summary bits
+        int[] param_stores = null; // what it may store into each param and objects loaded from it, by summary bit
+        int fresh_stores = 0; // what it may store into new objects that it returns or stores into params
+
+        // what may be stored into objects allocated in the method or its calls, by site, or into any of them
+        long[] site_stores = null;
+        long any_site_stores = 0;
+        long escaping = 0; // objects stored into params
+        long[] values = null; // what each call result, load and merge may be, by RET_BASE-tag, see `resolveAll`
+        final List<MethodInfo> callers = new ArrayList<>();
+        boolean queued = false;
+
+        MethodInfo(ClassInfo cls, MethodNode node) {
+            this.cls = cls;
+            this.name = node.name;
+            this.desc = node.desc;
+            this.signature = node.signature;
+            this.access = node.access;
+        }
+
+        boolean isStatic() {
+            return (access & Opcodes.ACC_STATIC)!=0;
+        }
+
+        boolean isOverridable() {
+            return (access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE))==0 && !name.startsWith("<");
+        }
+
+        void addLocalEffect(int effect, String why) {
+            if((local_summary|effect)!=local_summary && local_reason==null)
+                local_reason = why;
+            local_summary |= effect;
+        }
+
+        void addWrite(int tag, String why) {
+            if(tag<=RET_BASE && !isSiteTag(tag)) {
+                if(!write_tags.contains(tag))
+                    write_tags.add(tag);
+                return;
+            }
+            if(tag!=FRESH && tag!=CONST && !isSiteTag(tag))
+                addLocalEffect(tag>=0 ? 1<<tag : GLOBAL, why);
+        }
+
+        void addReturn(int tag) {
+            if(!return_tags.contains(tag))
+                return_tags.add(tag);
+        }
+
+        void addStore(int target, int value, boolean loaded) {
+            if(target==OTHER || target==CONST || value==CONST)
+                return; // objects loaded from global objects are global anyway
+            for(int[] store: store_tags)
+                if(store[0]==target && store[1]==value && store[2]==(loaded ? 1 : 0))
+                    return;
+            store_tags.add(new int[] {target, value, loaded ? 1 : 0});
+        }
+
+        String key() {
+            return cls.name + "." + name + desc;
+        }
+    }
+
+    private final Map<String, ClassInfo> classes = new HashMap<>();
+    // interface, sam name, sam desc, and the implementation handle
+    private final List<Object[]> lambdas = new ArrayList<>();
+    private int skipped_classes = 0;
+
+    public void addJdkClasses() throws IOException {
+        Path rt_jar = Paths.get(System.getProperty("java.home"), "lib", "rt.jar");
+        if(Files.isRegularFile(rt_jar)) { // jdk 8
+            addClassPath(rt_jar.toString());
+            return;
+        }
+
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        try(DirectoryStream<Path> modules = Files.newDirectoryStream(jrt.getPath("/modules"))) {
+            for(Path module: modules)
+                if(module.getFileName().toString().replace("/", "").startsWith(JDK_MODULE_PREFIX))
+                    addClassDir(module);
+        }
+        System.out.printf("bytecode purity: loaded %d classes incl. jdk\n", classes.size());
+    }
+
+    /**
+     * Classes already loaded take precedence, as on a class path.
+     */
+    public void addClassPath(String path) throws IOException {
+        File file = new File(path);
+        if(file.isDirectory()) {
+            addClassDir(file.toPath());
+        } else if(file.isFile()) {
+            try(ZipFile zip = new ZipFile(file)) {
+                for(ZipEntry entry: Collections.list(zip.entries()))
+                    if(isClassFile(entry.getName()))
+                        try(InputStream is = zip.getInputStream(entry)) {
+                            addClass(readAll(is));
+                        }
+            }
+        } else {
+            System.out.printf("bytecode purity: class path not found: %s\n", path);
+            return;
+        }
+        System.out.printf("bytecode purity: loaded %d classes after %s\n", classes.size(), path);
+    }
+
+    private void addClassDir(Path root) throws IOException {
+        List<Path> files;
+        try(Stream<Path> walk = Files.walk(root)) {
+            files = walk
+                .filter(p -> isClassFile(root.relativize(p).toString()))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+        for(Path file: files)
+            addClass(Files.readAllBytes(file));
+    }
+
+    private static boolean isClassFile(String name) {
+        return name.endsWith(".class") && !name.endsWith("module-info.class") && !name.startsWith("META-INF");
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int len;
+        while((len = is.read(buf))!=-1)
+            out.write(buf, 0, len);
+        return out.toByteArray();
+    }
+
+    private void addClass(byte[] bytes) {
+        ClassNode node = new ClassNode();
+        try {
+            ClassReader reader = new ClassReader(bytes);
+            if(classes.containsKey(reader.getClassName()))
+                return;
+            reader.accept(node, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        } catch(RuntimeException e) { // e.g. a class file version unknown to asm
+            skipped_classes++;
+            return;
+        }
+
+        ClassInfo cls = new ClassInfo(node);
+        for(MethodNode method_node: node.methods) {
+            MethodInfo method = new MethodInfo(cls, method_node);
+            analyzeLocally(method, method_node);
+            cls.methods.put(method.name+method.desc, method);
+        }
+        classes.put(cls.name, cls);
+    }
+
+    private static boolean isPureNative(String owner, String name) {
+        return PURE_NATIVE_CLASSES.contains(owner) || PURE_NATIVE_METHODS.contains(owner+"."+name);
+    }
+
+    private void analyzeLocally(MethodInfo method, MethodNode node) {
+        if((node.access & Opcodes.ACC_NATIVE)!=0) {
+            Integer param_writes = NATIVE_PARAM_WRITES.get(method.cls.name+"."+method.name);
+            if(param_writes!=null)
+                method.addLocalEffect(param_writes, "native");
+            else if(!isPureNative(method.cls.name, method.name))
+                method.addLocalEffect(GLOBAL, "native");
+            int[] param_stores = NATIVE_PARAM_STORES.get(method.cls.name+"."+method.name);
+            if(param_stores!=null)
+                method.addStore(param_stores[0], param_stores[1], false);
+            method.addReturn(OTHER);
+            return;
+        }
+        if(node.instructions.size()==0) // abstract
+            return;
+
+        try {
+            analyzeCode(method, node);
+        } catch(RuntimeException e) {
+            method.calls.clear();
+            method.loads.clear();
+            method.primitive_arrays.clear();
+            method.write_tags.clear();
+            method.return_tags.clear();
+            method.store_tags.clear();
+            method.addLocalEffect(GLOBAL, "unknown:"+e.getMessage());
+            method.addReturn(OTHER);
+        }
+    }
+
+    private static boolean isAssumedPure(MethodInsnNode call) {
+        return TrivialPuritySource.ALWAYS_PURE_METHODS.contains(call.name); // same assumption as in the trivial source
+    }
+
+    private static class Frame {
+        final int[] locals;
+        final int[] stack;
+        int sp = 0;
+
+        Frame(int max_locals, int max_stack) {
+            locals = new int[max_locals];
+            stack = new int[max_stack];
+        }
+
+        Frame(Frame other) {
+            locals = other.locals.clone();
+            stack = other.stack.clone();
+            sp = other.sp;
+        }
+
+        void push(int v) {
+            stack[sp++] = v;
+        }
+
+        void push(int v, int size) {
+            for(int i=0; i<size; i++)
+                push(size==1 ? v : OTHER);
+        }
+
+        int pop() {
+            return stack[--sp];
+        }
+
+        void pop(int size) {
+            sp -= size;
+        }
+
+        /**
+         * @return Whether `this` is changed.
+         */
+        boolean merge(Frame other, MethodInfo method) {
+            if(sp!=other.sp)
+                throw new RuntimeException("stack height mismatch");
+
+            boolean changed = false;
+            for(int i=0; i<locals.length; i++) {
+                int tag = merged(locals[i], other.locals[i], method);
+                changed |= tag!=locals[i];
+                locals[i] = tag;
+            }
+            for(int i=0; i<sp; i++) {
+                int tag = merged(stack[i], other.stack[i], method);
+                changed |= tag!=stack[i];
+                stack[i] = tag;
+            }
+            return changed;
+        }
+
+        private static int merged(int tag1, int tag2, MethodInfo method) {
+            if(tag1==tag2)
+                return tag1;
+            if(tag1==OTHER || tag2==OTHER)
+                return OTHER;
+            boolean fresh1 = tag1==FRESH || isSiteTag(tag1), fresh2 = tag2==FRESH || isSiteTag(tag2);
+            if(fresh1 && fresh2) // allocated at either site
+                return FRESH;
+
+            Set<Integer> tags = new TreeSet<>();
+            for(int tag: new int[] {tag1, tag2})
+                if(isMergeTag(tag))
+                    tags.addAll(method.merges.get(mergeIndex(tag)));
+                else
+                    tags.add(tag);
+            int idx = method.merges.indexOf(tags);
+            if(idx<0) {
+                if(method.merges.size()>=MAX_MERGES)
+                    return OTHER;
+                idx = method.merges.size();
+                method.merges.add(tags);
+                if(method.primitive_arrays.containsAll(tags))
+                    method.primitive_arrays.add(mergeTag(idx));
+            }
+            return mergeTag(idx);
+        }
+    }
+
+    /**
+     * Tracks which values may be params or fresh objects, then records writes and calls with the final frames.
+     */
+    private void analyzeCode(MethodInfo method, MethodNode node) {
+        AbstractInsnNode[] insns = node.instructions.toArray();
+        Frame[] frames = new Frame[insns.length];
+
+        Frame entry = new Frame(node.maxLocals, node.maxStack);
+        Arrays.fill(entry.locals, OTHER);
+        int slot = 0, param = 0;
+        if(!method.isStatic())
+            entry.locals[slot++] = param++;
+        for(Type arg: Type.getArgumentTypes(node.desc)) {
+            if(isString(arg))
+                entry.locals[slot] = CONST;
+            else if(arg.getSize()==1)
+                entry.locals[slot] = arg.getSort()>=Type.ARRAY && param<MAX_TRACKED_PARAMS ? param : OTHER;
+            if(isPrimitiveArray(arg) && param<MAX_TRACKED_PARAMS)
+                method.primitive_arrays.add(param);
+            slot += arg.getSize();
+            param++;
+        }
+
+        List<List<Integer>> handlers = new ArrayList<>();
+        for(int i=0; i<insns.length; i++)
+            handlers.add(new ArrayList<>());
+        for(TryCatchBlockNode block: node.tryCatchBlocks) {
+            int start = node.instructions.indexOf(block.start), end = node.instructions.indexOf(block.end);
+            int handler = node.instructions.indexOf(block.handler);
+            for(int i=start; i<end; i++)
+                handlers.get(i).add(handler);
+        }
+
+        // results of calls are tagged by the index in `method.calls`, and so are allocations and loads of references
+        int[] indices = new int[insns.length];
+        for(int i=0; i<insns.length; i++) {
+            int op = insns[i].getOpcode();
+            if(insns[i] instanceof MethodInsnNode && !isAssumedPure((MethodInsnNode)insns[i])) {
+                MethodInsnNode call = (MethodInsnNode)insns[i];
+                indices[i] = method.calls.size();
+                method.calls.add(new CallSite(call.owner, call.name, call.desc));
+                if(isPrimitiveArray(Type.getReturnType(call.desc)))
+                    method.primitive_arrays.add(callTag(indices[i]));
+            } else if(insns[i] instanceof MethodInsnNode || op==Opcodes.NEW || op==Opcodes.NEWARRAY || op==Opcodes.ANEWARRAY || op==Opcodes.MULTIANEWARRAY) {
+                indices[i] = method.sites++; // incl. clone
+                if(op==Opcodes.NEWARRAY)
+                    method.primitive_arrays.add(siteTag(indices[i]));
+            } else if(op==Opcodes.AALOAD || op==Opcodes.GETFIELD && Type.getType(((FieldInsnNode)insns[i]).desc).getSort()>=Type.ARRAY) {
+                indices[i] = method.loads.size();
+                method.loads.add(OTHER); // until the frame is known
+                if(op==Opcodes.GETFIELD && isPrimitiveArray(Type.getType(((FieldInsnNode)insns[i]).desc)))
+                    method.primitive_arrays.add(loadTag(indices[i]));
+            }
+        }
+
+        Deque<Integer> worklist = new ArrayDeque<>();
+        frames[0] = entry;
+        worklist.add(0);
+        while(!worklist.isEmpty()) {
+            int idx = worklist.poll();
+            Frame out = new Frame(frames[idx]);
+            execute(insns[idx], indices[idx], out, method, false);
+
+            for(int succ: successors(insns, idx, node))
+                if(frames[succ]==null) {
+                    frames[succ] = new Frame(out);
+                    worklist.add(succ);
+                } else if(frames[succ].merge(out, method)) {
+                    worklist.add(succ);
+                }
+
+            for(int handler: handlers.get(idx))
+                for(Frame f: Arrays.asList(frames[idx], out)) {
+                    Frame exc = new Frame(f);
+                    exc.sp = 0;
+                    exc.push(OTHER);
+                    if(frames[handler]==null) {
+                        frames[handler] = exc;
+                        worklist.add(handler);
+                    } else if(frames[handler].merge(exc, method)) {
+                        worklist.add(handler);
+                    }
+                }
+        }
+
+        for(int i=0; i<insns.length; i++)
+            if(frames[i]!=null) // unreachable otherwise
+                execute(insns[i], indices[i], new Frame(frames[i]), method, true);
+    }
+
+    private static List<Integer> successors(AbstractInsnNode[] insns, int idx, MethodNode node) {
+        AbstractInsnNode insn = insns[idx];
+        List<Integer> ret = new ArrayList<>();
+
+        if(insn instanceof JumpInsnNode) {
+            ret.add(node.instructions.indexOf(((JumpInsnNode)insn).label));
+            if(insn.getOpcode()==Opcodes.GOTO)
+                return ret;
+        } else if(insn instanceof TableSwitchInsnNode) {
+            ret.add(node.instructions.indexOf(((TableSwitchInsnNode)insn).dflt));
+            for(LabelNode label: ((TableSwitchInsnNode)insn).labels)
+                ret.add(node.instructions.indexOf(label));
+            return ret;
+        } else if(insn instanceof LookupSwitchInsnNode) {
+            ret.add(node.instructions.indexOf(((LookupSwitchInsnNode)insn).dflt));
+            for(LabelNode label: ((LookupSwitchInsnNode)insn).labels)
+                ret.add(node.instructions.indexOf(label));
+            return ret;
+        } else {
+            int op = insn.getOpcode();
+            if((op>=Opcodes.IRETURN && op<=Opcodes.RETURN) || op==Opcodes.ATHROW)
+                return ret;
+        }
+
+        if(idx+1<insns.length)
+            ret.add(idx+1);
+        return ret;
+    }
+
+    private void execute(AbstractInsnNode insn, int idx, Frame f, MethodInfo method, boolean record) {
+        int op = insn.getOpcode();
+        int v1, v2, v3, v4;
+
+        switch(op) {
+            case -1: // label, line number or frame
+            case Opcodes.NOP:
+            case Opcodes.IINC:
+            case Opcodes.GOTO:
+            case Opcodes.CHECKCAST:
+            case Opcodes.RETURN:
+                break;
+
+            case Opcodes.ACONST_NULL:
+                f.push(CONST);
+                break;
+            case Opcodes.ICONST_M1: case Opcodes.ICONST_0: case Opcodes.ICONST_1: case Opcodes.ICONST_2:
+            case Opcodes.ICONST_3: case Opcodes.ICONST_4: case Opcodes.ICONST_5:
+            case Opcodes.FCONST_0: case Opcodes.FCONST_1: case Opcodes.FCONST_2:
+            case Opcodes.BIPUSH: case Opcodes.SIPUSH:
+            case Opcodes.ILOAD: case Opcodes.FLOAD:
+                f.push(OTHER);
+                break;
+            case Opcodes.LCONST_0: case Opcodes.LCONST_1: case Opcodes.DCONST_0: case Opcodes.DCONST_1:
+            case Opcodes.LLOAD: case Opcodes.DLOAD:
+                f.push(OTHER, 2);
+                break;
+            case Opcodes.LDC: {
+                Object cst = ((LdcInsnNode)insn).cst;
+                f.push(cst instanceof String ? CONST : OTHER, cst instanceof Long || cst instanceof Double ? 2 : 1);
+                break;
+            }
+            case Opcodes.ALOAD:
+                f.push(f.locals[((VarInsnNode)insn).var]);
+                break;
+
+            case Opcodes.ISTORE: case Opcodes.FSTORE:
+                f.pop();
+                f.locals[((VarInsnNode)insn).var] = OTHER;
+                break;
+            case Opcodes.LSTORE: case Opcodes.DSTORE:
+                f.pop(2);
+                f.locals[((VarInsnNode)insn).var] = OTHER;
+                f.locals[((VarInsnNode)insn).var+1] = OTHER;
+                break;
+            case Opcodes.ASTORE:
+                f.locals[((VarInsnNode)insn).var] = f.pop();
+                break;
+
+            case Opcodes.AALOAD:
+                f.pop();
+                f.push(load(f.pop(), idx, method, record));
+                break;
+            case Opcodes.IALOAD: case Opcodes.FALOAD:
+            case Opcodes.BALOAD: case Opcodes.CALOAD: case Opcodes.SALOAD:
+                f.pop(2);
+                f.push(OTHER);
+                break;
+            case Opcodes.LALOAD: case Opcodes.DALOAD:
+                f.pop(2);
+                f.push(OTHER, 2);
+                break;
+            case Opcodes.IASTORE: case Opcodes.FASTORE: case Opcodes.AASTORE:
+            case Opcodes.BASTORE: case Opcodes.CASTORE: case Opcodes.SASTORE:
+                v2 = f.pop();
+                f.pop();
+                v1 = f.pop();
+                if(record) {
+                    method.addWrite(v1, "array");
+                    if(op==Opcodes.AASTORE)
+                        method.addStore(v1, v2, false);
+                }
+                break;
+            case Opcodes.LASTORE: case Opcodes.DASTORE:
+                f.pop(3);
+                v1 = f.pop();
+                if(record)
+                    method.addWrite(v1, "array");
+                break;
+
+            case Opcodes.POP:
+            case Opcodes.IFEQ: case Opcodes.IFNE: case Opcodes.IFLT: case Opcodes.IFGE: case Opcodes.IFGT: case Opcodes.IFLE:
+            case Opcodes.IFNULL: case Opcodes.IFNONNULL:
+            case Opcodes.TABLESWITCH: case Opcodes.LOOKUPSWITCH:
+            case Opcodes.IRETURN: case Opcodes.FRETURN:
+            case Opcodes.ATHROW:
+            case Opcodes.MONITORENTER: case Opcodes.MONITOREXIT:
+                f.pop();
+                break;
+            case Opcodes.ARETURN:
+                v1 = f.pop();
+                if(record)
+                    method.addReturn(v1);
+                break;
+            case Opcodes.POP2:
+            case Opcodes.IF_ICMPEQ: case Opcodes.IF_ICMPNE: case Opcodes.IF_ICMPLT:
+            case Opcodes.IF_ICMPGE: case Opcodes.IF_ICMPGT: case Opcodes.IF_ICMPLE:
+            case Opcodes.IF_ACMPEQ: case Opcodes.IF_ACMPNE:
+            case Opcodes.LRETURN: case Opcodes.DRETURN:
+                f.pop(2);
+                break;
+
+            case Opcodes.DUP:
+                v1 = f.pop();
+                f.push(v1); f.push(v1);
+                break;
+            case Opcodes.DUP_X1:
+                v1 = f.pop(); v2 = f.pop();
+                f.push(v1); f.push(v2); f.push(v1);
+                break;
+            case Opcodes.DUP_X2:
+                v1 = f.pop(); v2 = f.pop(); v3 = f.pop();
+                f.push(v1); f.push(v3); f.push(v2); f.push(v1);
+                break;
+            case Opcodes.DUP2:
+                v1 = f.pop(); v2 = f.pop();
+                f.push(v2); f.push(v1); f.push(v2); f.push(v1);
+                break;
+            case Opcodes.DUP2_X1:
+                v1 = f.pop(); v2 = f.pop(); v3 = f.pop();
+                f.push(v2); f.push(v1); f.push(v3); f.push(v2); f.push(v1);
+                break;
+            case Opcodes.DUP2_X2:
+                v1 = f.pop(); v2 = f.pop(); v3 = f.pop(); v4 = f.pop();
+                f.push(v2); f.push(v1); f.push(v4); f.push(v3); f.push(v2); f.push(v1);
+                break;
+            case Opcodes.SWAP:
+                v1 = f.pop(); v2 = f.pop();
+                f.push(v1); f.push(v2);
+                break;
+
+            case Opcodes.IADD: case Opcodes.ISUB: case Opcodes.IMUL: case Opcodes.IDIV: case Opcodes.IREM:
+            case Opcodes.ISHL: case Opcodes.ISHR: case Opcodes.IUSHR: case Opcodes.IAND: case Opcodes.IOR: case Opcodes.IXOR:
+            case Opcodes.FADD: case Opcodes.FSUB: case Opcodes.FMUL: case Opcodes.FDIV: case Opcodes.FREM:
+            case Opcodes.FCMPL: case Opcodes.FCMPG:
+            case Opcodes.L2I: case Opcodes.L2F: case Opcodes.D2I: case Opcodes.D2F:
+                f.pop(2);
+                f.push(OTHER);
+                break;
+            case Opcodes.LADD: case Opcodes.LSUB: case Opcodes.LMUL: case Opcodes.LDIV: case Opcodes.LREM:
+            case Opcodes.LAND: case Opcodes.LOR: case Opcodes.LXOR:
+            case Opcodes.DADD: case Opcodes.DSUB: case Opcodes.DMUL: case Opcodes.DDIV: case Opcodes.DREM:
+                f.pop(4);
+                f.push(OTHER, 2);
+                break;
+            case Opcodes.LSHL: case Opcodes.LSHR: case Opcodes.LUSHR:
+                f.pop(3);
+                f.push(OTHER, 2);
+                break;
+            case Opcodes.LCMP: case Opcodes.DCMPL: case Opcodes.DCMPG:
+                f.pop(4);
+                f.push(OTHER);
+                break;
+            case Opcodes.INEG: case Opcodes.FNEG:
+            case Opcodes.I2F: case Opcodes.F2I: case Opcodes.I2B: case Opcodes.I2C: case Opcodes.I2S:
+            case Opcodes.ARRAYLENGTH: case Opcodes.INSTANCEOF:
+                f.pop();
+                f.push(OTHER);
+                break;
+            case Opcodes.LNEG: case Opcodes.DNEG: case Opcodes.L2D: case Opcodes.D2L:
+                f.pop(2);
+                f.push(OTHER, 2);
+                break;
+            case Opcodes.I2L: case Opcodes.I2D: case Opcodes.F2L: case Opcodes.F2D:
+                f.pop();
+                f.push(OTHER, 2);
+                break;
+
+            case Opcodes.GETSTATIC: {
+                Type type = Type.getType(((FieldInsnNode)insn).desc);
+                f.push(isString(type) ? CONST : OTHER, type.getSize());
+                break;
+            }
+            case Opcodes.PUTSTATIC: {
+                FieldInsnNode field = (FieldInsnNode)insn;
+                f.pop(Type.getType(field.desc).getSize());
+                if(record)
+                    method.addLocalEffect(GLOBAL, "static:"+field.owner+"."+field.name);
+                break;
+            }
+            case Opcodes.GETFIELD: {
+                Type type = Type.getType(((FieldInsnNode)insn).desc);
+                v1 = f.pop();
+                if(isString(type))
+                    f.push(CONST);
+                else if(type.getSort()>=Type.ARRAY)
+                    f.push(load(v1, idx, method, record));
+                else
+                    f.push(OTHER, type.getSize());
+                break;
+            }
+            case Opcodes.PUTFIELD: {
+                FieldInsnNode field = (FieldInsnNode)insn;
+                Type type = Type.getType(field.desc);
+                v2 = type.getSize()==1 ? f.pop() : OTHER;
+                f.pop(type.getSize()==1 ? 0 : 2);
+                v1 = f.pop();
+                if(record) {
+                    method.addWrite(v1, "field:"+field.owner+"."+field.name);
+                    if(type.getSort()>=Type.ARRAY)
+                        method.addStore(v1, v2, false);
+                }
+                break;
+            }
+
+            case Opcodes.INVOKEVIRTUAL: case Opcodes.INVOKESPECIAL: case Opcodes.INVOKESTATIC: case Opcodes.INVOKEINTERFACE: {
+                MethodInsnNode call = (MethodInsnNode)insn;
+                int[] tags = popArgs(f, call.desc, op!=Opcodes.INVOKESTATIC);
+                int ret_size = Type.getReturnType(call.desc).getSize();
+                if(isString(Type.getReturnType(call.desc)))
+                    f.push(CONST);
+                else if(isAssumedPure(call))
+                    f.push(call.name.equals("clone") ? siteTag(idx) : OTHER, ret_size);
+                else
+                    f.push(callTag(idx), ret_size);
+                if(record && isAssumedPure(call) && call.name.equals("clone") && tags.length>0) // the copy refers to the same objects
+                    method.addStore(siteTag(idx), tags[0], true);
+                if(record && !isAssumedPure(call))
+                    method.calls.get(idx).arg_tags = tags;
+                break;
+            }
+            case Opcodes.INVOKEDYNAMIC: {
+                InvokeDynamicInsnNode indy = (InvokeDynamicInsnNode)insn;
+                popArgs(f, indy.desc, false);
+                Type type = Type.getReturnType(indy.desc);
+                f.push(isString(type) ? CONST : OTHER, type.getSize());
+                if(record)
+                    recordInvokeDynamic(method, indy);
+                break;
+            }
+
+            case Opcodes.NEW:
+                f.push(siteTag(idx));
+                break;
+            case Opcodes.NEWARRAY: case Opcodes.ANEWARRAY:
+                f.pop();
+                f.push(siteTag(idx));
+                break;
+            case Opcodes.MULTIANEWARRAY:
+                f.pop(((MultiANewArrayInsnNode)insn).dims);
+                f.push(siteTag(idx)); // incl. the inner arrays
+                break;
+
+            default: // jsr and ret
+                throw new RuntimeException("unsupported opcode "+op);
+        }
+    }
+
+    private static int[] popArgs(Frame f, String desc, boolean has_receiver) {
+        Type[] args = Type.getArgumentTypes(desc);
+        int offset = has_receiver ? 1 : 0;
+        int[] tags = new int[args.length+offset];
+
+        for(int i=args.length-1; i>=0; i--) {
+            int size = args[i].getSize();
+            f.pop(size);
+            tags[i+offset] = size==1 ? f.stack[f.sp] : OTHER;
+        }
+        if(has_receiver)
+            tags[0] = f.pop();
+        return tags;
+    }
+
+    /**
+     * @return Tag of a reference loaded by load `idx` from a field or an element of the value tagged `tag`.
+     */
+    private static int load(int tag, int idx, MethodInfo method, boolean record) {
+        if(tag>=0) // owned by the param
+            return tag<MAX_TRACKED_PARAMS ? MAX_TRACKED_PARAMS+tag : tag;
+        if(tag==OTHER || tag==CONST)
+            return tag;
+        if(record)
+            method.loads.set(idx, tag);
+        return loadTag(idx);
+    }
+
+    private static boolean isString(Type type) {
+        return type.getDescriptor().equals("Ljava/lang/String;");
+    }
+
+    private static boolean isPrimitiveArray(Type type) {
+        return type.getSort()==Type.ARRAY && type.getDimensions()==1 && type.getElementType().getSort()<Type.ARRAY;
+    }
+
+    private static int callTag(int idx) {
+        return RET_BASE-4*idx;
+    }
+
+    private static int siteTag(int idx) {
+        return RET_BASE-4*idx-1;
+    }
+
+    private static int loadTag(int idx) {
+        return RET_BASE-4*idx-2;
+    }
+
+    private static int mergeTag(int idx) {
+        return RET_BASE-4*idx-3;
+    }
+
+    private static boolean isSiteTag(int tag) {
+        return tag<=RET_BASE && (RET_BASE-tag)%4==1;
+    }
+
+    private static boolean isMergeTag(int tag) {
+        return tag<=RET_BASE && (RET_BASE-tag)%4==3;
+    }
+
+    private static int mergeIndex(int tag) {
+        return (RET_BASE-tag)/4;
+    }
+
+    private void recordInvokeDynamic(MethodInfo method, InvokeDynamicInsnNode indy) {
+        String bsm_owner = indy.bsm.getOwner();
+        if(bsm_owner.equals("java/lang/invoke/StringConcatFactory"))
+            return;
+
+        if(bsm_owner.equals("java/lang/invoke/LambdaMetafactory") && indy.bsmArgs.length>=2 && indy.bsmArgs[1] instanceof Handle) {
+            // the lambda body runs when the interface method is called, see `link`
+            String iface = Type.getReturnType(indy.desc).getInternalName();
+            lambdas.add(new Object[] {iface, indy.name, ((Type)indy.bsmArgs[0]).getDescriptor(), indy.bsmArgs[1]});
+            return;
+        }
+
+        method.addLocalEffect(GLOBAL, "unknown:"+bsm_owner+"."+indy.bsm.getName());
+    }
+
+    /**
+     * The class itself, its superclasses, then all interfaces, in the order of method resolution.
+     */
+    private List<String> supertypesOf(ClassInfo cls) {
+        if(cls.supertypes!=null)
+            return cls.supertypes;
+
+        LinkedHashSet<String> ret = new LinkedHashSet<>();
+        List<ClassInfo> chain = new ArrayList<>();
+        for(ClassInfo c=cls; c!=null; c=c.super_name==null ? null : classes.get(c.super_name)) {
+            ret.add(c.name);
+            chain.add(c);
+        }
+        for(ClassInfo c: chain)
+            for(String iface: c.interfaces) {
+                ClassInfo iface_cls = classes.get(iface);
+                if(iface_cls==null)
+                    ret.add(iface);
+                else
+                    ret.addAll(supertypesOf(iface_cls));
+            }
+        if(cls.is_interface)
+            ret.add("java/lang/Object");
+
+        cls.supertypes = new ArrayList<>(ret);
+        return cls.supertypes;
+    }
+
+    private MethodInfo lookupMethod(String owner, String name, String desc) {
+        ClassInfo cls = classes.get(owner.startsWith("[") ? "java/lang/Object" : owner);
+        if(cls==null)
+            return null;
+
+        for(String supertype: supertypesOf(cls)) {
+            ClassInfo c = classes.get(supertype);
+            MethodInfo method = c==null ? null : c.methods.get(name+desc);
+            if(method!=null)
+                return method;
+        }
+        return null;
+    }
+
+    private static int[] identityTags(MethodInfo method) {
+        int[] tags = new int[Type.getArgumentTypes(method.desc).length + (method.isStatic() ? 0 : 1)];
+        for(int i=0; i<tags.length; i++)
+            tags[i] = i<MAX_TRACKED_PARAMS ? i : OTHER;
+        return tags;
+    }
+
+    private static void addCall(MethodInfo caller, MethodInfo callee, int[] arg_tags) {
+        caller.calls.add(new CallSite(callee, arg_tags));
+        caller.addReturn(callTag(caller.calls.size()-1));
+    }
+
+    /**
+     * Connects each method to its callees, overrides and lambda bodies, once all classes are loaded.
+     */
+    private void link() {
+        for(ClassInfo cls: classes.values())
+            for(MethodInfo method: cls.methods.values())
+                for(CallSite call: method.calls) {
+                    if(call.arg_tags==null) // unreachable
+                        continue;
+                    call.callee = lookupMethod(call.owner, call.name, call.desc);
+                    if(call.callee==null)
+                        method.addLocalEffect(GLOBAL, "unknown:"+call.owner+"."+call.name+call.desc);
+                }
+
+        // a call to the overridden method may reach the override, which may also be inherited from a superclass,
+        // so the overridden method calls each override in the summary
+        Map<MethodInfo, Set<MethodInfo>> overrides = new IdentityHashMap<>();
+        for(ClassInfo cls: classes.values()) {
+            List<String> supertypes = supertypesOf(cls);
+            for(int i=1; i<supertypes.size(); i++) {
+                ClassInfo supertype = classes.get(supertypes.get(i));
+                if(supertype==null)
+                    continue;
+                for(MethodInfo overridden: supertype.methods.values()) {
+                    if(!overridden.isOverridable())
+                        continue;
+                    MethodInfo method = cls.is_interface ? cls.methods.get(overridden.name+overridden.desc) : lookupMethod(cls.name, overridden.name, overridden.desc);
+                    if(method==null || method==overridden || !method.isOverridable())
+                        continue;
+                    if(overrides.computeIfAbsent(overridden, k -> Collections.newSetFromMap(new IdentityHashMap<>())).add(method))
+                        addCall(overridden, method, identityTags(overridden));
+                }
+            }
+        }
+
+        // captured args are not tracked, so they are all unknown
+        for(Object[] lambda: lambdas) {
+            MethodInfo sam = lookupMethod((String)lambda[0], (String)lambda[1], (String)lambda[2]);
+            if(sam==null)
+                continue; // nothing calls it through a loaded interface
+            Handle impl = (Handle)lambda[3];
+            MethodInfo impl_method = lookupMethod(impl.getOwner(), impl.getName(), impl.getDesc());
+            if(impl_method==null) {
+                sam.addLocalEffect(GLOBAL, "unknown:"+impl.getOwner()+"."+impl.getName()+impl.getDesc());
+                sam.addReturn(OTHER);
+                continue;
+            }
+            int[] tags = new int[identityTags(impl_method).length];
+            Arrays.fill(tags, OTHER);
+            addCall(sam, impl_method, tags);
+        }
+        lambdas.clear();
+
+        for(ClassInfo cls: classes.values())
+            for(MethodInfo method: cls.methods.values())
+                for(CallSite call: method.calls)
+                    if(call.callee!=null && call.callee!=method)
+                        call.callee.callers.add(method);
+    }
+
+    /**
+     * @return What the value tagged `tag` in `method` may be, as objects, with call results, loads and merges as of the
+     * last `resolveAll`.
+     */
+    private static long resolve(MethodInfo method, int tag) {
+        if(tag>=0)
+            return objects(1<<tag);
+        if(tag==FRESH)
+            return ANY_SITE;
+        if(tag==CONST)
+            return 0;
+        if(tag==OTHER)
+            return objects(GLOBAL);
+
+        int idx = (RET_BASE-tag)/4;
+        if(isSiteTag(tag))
+            return siteBit(idx);
+        return method.values!=null && RET_BASE-tag<method.values.length ? method.values[RET_BASE-tag] : 0;
+    }
+
+    /**
+     * Updates what call results, loads and merges may be, from the current stores and returned values of callees.
+     * They may depend on each other in loops, so they are iterated until none is changed.
+     */
+    private static void resolveAll(MethodInfo method) {
+        int count = 4*Math.max(method.calls.size(), Math.max(method.loads.size(), method.merges.size()));
+        if(method.values==null || method.values.length<count)
+            method.values = method.values==null ? new long[count] : Arrays.copyOf(method.values, count);
+
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(int i=0; i<count; i++) {
+                int idx = i/4;
+                long value = 0;
+                if(i%4==0 && idx<method.calls.size()) {
+                    CallSite call = method.calls.get(idx);
+                    if(call.arg_tags!=null) // reachable
+                        value = call.callee==null ? objects(GLOBAL) : mapThroughCall(method, call, call.callee.returns);
+                } else if(i%4==2 && idx<method.loads.size()) {
+                    value = loaded(method, resolve(method, method.loads.get(idx)));
+                } else if(i%4==3 && idx<method.merges.size()) {
+                    for(int tag: method.merges.get(idx))
+                        value |= resolve(method, tag);
+                }
+                changed |= (method.values[i] | value)!=method.values[i];
+                method.values[i] |= value;
+            }
+        }
+    }
+
+    private static long objects(int bits) {
+        return bits & 0xffffffffL;
+    }
+
+    /**
+     * @return Summary bits of `objs`, where objects allocated in the method are new objects.
+     */
+    private static int toBits(long objs) {
+        return (int)objs | ((objs & SITE_BITS)!=0 ? FRESH_BIT : 0);
+    }
+
+    /**
+     * @return What may be loaded from a field or an element of `objs`.
+     */
+    private static long loaded(MethodInfo method, long objs) {
+        int bits = (int)objs;
+        long ret = objects((bits & (GLOBAL | PARAM_BITS<<MAX_TRACKED_PARAMS)) | (bits & PARAM_BITS)<<MAX_TRACKED_PARAMS);
+        if((objs & ANY_SITE)!=0) {
+            ret |= siteStores(method);
+        } else if((objs & SITE_BITS)!=0) {
+            ret |= method.any_site_stores;
+            for(int i=0; method.site_stores!=null && i<method.site_stores.length; i++)
+                if((objs & 1L<<(32+i))!=0)
+                    ret |= method.site_stores[i];
+        }
+        return ret;
+    }
+
+    /**
+     * @return What may be loaded from `objs` through any number of fields or elements.
+     */
+    private static long deepLoaded(MethodInfo method, long objs) {
+        long ret = loaded(method, objs), prev = 0;
+        while(ret!=prev) {
+            prev = ret;
+            ret |= loaded(method, ret);
+        }
+        return ret;
+    }
+
+    private static long siteStores(MethodInfo method) {
+        long ret = method.any_site_stores;
+        if(method.site_stores!=null)
+            for(long stores: method.site_stores)
+                ret |= stores;
+        return ret;
+    }
+
+    private static long siteBit(int idx) {
+        return idx<MAX_TRACKED_SITES ? 1L<<(32+idx) : ANY_SITE;
+    }
+
+    /**
+     * @return New objects from the callee of `call`, as an allocation site of its own.
+     */
+    private static long calleeSite(MethodInfo method, CallSite call) {
+        if(call.site<0)
+            call.site = method.sites++;
+        return siteBit(call.site);
+    }
+
+    /**
+     * Replaces params of the callee in `bits` with args of the call, and new objects with objects allocated by the call.
+     */
+    private static long mapThroughCall(MethodInfo method, CallSite call, int bits) {
+        long ret = objects(bits & GLOBAL) | ((bits & FRESH_BIT)!=0 ? calleeSite(method, call) : 0);
+        for(int i=0; i<MAX_TRACKED_PARAMS; i++) {
+            if((bits & (1<<i | 1<<(MAX_TRACKED_PARAMS+i)))==0)
+                continue;
+            long arg = i<call.arg_tags.length ? resolve(method, call.arg_tags[i]) : objects(GLOBAL);
+            if((bits & 1<<i)!=0)
+                ret |= arg;
+            if((bits & 1<<(MAX_TRACKED_PARAMS+i))!=0)
+                ret |= deepLoaded(method, arg);
+        }
+        return ret;
+    }
+
+    /**
+     * Stores into global objects are not recorded, since objects loaded from them are global anyway.
+     *
+     * @return Whether what may be stored into objects allocated in the method or its calls is changed.
+     */
+    private static boolean storeInto(MethodInfo method, long targets, long value) {
+        int bits = (int)targets;
+        for(int i=0; i<2*MAX_TRACKED_PARAMS; i++)
+            if((bits & 1<<i)!=0) {
+                if(method.param_stores==null)
+                    method.param_stores = new int[2*MAX_TRACKED_PARAMS];
+                method.param_stores[i] |= toBits(value);
+                method.escaping |= value;
+            }
+
+        boolean changed = (targets & ANY_SITE)!=0 && (method.any_site_stores | value)!=method.any_site_stores;
+        if((targets & ANY_SITE)!=0)
+            method.any_site_stores |= value;
+
+        for(int i=0; i<MAX_TRACKED_SITES; i++)
+            if((targets & 1L<<(32+i))!=0) {
+                if(method.site_stores==null) // sites of calls may be added later, see `calleeSite`
+                    method.site_stores = new long[Math.min(method.sites, MAX_TRACKED_SITES)];
+                else if(method.site_stores.length<=i)
+                    method.site_stores = Arrays.copyOf(method.site_stores, Math.min(method.sites, MAX_TRACKED_SITES));
+                changed |= (method.site_stores[i] | value)!=method.site_stores[i];
+                method.site_stores[i] |= value;
+            }
+        return changed;
+    }
+
+    /**
+     * Recomputes the summary from the current summaries of callees. Writes to objects allocated in the method or its
+     * callees are ignored, but not writes to objects loaded from them.
+     *
+     * @return Whether the summary, the returned value or the stores are changed.
+     */
+    private static boolean evaluate(MethodInfo method) {
+        int old_summary = method.summary, old_returns = method.returns, old_fresh_stores = method.fresh_stores;
+        int[] old_param_stores = method.param_stores==null ? null : method.param_stores.clone();
+
+        if(method.summary==0 && method.local_summary!=0)
+            method.reason = method.local_reason;
+        method.summary |= method.local_summary;
+
+        // first, since loaded objects depend on them
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            resolveAll(method);
+            for(int[] store: method.store_tags) {
+                long value = resolve(method, store[1]);
+                changed |= storeInto(method, resolve(method, store[0]), store[2]!=0 ? loaded(method, value) : value);
+            }
+            for(CallSite call: method.calls) {
+                if(call.callee==null)
+                    continue;
+                int[] param_stores = call.callee.param_stores;
+                for(int i=0; param_stores!=null && i<2*MAX_TRACKED_PARAMS; i++) {
+                    if(param_stores[i]==0)
+                        continue;
+                    int param = i%MAX_TRACKED_PARAMS;
+                    if(param<call.arg_tags.length && method.primitive_arrays.contains(call.arg_tags[param]))
+                        continue; // e.g. copied by arraycopy
+                    long target = param<call.arg_tags.length ? resolve(method, call.arg_tags[param]) : objects(GLOBAL);
+                    if(i>=MAX_TRACKED_PARAMS)
+                        target = deepLoaded(method, target);
+                    changed |= storeInto(method, target, mapThroughCall(method, call, param_stores[i]));
+                }
+                if(call.callee.fresh_stores!=0)
+                    changed |= storeInto(method, calleeSite(method, call), mapThroughCall(method, call, call.callee.fresh_stores));
+            }
+        }
+
+        for(int tag: method.write_tags)
+            addEffect(method, toBits(resolve(method, tag)) & ~FRESH_BIT, (RET_BASE-tag)%4==0 ? "write:"+method.calls.get((RET_BASE-tag)/4).name : "write:loaded");
+        for(CallSite call: method.calls)
+            if(call.callee!=null && call.callee.summary!=0)
+                addEffect(method, toBits(mapThroughCall(method, call, call.callee.summary)) & ~FRESH_BIT, "call:"+call.callee.key());
+
+        long returns = 0;
+        for(int tag: method.return_tags)
+            returns |= resolve(method, tag);
+        method.returns |= toBits(returns);
+        // new objects that do not escape to the caller are not loaded from there, e.g. thrown exceptions are unknown
+        method.fresh_stores |= toBits(deepLoaded(method, (returns | method.escaping) & SITE_BITS));
+
+        return method.summary!=old_summary || method.returns!=old_returns || method.fresh_stores!=old_fresh_stores
+            || !Arrays.equals(method.param_stores, old_param_stores);
+    }
+
+    private static void addEffect(MethodInfo method, int effect, String why) {
+        if((method.summary|effect)!=method.summary && method.reason==null)
+            method.reason = why;
+        method.summary |= effect;
+    }
+
+    private void propagate() {
+        Deque<MethodInfo> worklist = new ArrayDeque<>();
+        for(ClassInfo cls: classes.values())
+            for(MethodInfo method: cls.methods.values()) {
+                method.queued = true;
+                worklist.add(method);
+            }
+
+        while(!worklist.isEmpty()) {
+            MethodInfo method = worklist.poll();
+            method.queued = false;
+
+            if(evaluate(method))
+                for(MethodInfo caller: method.callers)
+                    if(!caller.queued) {
+                        caller.queued = true;
+                        worklist.add(caller);
+                    }
+        }
+    }
+
+    private static class TypeRenderer extends SignatureVisitor {
+        private String name;
+        private TypeRenderer component = null;
+        private final List<Object[]> args = new ArrayList<>(); // wildcard and renderer
+
+        TypeRenderer() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public void visitBaseType(char descriptor) {
+            name = Type.getType(String.valueOf(descriptor)).getClassName();
+        }
+
+        @Override
+        public void visitTypeVariable(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public SignatureVisitor visitArrayType() {
+            component = new TypeRenderer();
+            return component;
+        }
+
+        @Override
+        public void visitClassType(String name) {
+            this.name = name.replace('/', '.').replace('$', '.');
+        }
+
+        @Override
+        public void visitInnerClassType(String name) {
+            this.name += "." + name;
+            args.clear(); // type args of the outer class are not rendered
+        }
+
+        @Override
+        public void visitTypeArgument() {
+            args.add(new Object[] {'*', null});
+        }
+
+        @Override
+        public SignatureVisitor visitTypeArgument(char wildcard) {
+            TypeRenderer arg = new TypeRenderer();
+            args.add(new Object[] {wildcard, arg});
+            return arg;
+        }
+
+        String render() {
+            if(component!=null)
+                return component.render() + "[]";
+            if(args.isEmpty())
+                return name;
+
+            List<String> rendered = new ArrayList<>();
+            for(Object[] arg: args) {
+                char wildcard = (char)arg[0];
+                if(wildcard=='*')
+                    rendered.add("?");
+                else if(wildcard==SignatureVisitor.EXTENDS)
+                    rendered.add("? extends " + ((TypeRenderer)arg[1]).render());
+                else if(wildcard==SignatureVisitor.SUPER)
+                    rendered.add("? super " + ((TypeRenderer)arg[1]).render());
+                else
+                    rendered.add(((TypeRenderer)arg[1]).render());
+            }
+            return name + "<" + String.join(", ", rendered) + ">";
+        }
+    }
+
+    private static class MethodSignatureRenderer extends SignatureVisitor {
+        final List<TypeRenderer> params = new ArrayList<>();
+        TypeRenderer ret = null;
+
+        MethodSignatureRenderer() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public SignatureVisitor visitParameterType() {
+            TypeRenderer param = new TypeRenderer();
+            params.add(param);
+            return param;
+        }
+
+        @Override
+        public SignatureVisitor visitReturnType() {
+            ret = new TypeRenderer();
+            return ret;
+        }
+
+        @Override
+        public SignatureVisitor visitClassBound() {
+            return new TypeRenderer();
+        }
+
+        @Override
+        public SignatureVisitor visitInterfaceBound() {
+            return new TypeRenderer();
+        }
+
+        @Override
+        public SignatureVisitor visitExceptionType() {
+            return new TypeRenderer();
+        }
+    }
+
+    /**
+     * @return The method in the format of `SidefxDbSource.resolveSignature`, or null if it cannot be called by name.
+     */
+    private static String dbSignature(MethodInfo method) {
+        if(method.cls.db_name==null || method.name.startsWith("<") || method.name.startsWith("lambda$"))
+            return null;
+        if((method.access & (Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE))!=0)
+            return null;
+
+        Type[] arg_types = Type.getArgumentTypes(method.desc);
+        List<String> params = new ArrayList<>();
+        String ret = null;
+
+        if(method.signature!=null) {
+            MethodSignatureRenderer renderer = new MethodSignatureRenderer();
+            try {
+                new SignatureReader(method.signature).accept(renderer);
+                if(renderer.params.size()==arg_types.length && renderer.ret!=null) {
+                    for(TypeRenderer param: renderer.params)
+                        params.add(param.render());
+                    ret = renderer.ret.render();
+                }
+            } catch(RuntimeException ignored) {} // malformed signature, use the descriptor instead
+        }
+        if(ret==null) {
+            params.clear();
+            for(Type arg: arg_types)
+                params.add(arg.getClassName().replace('$', '.'));
+            ret = Type.getReturnType(method.desc).getClassName().replace('$', '.');
+        }
+
+        int last = params.size()-1;
+        if((method.access & Opcodes.ACC_VARARGS)!=0 && last>=0 && params.get(last).endsWith("[]"))
+            params.set(last, params.get(last).substring(0, params.get(last).length()-2) + "...");
+
+        return String.format("<%s: %s %s(%s)>", method.cls.db_name, ret, method.name, String.join(", ", params));
+    }
+
+    /**
+     * @return Number of impure methods written.
+     */
+    public int writeDb(String path) throws IOException {
+        long ts1 = System.nanoTime();
+        link();
+        propagate();
+
+        TreeMap<String, String> lines = new TreeMap<>();
+        int method_cnt = 0;
+        for(ClassInfo cls: classes.values())
+            for(MethodInfo method: cls.methods.values()) {
+                String signature = dbSignature(method);
+                if(signature==null)
+                    continue;
+                method_cnt++;
+                if(method.summary!=0)
+                    lines.putIfAbsent(signature, method.reason.replace('\t', ' '));
+            }
+
+        try(BufferedWriter writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8)) {
+            for(Map.Entry<String, String> line: lines.entrySet()) {
+                writer.write(line.getKey() + "\t" + line.getValue());
+                writer.newLine();
+            }
+        }
+
+        long ts2 = System.nanoTime();
+        System.out.printf(
+            "bytecode purity: %d of %d methods impure (%d classes, %d skipped), written to %s in %d ms\n",
+            lines.size(), method_cnt, classes.size(), skipped_classes, path, (ts2-ts1)/1000000
+        );
+        return lines.size();
+    }
+
+    /**
+     * @param class_paths Project classes first, then dependencies. The JDK is always analyzed.
+     * @return Number of impure methods written.
+     */
+    public static int buildDb(List<String> class_paths, String db_path) throws IOException {
+        BytecodePurityAnalyzer analyzer = new BytecodePurityAnalyzer();
+        for(String path: class_paths)
+            analyzer.addClassPath(path);
+        analyzer.addJdkClasses();
+        return analyzer.writeDb(db_path);
+    }
+
+    // usage: BytecodePurityAnalyzer <db_path> <class_path>...
+    public static void main(String[] args) throws IOException {
+        if(args.length<1) {
+            System.out.println("usage: BytecodePurityAnalyzer <db_path> <class_path>...");
+            return;
+        }
+        buildDb(Arrays.asList(args).subList(1, args.length), args[0]);
+    }
+}
@@ -0,0 +1,197 @@
+package expressapr.igniter.purity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Read-only set of impure method signatures, in a binary file that is memory-mapped, so that all servants share one
+ * copy in the page cache instead of each holding a `HashSet<String>`.
+ *
+ * Signatures are stored sorted, in UTF-8. A minimal perfect hash (hash and displace) maps each of them to a slot,
+ * which points to its sorted index. Other strings are mapped to an arbitrary slot, so the bytes are compared.
+ *
+ * Layout, in big endian: magic, bucket count m, signature count n, int[m] displacements, int[n] slot -> index,
+ * int[n+1] offsets of signatures in the string area, and the string area.
+ */
+public class CompactSidefxDb {
+    private static final byte[] MAGIC = "EXPSFX\u0001\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = MAGIC.length + 8;
+
+    // one mapping for each file, kept for the whole servant
+    private static final Map<String, CompactSidefxDb> opened = new HashMap<>();
+
+    private final ByteBuffer buf;
+    private final int bucket_cnt, size;
+    private final int slots_pos, offsets_pos, strings_pos;
+
+    private CompactSidefxDb(ByteBuffer buf) {
+        this.buf = buf;
+        bucket_cnt = buf.getInt(MAGIC.length);
+        size = buf.getInt(MAGIC.length + 4);
+        slots_pos = HEADER_SIZE + 4*bucket_cnt;
+        offsets_pos = slots_pos + 4*size;
+        strings_pos = offsets_pos + 4*(size+1);
+    }
+
+    public static boolean isCompact(String path) {
+        byte[] head = new byte[MAGIC.length];
+        try(FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            return ch.read(ByteBuffer.wrap(head))==MAGIC.length && Arrays.equals(head, MAGIC);
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    public static CompactSidefxDb open(String path) throws IOException {
+        String key = Paths.get(path).toAbsolutePath().normalize().toString();
+        synchronized(opened) {
+            CompactSidefxDb db = opened.get(key);
+            if(db==null) {
+                try(FileChannel ch = FileChannel.open(Paths.get(key), StandardOpenOption.READ)) {
+                    MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                    db = new CompactSidefxDb(buf);
+                }
+                opened.put(key, db);
+                System.out.printf("compact sidefx db: mapped %d signatures from %s\n", db.size, key);
+            }
+            return db;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int hash(int seed, byte[] key) {
+        int h = 0x811c9dc5 ^ seed; // fnv-1a, then the murmur3 finalizer so that seeds are independent enough
+        for(byte b: key) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        h ^= h>>>16;
+        h *= 0x85ebca6b;
+        h ^= h>>>13;
+        h *= 0xc2b2ae35;
+        h ^= h>>>16;
+        return h & 0x7fffffff;
+    }
+
+    /**
+     * Only absolute reads are used, so it is safe to call from several threads.
+     */
+    public boolean contains(String signature) {
+        if(size==0)
+            return false;
+
+        byte[] key = signature.getBytes(StandardCharsets.UTF_8);
+        int disp = buf.getInt(HEADER_SIZE + 4*(hash(0, key) % bucket_cnt));
+        int slot = disp<0 ? -disp-1 : hash(disp, key) % size;
+        int idx = buf.getInt(slots_pos + 4*slot);
+
+        int start = buf.getInt(offsets_pos + 4*idx), end = buf.getInt(offsets_pos + 4*(idx+1));
+        if(end-start!=key.length)
+            return false;
+        for(int i=0; i<key.length; i++)
+            if(buf.get(strings_pos + start + i)!=key[i])
+                return false;
+        return true;
+    }
+
+    public static void write(Collection<String> signatures, String path) throws IOException {
+        long ts1 = System.nanoTime();
+
+        List<String> sorted = new ArrayList<>(new TreeSet<>(signatures));
+        int n = sorted.size();
+        byte[][] keys = new byte[n][];
+        for(int i=0; i<n; i++)
+            keys[i] = sorted.get(i).getBytes(StandardCharsets.UTF_8);
+
+        int m = Math.max(1, n);
+        List<List<Integer>> buckets = new ArrayList<>();
+        for(int b=0; b<m; b++)
+            buckets.add(new ArrayList<>());
+        for(int i=0; i<n; i++)
+            buckets.get(hash(0, keys[i]) % m).add(i);
+
+        // place larger buckets first, when most slots are still free
+        List<Integer> order = new ArrayList<>();
+        for(int b=0; b<m; b++)
+            order.add(b);
+        order.sort((a, b) -> buckets.get(b).size() - buckets.get(a).size());
+
+        int[] disps = new int[m];
+        int[] slots = new int[n];
+        Arrays.fill(slots, -1);
+        int free = 0;
+
+        for(int b: order) {
+            List<Integer> bucket = buckets.get(b);
+            if(bucket.size()>1) {
+                for(int disp=1; ; disp++) {
+                    Set<Integer> taken = new HashSet<>();
+                    for(int idx: bucket) {
+                        int slot = hash(disp, keys[idx]) % n;
+                        if(slots[slot]!=-1 || !taken.add(slot))
+                            break;
+                    }
+                    if(taken.size()==bucket.size()) {
+                        for(int idx: bucket)
+                            slots[hash(disp, keys[idx]) % n] = idx;
+                        disps[b] = disp;
+                        break;
+                    }
+                }
+            } else if(bucket.size()==1) { // any free slot will do
+                while(slots[free]!=-1)
+                    free++;
+                slots[free] = bucket.get(0);
+                disps[b] = -free-1;
+            }
+        }
+
+        int string_bytes = 0;
+        for(byte[] key: keys)
+            string_bytes += key.length;
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 4*m + 4*n + 4*(n+1) + string_bytes);
+        out.put(MAGIC).putInt(m).putInt(n);
+        for(int disp: disps)
+            out.putInt(disp);
+        for(int slot: slots)
+            out.putInt(slot);
+        int offset = 0;
+        for(byte[] key: keys) {
+            out.putInt(offset);
+            offset += key.length;
+        }
+        out.putInt(offset);
+        for(byte[] key: keys)
+            out.put(key);
+
+        // written aside and moved, so that a servant never maps a partial file
+        Path dest = Paths.get(path);
+        Path tmp = Paths.get(path + ".tmp");
+        Files.write(tmp, out.array());
+        Files.move(tmp, dest, StandardCopyOption.REPLACE_EXISTING);
+
+        long ts2 = System.nanoTime();
+        System.out.printf("compact sidefx db: wrote %d signatures (%d bytes) to %s in %d ms\n", n, out.capacity(), path, (ts2-ts1)/1000000);
+    }
+
+    /**
+     * @return Number of signatures.
+     */
+    public static int compactTextDb(String text_path, String path) throws IOException {
+        Set<String> signatures = SidefxDbSource.readTextDb(text_path);
+        write(signatures, path);
+        return signatures.size();
+    }
+}
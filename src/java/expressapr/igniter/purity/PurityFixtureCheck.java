@@ -0,0 +1,126 @@
+package expressapr.igniter.purity;
+
+import com.github.javaparser.StaticJavaParser;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks the purity analyzers against a fixture directory (see src/fixtures/purity), which holds java sources and
+ * an `expected.txt` of verdicts. The fixtures are compiled and analyzed together with the JDK, then the db is
+ * compacted and every entry of the text db must be found in the compact one.
+ */
+public class PurityFixtureCheck {
+    private static final String CALL_WRAPPER = "class _PurityFixtureCheck { void f() { %s; } }";
+
+    public static void main(String[] args) throws IOException {
+        if(args.length!=1) {
+            System.out.println("usage: PurityFixtureCheck <fixture_dir>");
+            return;
+        }
+        Path fixture_dir = Paths.get(args[0]).toAbsolutePath().normalize();
+        Path work_dir = Files.createTempDirectory("expapr-purity-fixture");
+
+        List<String> failures = new ArrayList<>();
+        int check_cnt = 0;
+
+        // bytecode db
+
+        Path class_dir = work_dir.resolve("classes");
+        compile(fixture_dir, class_dir);
+        String text_db = work_dir.resolve("sidefx.tsv").toString();
+        BytecodePurityAnalyzer.buildDb(Collections.singletonList(class_dir.toString()), text_db);
+        Set<String> impure = SidefxDbSource.readTextDb(text_db);
+
+        List<String> expected = Files.readAllLines(fixture_dir.resolve("expected.txt"), StandardCharsets.UTF_8);
+        List<String[]> source_checks = new ArrayList<>();
+        for(String line: expected) {
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] items = line.split(" ", 2);
+            if(items.length!=2)
+                throw new RuntimeException("invalid line in expected.txt: "+line);
+
+            if(items[0].equals("impure") || items[0].equals("pure")) {
+                check_cnt++;
+                if(impure.contains(items[1]) != items[0].equals("impure"))
+                    failures.add("bytecode: expected "+line);
+            } else if(items[0].equals("source-impure") || items[0].equals("source-pure")) {
+                source_checks.add(items);
+            } else
+                throw new RuntimeException("invalid line in expected.txt: "+line);
+        }
+
+        // compact db round trip
+
+        String compact_db = work_dir.resolve("sidefx.bin").toString();
+        CompactSidefxDb.compactTextDb(text_db, compact_db);
+        CompactSidefxDb compact = CompactSidefxDb.open(compact_db);
+        check_cnt++;
+        if(compact.size()!=impure.size())
+            failures.add(String.format("compact db: %d signatures, text db has %d", compact.size(), impure.size()));
+        int missing_cnt = 0;
+        for(String signature: impure)
+            if(!compact.contains(signature)) {
+                if(missing_cnt++<10)
+                    failures.add("compact db: missing "+signature);
+            }
+        if(missing_cnt>10)
+            failures.add(String.format("compact db: %d more missing", missing_cnt-10));
+
+        // source analysis, with the fixtures left out of the db so that their sources are analyzed
+
+        String src_db = work_dir.resolve("sidefx-jdk.bin").toString();
+        CompactSidefxDb.write(
+            impure.stream()
+                .filter(s -> !s.startsWith("<demo."))
+                .collect(Collectors.toList()),
+            src_db
+        );
+        SidefxDbSource source = new SidefxDbSource(src_db, fixture_dir.toString());
+        source.initialize();
+        for(String[] items: source_checks) {
+            check_cnt++;
+            MethodCallExpr call = StaticJavaParser.parse(String.format(CALL_WRAPPER, items[1]))
+                .findFirst(MethodCallExpr.class)
+                .orElseThrow(() -> new RuntimeException("no call in expected.txt: "+items[1]));
+            if(source.isMethodCallPure(call) != items[0].equals("source-pure"))
+                failures.add("source: expected "+items[0]+" "+items[1]);
+        }
+
+        for(String failure: failures)
+            System.out.println("FAIL "+failure);
+        System.out.printf("purity fixture check: %d of %d checks passed\n", check_cnt-failures.size(), check_cnt);
+        if(!failures.isEmpty())
+            throw new RuntimeException("purity fixture check failed");
+    }
+
+    private static void compile(Path src_dir, Path out_dir) throws IOException {
+        List<String> sources;
+        try(Stream<Path> files = Files.walk(src_dir)) {
+            sources = files
+                .filter(p -> p.toString().endsWith(".java"))
+                .map(Path::toString)
+                .collect(Collectors.toList());
+        }
+        Files.createDirectories(out_dir);
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if(javac==null)
+            throw new RuntimeException("java compiler not found, run with a JDK");
+        List<String> javac_args = new ArrayList<>(Arrays.asList("-nowarn", "-d", out_dir.toString()));
+        javac_args.addAll(sources);
+        if(javac.run(null, null, null, javac_args.toArray(new String[0]))!=0)
+            throw new RuntimeException("failed to compile fixtures in "+src_dir);
+    }
+}
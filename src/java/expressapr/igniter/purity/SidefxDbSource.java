@@ -1,45 +1,102 @@
 package expressapr.igniter.purity;
 
+import com.github.javaparser.ParserConfiguration;
 import com.github.javaparser.StaticJavaParser;
+import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.NodeList;
 import com.github.javaparser.ast.expr.MethodCallExpr;
 import com.github.javaparser.ast.stmt.BlockStmt;
 import com.github.javaparser.ast.stmt.Statement;
+import com.github.javaparser.resolution.SymbolResolver;
 import com.github.javaparser.resolution.UnsolvedSymbolException;
 import com.github.javaparser.resolution.declarations.ResolvedMethodDeclaration;
 import com.github.javaparser.symbolsolver.JavaSymbolSolver;
+import com.github.javaparser.symbolsolver.javaparsermodel.declarations.JavaParserMethodDeclaration;
 import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
 import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
 import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
 import expressapr.igniter.Args;
+import expressapr.igniter.CompileCache;
 import expressapr.igniter.Main;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashSet;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class SidefxDbSource extends TrivialPuritySource implements AbstractPuritySource {
-    private HashSet<String> impureMethodSet = new HashSet<>();
+    private Set<String> impureMethodSet = null; // for a text db
+    private CompactSidefxDb compact_db = null;
+    private SourcePurityAnalyzer source_analyzer = null; // for project methods not in the db
     private String sidefx_db_path;
     private String src_absolute_path;
 
     private boolean symbol_solver_initialized;
 
+    // one solver for each source root, kept for the whole servant, see `getSymbolSolver`
+    private static final Map<String, Future<JavaSymbolSolver>> symbol_solvers = new HashMap<>();
+    private static final ExecutorService solver_warmer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "symbol-solver-warmer");
+        t.setDaemon(true);
+        return t;
+    });
+    // further solvers lent to workers of a parallel analysis, see `acquireWorkerConfiguration`
+    private static final Map<String, Deque<JavaSymbolSolver>> idle_solvers = new HashMap<>();
+
+    // call key -> resolved signature, or empty if unresolved, see `keyCallsInPatches`
+    private static final Map<String, String> resolved_calls = new LinkedHashMap<String, String>(16, .75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size()>Args.RESOLVED_CALL_CACHE_SIZE;
+        }
+    };
+    private Map<MethodCallExpr, String> call_keys = Collections.synchronizedMap(new IdentityHashMap<>()); // for the current cluster
+
     public SidefxDbSource(String sidefx_db_path, String src_absolute_path) {
+        this(sidefx_db_path, src_absolute_path, true);
+    }
+
+    /**
+     * @param source_analysis Whether to analyze project methods that are not in the db, which is unnecessary if the
+     *                        db is built from project classes as well.
+     */
+    public SidefxDbSource(String sidefx_db_path, String src_absolute_path, boolean source_analysis) {
         this.sidefx_db_path = sidefx_db_path;
         this.src_absolute_path = src_absolute_path;
         this.symbol_solver_initialized = false;
+        if(source_analysis)
+            this.source_analyzer = new SourcePurityAnalyzer(this);
 
         load_sidefx_db();
+        warmUp(src_absolute_path);
     }
 
     public void setSrcPath(String path) {
+        if(Objects.equals(path, src_absolute_path))
+            return;
+
         src_absolute_path = path;
         symbol_solver_initialized = false;
     }
 
+    /**
+     * Start setting up the solver for `src_path` in background, so that it is ready before the first cluster.
+     */
+    public static void warmUp(String src_path) {
+        getSymbolSolver(src_path);
+    }
+
     @Override
     public void initialize() {
         // src_absolute_path may not be available at constructor, so delay it to here
@@ -50,19 +107,154 @@ public class SidefxDbSource extends TrivialPuritySource implements AbstractPurit
     }
 
     @Override
-    public void initializeForPatches(NodeList<Statement> patches) {
+    public void initializeForPatches(NodeList<Statement> patches, String src_around_patches) {
+        keyCallsInPatches(patches, src_around_patches);
+
         if(Args.POPULATE_CACHE_FOR_SYMBOL_SOLVER)
             populate_cache_for_symbol_solver(patches);
     }
 
+    /**
+     * A call resolves to the same method if the patch containing it and the code around patches are the same, which
+     * is often the case for clusters patching the same location.
+     */
+    private void keyCallsInPatches(NodeList<Statement> patches, String src_around_patches) {
+        call_keys = Collections.synchronizedMap(new IdentityHashMap<>());
+        String context_key = CompileCache.sha1(src_absolute_path + "\0" + src_around_patches);
+
+        for(Statement patch_block: patches) {
+            String patch_key = context_key + ":" + CompileCache.sha1(patch_block.toString());
+            List<MethodCallExpr> calls = patch_block.findAll(MethodCallExpr.class);
+            for(int i=0; i<calls.size(); i++)
+                call_keys.put(calls.get(i), patch_key + ":" + i);
+        }
+
+        int cached = 0;
+        synchronized(resolved_calls) {
+            for(String key: call_keys.values())
+                if(resolved_calls.containsKey(key))
+                    cached++;
+        }
+        System.out.printf("sidefx db source: %d of %d calls resolved in previous clusters\n", cached, call_keys.size());
+    }
+
+    @Override
+    public void initializeForCopy(Statement patch, Statement copy) {
+        List<MethodCallExpr> calls = patch.findAll(MethodCallExpr.class);
+        List<MethodCallExpr> copied_calls = copy.findAll(MethodCallExpr.class);
+        if(calls.size()!=copied_calls.size()) // should not happen as they are parsed from the same code
+            return;
+
+        for(int i=0; i<calls.size(); i++) {
+            String key = call_keys.get(calls.get(i));
+            if(key!=null)
+                call_keys.put(copied_calls.get(i), key);
+        }
+    }
+
+    /**
+     * A solver is never shared by two workers, as neither JavaParserTypeSolver (which parses files with one parser)
+     * nor its caches are thread-safe. The warmed-up solver is lent as well, since the thread that analyzes the cluster
+     * only waits for workers meanwhile. Other solvers parse files in the source root on demand, and are kept for later
+     * clusters, so there are at most `Args.SIDEFX_ANALYSIS_THREADS` of them.
+     */
+    @Override
+    public ParserConfiguration acquireWorkerConfiguration() {
+        String key = rootKey(src_absolute_path);
+        JavaSymbolSolver solver;
+        synchronized(idle_solvers) {
+            Deque<JavaSymbolSolver> idle = idle_solvers.get(key);
+            if(idle==null) {
+                idle = new ArrayDeque<>();
+                idle.add(waitForSymbolSolver());
+                idle_solvers.put(key, idle);
+            }
+            solver = idle.poll();
+        }
+        if(solver==null)
+            solver = createSymbolSolver(src_absolute_path, false);
+
+        return new ParserConfiguration().setSymbolResolver(solver);
+    }
+
+    @Override
+    public void releaseWorkerConfiguration(ParserConfiguration config) {
+        JavaSymbolSolver solver = (JavaSymbolSolver)config.getSymbolResolver().orElse(null);
+        if(solver==null)
+            return;
+
+        synchronized(idle_solvers) {
+            idle_solvers.get(rootKey(src_absolute_path)).add(solver);
+        }
+    }
+
     @Override
     public boolean isMethodCallPure(MethodCallExpr call) {
         if(super.isMethodCallPure(call)) // check TrivialPuritySource first
             return true;
 
+        String key = call_keys.get(call);
+        String signature;
+        synchronized(resolved_calls) {
+            signature = key==null ? null : resolved_calls.get(key);
+        }
+        Boolean pure_in_source = null;
+        if(signature==null) {
+            ResolvedMethodDeclaration method = resolveMethod(call);
+            signature = method==null ? "" : signatureOf(method);
+
+            if(source_analyzer!=null && method instanceof JavaParserMethodDeclaration && !signature.isEmpty() && !isImpureInDb(signature)) {
+                SymbolResolver resolver = call.findCompilationUnit().get().getData(Node.SYMBOL_RESOLVER_KEY);
+                pure_in_source = source_analyzer.isPure(rootKey(src_absolute_path), (JavaParserMethodDeclaration)method, signature, resolver);
+                if(source_analyzer.knownPurity(rootKey(src_absolute_path), signature)==null)
+                    key = null; // not memoized, e.g. it calls the patched method, so resolve it again next time
+            }
+
+            if(key!=null)
+                synchronized(resolved_calls) {
+                    resolved_calls.put(key, signature);
+                }
+        }
+
+        if(signature.isEmpty()) // not resolved
+            return false;
+
+        if(isImpureInDb(signature)) {
+            //List<String> sidefx = methodToModified.get(signature);
+            return false;
+        }
+
+        if(pure_in_source==null && source_analyzer!=null) // the call is cached, and the method may be in project source
+            pure_in_source = source_analyzer.knownPurity(rootKey(src_absolute_path), signature);
+        return pure_in_source==null || pure_in_source;
+    }
+
+    boolean isImpureInDb(String signature) {
+        return compact_db!=null ? compact_db.contains(signature) : impureMethodSet.contains(signature);
+    }
+
+    /**
+     * @return Null if it cannot be resolved.
+     */
+    private static ResolvedMethodDeclaration resolveMethod(MethodCallExpr call) {
         try {
-            ResolvedMethodDeclaration method = call.resolve();
+            return call.resolve();
+        } catch(UnsolvedSymbolException e) {
+            //System.out.println(call.toString() + ": sidefx symbol not resolved");
+            //e.printStackTrace();
+            return null;
+        } catch(Exception e) {
+            System.out.println(call.toString() + ": sidefx processing error");
+            e.printStackTrace();
+            return null;
+        }
+    }
 
+    /**
+     * @return Signature in the format of sidefx db, or an empty string if types in it cannot be resolved.
+     */
+    static String signatureOf(ResolvedMethodDeclaration method) {
+        try {
             String signature = String.format(
                 "<%s: %s %s>",
                 method.declaringType().getId(),
@@ -70,69 +262,135 @@ public class SidefxDbSource extends TrivialPuritySource implements AbstractPurit
                 method.getSignature()
             );
 
-            //System.out.printf("succ resolved sidefx %s -> %s\n", call, signature);
-
-            //noinspection RedundantIfStatement
-            if(impureMethodSet.contains(signature)) {
-                //List<String> sidefx = methodToModified.get(signature);
-                return false;
-            } else {
-                return true;
-            }
-        } catch(UnsolvedSymbolException e) {
-            //System.out.println(call.toString() + ": sidefx symbol not resolved");
-            //e.printStackTrace();
-            return false;
+            //System.out.printf("succ resolved sidefx %s\n", signature);
+            return signature;
         } catch(Exception e) {
-            System.out.println(call.toString() + ": sidefx processing error");
+            System.out.println(method.getName() + ": sidefx processing error");
             e.printStackTrace();
-            return false;
+            return "";
         }
     }
 
     private void load_sidefx_db() {
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(sidefx_db_path));
+        if(CompactSidefxDb.isCompact(sidefx_db_path)) {
+            try {
+                compact_db = CompactSidefxDb.open(sidefx_db_path);
+            } catch(IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("map sidefx db IOException: "+e);
+            }
+            return;
+        }
+
+        impureMethodSet = readTextDb(sidefx_db_path);
+    }
+
+    /**
+     * @return Signatures in the first column of the tab-separated db.
+     */
+    static Set<String> readTextDb(String path) {
+        Set<String> ret = new HashSet<>();
+        try(BufferedReader reader = new BufferedReader(new FileReader(path))) {
             String line;
             while ((line = reader.readLine()) != null) {
                 String [] items = line.split("\t");
                 if(items.length!=2)
                     throw new RuntimeException("invalid line in sidefx db: "+line);
 
-                impureMethodSet.add(items[0]);
+                ret.add(items[0]);
                 //methodToModified.get(items[0]).add(items[1]);
             }
         } catch (FileNotFoundException e) {
             System.out.println("sidefx db not found!");
-            throw new RuntimeException("sidefx db not found: "+sidefx_db_path);
+            throw new RuntimeException("sidefx db not found: "+path);
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException("load sidefx db IOException: "+e);
         }
+        return ret;
     }
 
     private void setup_symbol_solver() {
-        //long ts1 = System.nanoTime();
+        long ts1 = System.nanoTime();
+
+        StaticJavaParser.getConfiguration().setSymbolResolver(waitForSymbolSolver());
+
+        long ts2 = System.nanoTime();
+        System.out.printf("sidefx db source: symbol solver ready after %d ms\n", (ts2-ts1)/1000000);
+    }
+
+    private JavaSymbolSolver waitForSymbolSolver() {
+        try {
+            return getSymbolSolver(src_absolute_path).get(); // only waits if it is still warming up
+        } catch(InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            throw new RuntimeException("symbol solver setup failed: "+e);
+        }
+    }
+
+    private static String rootKey(String src_path) {
+        return src_path==null ? "" : Paths.get(src_path).toAbsolutePath().normalize().toString();
+    }
+
+    private static Future<JavaSymbolSolver> getSymbolSolver(String src_path) {
+        String key = rootKey(src_path);
+        synchronized(symbol_solvers) {
+            Future<JavaSymbolSolver> solver = symbol_solvers.get(key);
+            if(solver==null) {
+                solver = solver_warmer.submit(() -> createSymbolSolver(src_path, true));
+                symbol_solvers.put(key, solver);
+            }
+            return solver;
+        }
+    }
+
+    /**
+     * JavaSymbolSolver requires nontrivial setup time (about 1 sec or so) reading the code base, so all types in the
+     * source root are solved here once if `warm_up`, and the solver is reused by later clusters. The source root is
+     * assumed not to change, except for the patched file, whose CU is analyzed directly.
+     */
+    private static JavaSymbolSolver createSymbolSolver(String src_path, boolean warm_up) {
+        long ts1 = System.nanoTime();
 
         CombinedTypeSolver solver = new CombinedTypeSolver();
         solver.add(new ReflectionTypeSolver());
-        if(src_absolute_path!=null)
-            solver.add(new JavaParserTypeSolver(src_absolute_path));
-        else
+        if(src_path==null) {
             System.out.println("sidefx db source: src path not specified, skipped analysis for src code");
+            return new JavaSymbolSolver(solver);
+        }
 
-        JavaSymbolSolver symbolSolver = new JavaSymbolSolver(solver);
-        StaticJavaParser.getConfiguration().setSymbolResolver(symbolSolver);
+        JavaParserTypeSolver src_solver = new JavaParserTypeSolver(src_path);
+        solver.add(src_solver);
+        if(!warm_up)
+            return new JavaSymbolSolver(solver);
+
+        Path root = Paths.get(src_path);
+        List<Path> files;
+        try(Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(p -> p.toString().endsWith(".java")).collect(Collectors.toList());
+        } catch(IOException e) {
+            System.out.printf("sidefx db source: cannot list %s: %s\n", src_path, e);
+            files = Collections.emptyList();
+        }
 
-        //long ts2 = System.nanoTime();
+        int warmed = 0;
+        for(Path file: files) {
+            String rel = root.relativize(file).toString();
+            String name = rel.substring(0, rel.length()-".java".length()).replace(File.separatorChar, '.');
+            try {
+                if(src_solver.tryToSolveType(name).isSolved())
+                    warmed++;
+            } catch(Exception ignored) {} // e.g. parse error, which is reported again if the type is really used
+        }
 
-        //Main.total_offline_time_ns += ts2-ts1;
+        long ts2 = System.nanoTime();
+        System.out.printf("sidefx db source: warmed up %d of %d files in %s in %d ms\n", warmed, files.size(), src_path, (ts2-ts1)/1000000);
+
+        return new JavaSymbolSolver(solver);
     }
 
     /**
-     * JavaSymbolSolver requires nontrivial setup time (about 1 sec or so for each cluster) reading the whole code base.
-     * While this can be done offline (the value can be cached), I am lazy to modify it to do so.
-     * Therefore, we just measure the setup time and exclude it in our final timing.
+     * Resolve all calls in patches ahead of the analysis, so that its time can be measured separately.
      */
     private void populate_cache_for_symbol_solver(NodeList<Statement> patches) {
         //long ts1 = System.nanoTime();
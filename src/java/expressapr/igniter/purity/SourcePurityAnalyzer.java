@@ -0,0 +1,328 @@
+package expressapr.igniter.purity;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.*;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.stmt.BlockStmt;
+import com.github.javaparser.ast.stmt.ExplicitConstructorInvocationStmt;
+import com.github.javaparser.resolution.SymbolResolver;
+import com.github.javaparser.resolution.declarations.*;
+import com.github.javaparser.resolution.types.ResolvedReferenceType;
+import com.github.javaparser.symbolsolver.javaparsermodel.declarations.JavaParserClassDeclaration;
+import com.github.javaparser.symbolsolver.javaparsermodel.declarations.JavaParserConstructorDeclaration;
+import com.github.javaparser.symbolsolver.javaparsermodel.declarations.JavaParserMethodDeclaration;
+import expressapr.igniter.Args;
+import expressapr.igniter.SideEffectAnalyzer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Purity of methods in the project source that are not in the sidefx db, e.g. if the db only covers libraries. It is
+ * found from their bodies when a patch calls them, with the same symbol solver as the patch.
+ *
+ * A method is impure if it assigns anything but a local variable (i.e. fields and array elements), or calls an impure
+ * method or constructor. Callees in the project source are analyzed in turn, up to `Args.SOURCE_PURITY_MAX_DEPTH`, and
+ * are impure beyond it. Calls are assumed to reach the resolved declaration, not an override of it, and methods without
+ * body are impure. Recursive calls are assumed to be pure until the outermost method in the cycle is done.
+ *
+ * A constructor also runs the field initializers and initializer blocks of its class, and the constructor of the
+ * superclass, and it may assign fields of the new object. Constructors are not in the db, so those in libraries are
+ * assumed to be pure, like `new` in patches.
+ */
+class SourcePurityAnalyzer {
+    // source root and signature -> whether pure, kept for the whole servant
+    private static final Map<String, Boolean> memo = new ConcurrentHashMap<>();
+
+    private final SidefxDbSource db;
+
+    SourcePurityAnalyzer(SidefxDbSource db) {
+        this.db = db;
+    }
+
+    private static class Verdict {
+        final boolean pure;
+        final boolean exact; // false if cut by the depth limit or it depends on patches, so it is not memoized
+        final Set<String> assumed; // methods in the cycle assumed to be pure
+
+        Verdict(boolean pure, boolean exact, Set<String> assumed) {
+            this.pure = pure;
+            this.exact = exact;
+            this.assumed = assumed;
+        }
+
+        static final Verdict IMPURE = new Verdict(false, true, Collections.emptySet());
+        static final Verdict CUT = new Verdict(false, false, Collections.emptySet());
+    }
+
+    /**
+     * @return Memoized purity, or null if the method is not analyzed (e.g. it is not in the project source).
+     */
+    Boolean knownPurity(String root, String signature) {
+        return memo.get(root + "\0" + signature);
+    }
+
+    /**
+     * @param resolver Symbol resolver of the patch containing the call, which should not be used by other threads.
+     */
+    boolean isPure(String root, JavaParserMethodDeclaration method, String signature, SymbolResolver resolver) {
+        if(isPatched(method.getWrappedNode())) { // memoized from another cluster, where its body is different
+            memo.remove(root + "\0" + signature);
+            return false;
+        }
+
+        Boolean known = knownPurity(root, signature);
+        if(known!=null)
+            return known;
+
+        return analyze(root, method.getWrappedNode(), signature, 0, new HashSet<>(), resolver).pure;
+    }
+
+    /**
+     * @return Whether it is the patched method, whose body differs in each cluster.
+     */
+    private static boolean isPatched(Node code) {
+        return code.findFirst(NameExpr.class, (name)->SideEffectAnalyzer.INJECTION_POINT_MARKER.equals(name.getNameAsString())).isPresent();
+    }
+
+    /**
+     * @param decl A method or constructor, or a class for its default constructor.
+     */
+    private Verdict analyze(String root, Node decl, String signature, int depth, Set<String> in_progress, SymbolResolver resolver) {
+        List<Node> code = codeOf(decl);
+        if(code==null) // abstract or native
+            return Verdict.IMPURE;
+        if(code.stream().anyMatch(SourcePurityAnalyzer::isPatched))
+            return Verdict.CUT;
+
+        Boolean known = knownPurity(root, signature);
+        if(known!=null)
+            return known ? new Verdict(true, true, Collections.emptySet()) : Verdict.IMPURE;
+        if(in_progress.contains(signature))
+            return new Verdict(true, true, Collections.singleton(signature));
+
+        Verdict verdict;
+        in_progress.add(signature);
+        try {
+            verdict = analyzeBody(root, decl, code, depth, in_progress, resolver);
+        } finally {
+            in_progress.remove(signature);
+        }
+
+        Set<String> assumed = new HashSet<>(verdict.assumed);
+        assumed.remove(signature);
+        if(verdict.exact && (!verdict.pure || assumed.isEmpty())) // impurity never relies on assumptions
+            memo.put(root + "\0" + signature, verdict.pure);
+
+        return verdict.pure ? new Verdict(true, verdict.exact, assumed) : verdict;
+    }
+
+    /**
+     * @return The body, then initializers run by the constructor, or null if there is no body.
+     */
+    private static List<Node> codeOf(Node decl) {
+        List<Node> ret = new ArrayList<>();
+        if(decl instanceof MethodDeclaration) {
+            BlockStmt body = ((MethodDeclaration)decl).getBody().orElse(null);
+            if(body==null)
+                return null;
+            ret.add(body);
+        } else if(decl instanceof ConstructorDeclaration) {
+            ret.add(((ConstructorDeclaration)decl).getBody());
+            TypeDeclaration<?> cls = declaringType(decl);
+            if(cls!=null)
+                ret.addAll(initializersOf(cls));
+        } else {
+            ret.addAll(initializersOf((TypeDeclaration<?>)decl));
+        }
+        return ret;
+    }
+
+    private Verdict analyzeBody(String root, Node decl, List<Node> code, int depth, Set<String> in_progress, SymbolResolver resolver) {
+        TypeDeclaration<?> cls = decl instanceof MethodDeclaration ? null : // of the constructor
+            decl instanceof TypeDeclaration ? (TypeDeclaration<?>)decl : declaringType(decl);
+
+        // cus in the source root are parsed by the type solver, which does not set the resolver
+        CompilationUnit cu = decl.findCompilationUnit().orElse(null);
+        if(cu!=null && !cu.containsData(Node.SYMBOL_RESOLVER_KEY))
+            cu.setData(Node.SYMBOL_RESOLVER_KEY, resolver);
+
+        for(Node node: code) {
+            for(AssignExpr assign: node.findAll(AssignExpr.class))
+                if(!isLocal(assign.getTarget(), resolver) && !isOwnField(assign.getTarget(), cls, resolver))
+                    return Verdict.IMPURE;
+            for(UnaryExpr unary: node.findAll(UnaryExpr.class, (expr)->INC_DEC.contains(expr.getOperator())))
+                if(!isLocal(unary.getExpression(), resolver) && !isOwnField(unary.getExpression(), cls, resolver))
+                    return Verdict.IMPURE;
+        }
+
+        boolean exact = true;
+        Set<String> assumed = new HashSet<>();
+        for(Node node: code) {
+            for(MethodCallExpr call: node.findAll(MethodCallExpr.class)) {
+                if(TrivialPuritySource.ALWAYS_PURE_METHODS.contains(call.getNameAsString()))
+                    continue;
+
+                ResolvedMethodDeclaration callee;
+                try {
+                    callee = resolver.resolveDeclaration(call, ResolvedMethodDeclaration.class);
+                } catch(Exception e) { // unresolved
+                    return Verdict.IMPURE;
+                }
+
+                String callee_signature = SidefxDbSource.signatureOf(callee);
+                if(callee_signature.isEmpty() || db.isImpureInDb(callee_signature))
+                    return Verdict.IMPURE;
+                if(!(callee instanceof JavaParserMethodDeclaration)) // in a library, so the db is trusted
+                    continue;
+
+                Verdict verdict = analyzeCallee(root, ((JavaParserMethodDeclaration)callee).getWrappedNode(), callee_signature, depth, in_progress, resolver);
+                if(!verdict.pure)
+                    return verdict;
+                exact &= verdict.exact;
+                assumed.addAll(verdict.assumed);
+            }
+
+            List<Node> creations = new ArrayList<>(node.findAll(ObjectCreationExpr.class));
+            creations.addAll(node.findAll(ExplicitConstructorInvocationStmt.class));
+            for(Node creation: creations) {
+                Verdict verdict = analyzeConstructor(root, creation, depth, in_progress, resolver);
+                if(!verdict.pure)
+                    return verdict;
+                exact &= verdict.exact;
+                assumed.addAll(verdict.assumed);
+            }
+        }
+
+        // `super()` is implicit
+        boolean explicit = decl instanceof ConstructorDeclaration && ((ConstructorDeclaration)decl).getBody().getStatements().stream().anyMatch((stmt)->stmt instanceof ExplicitConstructorInvocationStmt);
+        if(cls instanceof ClassOrInterfaceDeclaration && !explicit) {
+            Verdict verdict = analyzeImplicitSuper(root, (ClassOrInterfaceDeclaration)cls, depth, in_progress, resolver);
+            if(!verdict.pure)
+                return verdict;
+            exact &= verdict.exact;
+            assumed.addAll(verdict.assumed);
+        }
+
+        return new Verdict(true, exact, assumed);
+    }
+
+    private Verdict analyzeCallee(String root, Node decl, String signature, int depth, Set<String> in_progress, SymbolResolver resolver) {
+        if(depth+1>Args.SOURCE_PURITY_MAX_DEPTH)
+            return Verdict.CUT;
+        return analyze(root, decl, signature, depth+1, in_progress, resolver);
+    }
+
+    /**
+     * @param creation `new` or an explicit `this(...)` or `super(...)`.
+     */
+    private Verdict analyzeConstructor(String root, Node creation, int depth, Set<String> in_progress, SymbolResolver resolver) {
+        ResolvedConstructorDeclaration ctor;
+        try {
+            ctor = resolver.resolveDeclaration(creation, ResolvedConstructorDeclaration.class);
+        } catch(Exception e) { // unresolved
+            return Verdict.IMPURE;
+        }
+        return analyzeConstructor(root, ctor, depth, in_progress, resolver);
+    }
+
+    private Verdict analyzeConstructor(String root, ResolvedConstructorDeclaration ctor, int depth, Set<String> in_progress, SymbolResolver resolver) {
+        String signature;
+        try {
+            signature = String.format("<%s: %s>", ctor.declaringType().getId(), ctor.getSignature());
+        } catch(Exception e) {
+            return Verdict.IMPURE;
+        }
+
+        if(ctor instanceof JavaParserConstructorDeclaration)
+            return analyzeCallee(root, ((JavaParserConstructorDeclaration<?>)ctor).getWrappedNode(), signature, depth, in_progress, resolver);
+        if(ctor.declaringType() instanceof JavaParserClassDeclaration) // default constructor
+            return analyzeCallee(root, ((JavaParserClassDeclaration)ctor.declaringType()).getWrappedNode(), signature, depth, in_progress, resolver);
+        return new Verdict(true, true, Collections.emptySet()); // in a library
+    }
+
+    private Verdict analyzeImplicitSuper(String root, ClassOrInterfaceDeclaration cls, int depth, Set<String> in_progress, SymbolResolver resolver) {
+        if(cls.getExtendedTypes().isEmpty())
+            return new Verdict(true, true, Collections.emptySet()); // java.lang.Object
+
+        try {
+            ResolvedReferenceTypeDeclaration superclass = resolver.toResolvedType(cls.getExtendedTypes(0), ResolvedReferenceType.class).getTypeDeclaration().orElse(null);
+            if(superclass==null || !(superclass instanceof JavaParserClassDeclaration))
+                return new Verdict(true, true, Collections.emptySet()); // in a library
+            for(ResolvedConstructorDeclaration ctor: superclass.getConstructors())
+                if(ctor.getNumberOfParams()==0)
+                    return analyzeConstructor(root, ctor, depth, in_progress, resolver);
+        } catch(Exception ignored) {}
+        return Verdict.IMPURE;
+    }
+
+    /**
+     * @return The innermost type declaration around `node`, or null.
+     */
+    private static TypeDeclaration<?> declaringType(Node node) {
+        for(Node cur=node.getParentNode().orElse(null); cur!=null; cur=cur.getParentNode().orElse(null))
+            if(cur instanceof TypeDeclaration)
+                return (TypeDeclaration<?>)cur;
+        return null;
+    }
+
+    /**
+     * @return Initializers of instance fields and instance initializer blocks of `cls`.
+     */
+    private static List<Node> initializersOf(TypeDeclaration<?> cls) {
+        List<Node> ret = new ArrayList<>();
+        for(BodyDeclaration<?> member: cls.getMembers())
+            if(member instanceof FieldDeclaration && !((FieldDeclaration)member).isStatic()) {
+                for(VariableDeclarator variable: ((FieldDeclaration)member).getVariables())
+                    variable.getInitializer().ifPresent(ret::add);
+            } else if(member instanceof InitializerDeclaration && !((InitializerDeclaration)member).isStatic()) {
+                ret.add(((InitializerDeclaration)member).getBody());
+            }
+        return ret;
+    }
+
+    private static final Set<UnaryExpr.Operator> INC_DEC = EnumSet.of(
+        UnaryExpr.Operator.PREFIX_INCREMENT, UnaryExpr.Operator.PREFIX_DECREMENT,
+        UnaryExpr.Operator.POSTFIX_INCREMENT, UnaryExpr.Operator.POSTFIX_DECREMENT
+    );
+
+    private static boolean isLocal(Expression target, SymbolResolver resolver) {
+        while(target instanceof EnclosedExpr)
+            target = ((EnclosedExpr)target).getInner();
+        if(!(target instanceof NameExpr)) // fields and array elements
+            return false;
+
+        try {
+            return !resolver.resolveDeclaration(target, ResolvedValueDeclaration.class).isField();
+        } catch(Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param cls Class of the constructor, or null if not in a constructor.
+     * @return Whether `target` is a field of the object being constructed, i.e. `this.f` or an instance field of `cls`.
+     */
+    private static boolean isOwnField(Expression target, TypeDeclaration<?> cls, SymbolResolver resolver) {
+        while(target instanceof EnclosedExpr)
+            target = ((EnclosedExpr)target).getInner();
+        if(cls==null)
+            return false;
+        if(target instanceof FieldAccessExpr) {
+            Expression scope = ((FieldAccessExpr)target).getScope();
+            return scope instanceof ThisExpr && !((ThisExpr)scope).getTypeName().isPresent(); // not `Outer.this.f`
+        }
+        if(!(target instanceof NameExpr))
+            return false;
+
+        try {
+            ResolvedValueDeclaration value = resolver.resolveDeclaration(target, ResolvedValueDeclaration.class);
+            if(!value.isField() || value.asField().isStatic())
+                return false;
+            return value.asField().declaringType().getQualifiedName().equals(cls.resolve().getQualifiedName());
+        } catch(Exception e) {
+            return false;
+        }
+    }
+}
@@ -13,7 +13,7 @@ public class TrivialPuritySource implements AbstractPuritySource {
         return ALWAYS_PURE_METHODS.contains(method_name);
     }
 
-    private static final Set<String> ALWAYS_PURE_METHODS = new HashSet<>(Arrays.asList(
+    static final Set<String> ALWAYS_PURE_METHODS = new HashSet<>(Arrays.asList(
         // pure std methods
         "hashCode", "equals", "toString", "getClass", "clone", "valueOf",
 